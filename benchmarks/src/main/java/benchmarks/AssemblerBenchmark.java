@@ -0,0 +1,74 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses and assembles a synthetic .asm file (projects/06 Parser, Code, SymbolTable and HackWriter).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AssemblerBenchmark {
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int lines;
+
+    private Path directory;
+    private String asmFile;
+    private MethodHandle newParser;
+    private MethodHandle assemble;
+    private Object textFormat;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Tools assembler = Tools.load("assembler");
+        newParser = assembler.constructor("Parser", String.class);
+        Class<?> outputFormat = assembler.type("OutputFormat");
+        assemble = assembler.staticMethod("Main", "assemble", int.class, String.class, outputFormat, boolean.class,
+                boolean.class);
+        textFormat = assembler.enumConstant("OutputFormat", "TEXT");
+
+        directory = Files.createTempDirectory("asm");
+        asmFile = Inputs.asm(directory, lines).toString();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Inputs.delete(directory);
+    }
+
+    @Benchmark
+    public Object parse() throws Throwable {
+        return newParser.invoke(asmFile);
+    }
+
+    @Benchmark
+    public int assembleTwoPass() throws Throwable {
+        return (int) assemble.invoke(asmFile, textFormat, false, false);
+    }
+
+    @Benchmark
+    public int assembleSinglePass() throws Throwable {
+        return (int) assemble.invoke(asmFile, textFormat, true, false);
+    }
+}
@@ -0,0 +1,128 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a loop of VM-translator style code (projects/05 CPUEmulator, PredecodedCPUEmulator and JitCPUEmulator) against
+ * an interpreter that decodes the fields of every instruction on each cycle. The scores are in instructions per
+ * microsecond.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CPUEmulatorBenchmark {
+
+    private static final int CYCLES = 10_000_000;
+
+    private short[] rom;
+    private short[] ram;
+    private Object emulator;
+    private Object predecodedEmulator;
+    private MethodHandle run;
+    private MethodHandle runPredecoded;
+    private Object jitEmulator;
+    private MethodHandle runJit;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        Tools tools = Tools.load("assembler", "cpu-emulator", "asm");
+        Path directory = Files.createTempDirectory("emulator");
+        try {
+            Path asmFile = Inputs.loop(directory);
+            tools.staticMethod("Main", "assemble", int.class, String.class, tools.type("OutputFormat"), boolean.class,
+                    boolean.class).invoke(asmFile.toString(), tools.enumConstant("OutputFormat", "TEXT"), false, false);
+            rom = (short[]) tools.staticMethod("HackImage", "load", short[].class, String.class)
+                    .invoke(directory.resolve("Loop.hack").toString());
+        } finally {
+            Inputs.delete(directory);
+        }
+
+        ram = new short[32768];
+        Class<?> stopReason = tools.type("CPUEmulator$StopReason");
+        emulator = tools.constructor("CPUEmulator", short[].class).invoke(rom);
+        run = tools.virtualMethod("CPUEmulator", "run", stopReason, long.class);
+        predecodedEmulator = tools.constructor("PredecodedCPUEmulator", short[].class).invoke(rom);
+        runPredecoded = tools.virtualMethod("PredecodedCPUEmulator", "run", stopReason, long.class);
+        jitEmulator = tools.constructor("JitCPUEmulator", short[].class).invoke(rom);
+        runJit = tools.virtualMethod("JitCPUEmulator", "run", stopReason, long.class);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CYCLES)
+    public int naiveDecode() {
+        return decodeAndRun(rom, ram, CYCLES);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CYCLES)
+    public Object cpuEmulator() throws Throwable {
+        return run.invoke(emulator, (long) CYCLES);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CYCLES)
+    public Object predecoded() throws Throwable {
+        return runPredecoded.invoke(predecodedEmulator, (long) CYCLES);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CYCLES)
+    public Object jit() throws Throwable {
+        return runJit.invoke(jitEmulator, (long) CYCLES);
+    }
+
+    // The baseline: fetches each instruction from the ROM and decodes its fields and ALU control bits as the
+    // hardware does. The program starts from a reset on every call. Returns D, so the work isn't eliminated.
+    private static int decodeAndRun(short[] rom, short[] ram, int cycles) {
+        int a = 0;
+        int d = 0;
+        int pc = 0;
+        for (int i = 0; i < cycles; i++) {
+            int instruction = rom[pc];
+            if ((instruction & 0x8000) == 0) {
+                a = instruction;
+                pc++;
+                continue;
+            }
+
+            // M and the jump target are addressed by A as it was before the instruction.
+            int target = a & 0x7FFF;
+            int x = d;
+            int y = (instruction & 0x1000) != 0 ? ram[target] : a;
+            if ((instruction & 0x0800) != 0) x = 0;
+            if ((instruction & 0x0400) != 0) x = ~x;
+            if ((instruction & 0x0200) != 0) y = 0;
+            if ((instruction & 0x0100) != 0) y = ~y;
+            int out = (instruction & 0x0080) != 0 ? x + y : x & y;
+            if ((instruction & 0x0040) != 0) out = ~out;
+            out = (short) out;
+
+            if ((instruction & 0x0008) != 0) ram[target] = (short) out;
+            boolean jump = (out < 0 && (instruction & 0x4) != 0) || (out == 0 && (instruction & 0x2) != 0)
+                    || (out > 0 && (instruction & 0x1) != 0);
+            if ((instruction & 0x0020) != 0) a = out;
+            if ((instruction & 0x0010) != 0) d = out;
+            pc = jump ? target : pc + 1;
+        }
+        return d;
+    }
+}
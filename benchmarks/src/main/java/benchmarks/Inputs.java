@@ -0,0 +1,142 @@
+package benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Generates synthetic inputs with the given number of lines, in the shapes the tools produce and consume.
+ */
+public final class Inputs {
+    private Inputs() { }
+
+    /**
+     * Writes Hack assembly similar to the VM translator's output: stack pushes and pops, arithmetic, labels,
+     * jumps and variables. Labels are only defined within the first instructions so their addresses fit in 15 bits.
+     */
+    public static Path asm(Path directory, int lines) throws IOException {
+        String[] block = {
+                "// push constant", "@{c}", "D=A", "@SP", "A=M", "M=D", "@SP", "M=M+1",
+                "@SP", "AM=M-1", "D=M", "A=A-1", "M=D+M",
+                "@var{v}   // a variable", "D=M", "@LOOP{l}", "D;JGT",
+                "@SP", "AM=M-1", "D=M", "@R13", "M=D", "",
+        };
+        Path file = directory.resolve("Bench.asm");
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.US_ASCII)) {
+            for (int i = 0; i < lines; i++) {
+                if (i < 2000 && i % 20 == 0) {
+                    writer.write("(LOOP" + i / 20 + ")\n");
+                    continue;
+                }
+                String line = block[i % block.length];
+                line = line.replace("{c}", Integer.toString(i % 32768))
+                        .replace("{v}", Integer.toString(i % 500))
+                        .replace("{l}", Integer.toString(i % 100));
+                writer.write(line);
+                writer.write('\n');
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Writes a VM program of push, pop and arithmetic commands over all the segments.
+     */
+    public static Path vm(Path directory, int lines) throws IOException {
+        String[] block = {
+                "push constant {i}", "push local {i}", "add", "pop argument {i}", "push static {i}", "push temp {t}",
+                "eq", "pop that {i}", "push this {i}", "push pointer {p}", "sub", "neg", "push constant {i}", "lt",
+                "not", "push argument {i}", "gt", "and", "pop local {i}", "push that {i}", "or", "pop static {i}",
+                "// a comment", "pop temp {t}", "pop pointer {p}", "pop this {i}",
+        };
+        Path file = directory.resolve("Bench.vm");
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.US_ASCII)) {
+            for (int i = 0; i < lines; i++) {
+                String line = block[i % block.length];
+                line = line.replace("{i}", Integer.toString(i % 200))
+                        .replace("{t}", Integer.toString(i % 8))
+                        .replace("{p}", Integer.toString(i % 2));
+                writer.write(line);
+                writer.write('\n');
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Writes a Jack class with as many methods as needed for the given number of lines. The methods use all the
+     * statements, expressions, and the three kinds of comments.
+     */
+    public static Path jack(Path directory, int lines) throws IOException {
+        String[] method = {
+                "    /** Method number {m}. */",
+                "    method int m{m}(int a, int b) {",
+                "        var int i, sum;",
+                "        var String s;",
+                "        let sum = 0; // running total",
+                "        let i = 0;",
+                "        /* loop over the table */",
+                "        while (i < a) {",
+                "            let sum = sum + (i * b) - table[i];",
+                "            if ((sum > 100) & ~(x = y)) { let sum = sum / 2; } else { let x = x + 1; }",
+                "            let s = \"sum is\";",
+                "            do Output.printString(s);",
+                "            do m{m}(i, -b);",
+                "            let i = i + 1;",
+                "        }",
+                "        return sum;",
+                "    }",
+                "",
+        };
+        Path file = directory.resolve("Bench.jack");
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.US_ASCII)) {
+            writer.write("// A generated class.\nclass Bench {\n    field int x, y;\n    static Array table;\n\n");
+            for (int m = 0; m * method.length < lines; m++) {
+                for (String line : method) {
+                    writer.write(line.replace("{m}", Integer.toString(m)));
+                    writer.write('\n');
+                }
+            }
+            writer.write("}\n");
+        }
+        return file;
+    }
+
+    /**
+     * Writes a Hack program that loops forever over the instruction sequences the VM translator emits: it pushes two
+     * constants, adds them, pops the sum and branches on it, counting the iterations in R14.
+     */
+    public static Path loop(Path directory) throws IOException {
+        String[] program = {
+                "@256", "D=A", "@SP", "M=D",
+                "(LOOP)",
+                "@1000", "D=A", "@SP", "A=M", "M=D", "@SP", "M=M+1",
+                "@7", "D=A", "@SP", "A=M", "M=D", "@SP", "M=M+1",
+                "@SP", "AM=M-1", "D=M", "A=A-1", "M=D+M",
+                "@SP", "AM=M-1", "D=M", "@R13", "M=D",
+                "@R14", "M=M+1",
+                "@R13", "D=M", "@SKIP", "D;JGT",
+                "@R15", "M=M-1",
+                "(SKIP)",
+                "@LOOP", "0;JMP",
+        };
+        Path file = directory.resolve("Loop.asm");
+        Files.write(file, List.of(program), StandardCharsets.US_ASCII);
+        return file;
+    }
+
+    /**
+     * Deletes the given directory and its files.
+     */
+    public static void delete(Path directory) throws IOException {
+        try (var files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+}
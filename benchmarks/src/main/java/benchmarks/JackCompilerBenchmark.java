@@ -0,0 +1,82 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tokenizes and compiles a synthetic .jack class (projects/11 JackTokenizer and CompilationEngine).
+ * The default sizes stop at 100K lines; larger sizes can be run with e.g. -p lines=10000000.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class JackCompilerBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int lines;
+
+    private Path directory;
+    private String jackFile;
+    private String vmFile;
+    private MethodHandle newTokenizer;
+    private MethodHandle hasMoreTokens;
+    private MethodHandle advance;
+    private MethodHandle tokenCount;
+    private MethodHandle newCompilationEngine;
+    private MethodHandle compileClass;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        Tools compiler = Tools.load("jack-compiler");
+        newTokenizer = compiler.constructor("JackTokenizer", String.class);
+        hasMoreTokens = compiler.virtualMethod("JackTokenizer", "hasMoreTokens", boolean.class);
+        advance = compiler.virtualMethod("JackTokenizer", "advance", void.class);
+        tokenCount = compiler.virtualMethod("JackTokenizer", "tokenCount", int.class);
+        newCompilationEngine = compiler.constructor("CompilationEngine", String.class, String.class);
+        compileClass = compiler.virtualMethod("CompilationEngine", "compileClass", void.class);
+
+        directory = Files.createTempDirectory("jack");
+        jackFile = Inputs.jack(directory, lines).toString();
+        vmFile = directory.resolve("Bench.vm").toString();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Inputs.delete(directory);
+    }
+
+    // The tokenizer reads the input as it advances, so it's drained to tokenize the whole file.
+    @Benchmark
+    public int tokenize() throws Throwable {
+        try (AutoCloseable tokenizer = (AutoCloseable) newTokenizer.invoke(jackFile)) {
+            while ((boolean) hasMoreTokens.invoke(tokenizer)) {
+                advance.invoke(tokenizer);
+            }
+            return (int) tokenCount.invoke(tokenizer);
+        }
+    }
+
+    @Benchmark
+    public void compileClass() throws Throwable {
+        compileClass.invoke(newCompilationEngine.invoke(jackFile, vmFile));
+    }
+}
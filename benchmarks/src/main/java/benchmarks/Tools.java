@@ -0,0 +1,75 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Loads a tool (e.g. the assembler) bundled under /tools in the benchmarks jar into its own class loader, and looks
+ * up method handles of its classes.
+ */
+public final class Tools {
+
+    private final ClassLoader loader;
+
+    private Tools(ClassLoader loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * Loads the jars with the given names (assembler, vm-translator, jack-compiler, cpu-emulator or asm) into one
+     * class loader. A tool that uses the classes of another jar, as the CPU emulator uses the assembler's and ASM,
+     * is loaded together with it.
+     */
+    public static Tools load(String... names) {
+        URL[] urls = new URL[names.length];
+        for (int i = 0; i < names.length; i++) {
+            try (InputStream in = Tools.class.getResourceAsStream("/tools/" + names[i] + ".jar")) {
+                if (in == null) {
+                    throw new IllegalStateException("The tool " + names[i] + " isn't bundled; build with 'mvn package'");
+                }
+                Path jar = Files.createTempFile(names[i], ".jar");
+                jar.toFile().deleteOnExit();
+                Files.copy(in, jar, StandardCopyOption.REPLACE_EXISTING);
+                urls[i] = jar.toUri().toURL();
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+        return new Tools(new URLClassLoader(urls, ClassLoader.getPlatformClassLoader()));
+    }
+
+    public Class<?> type(String className) throws ClassNotFoundException {
+        return Class.forName(className, true, loader);
+    }
+
+    public MethodHandle constructor(String className, Class<?>... parameterTypes) throws ReflectiveOperationException {
+        return MethodHandles.publicLookup().findConstructor(type(className),
+                MethodType.methodType(void.class, parameterTypes));
+    }
+
+    public MethodHandle staticMethod(String className, String methodName, Class<?> returnType,
+                                     Class<?>... parameterTypes) throws ReflectiveOperationException {
+        return MethodHandles.publicLookup().findStatic(type(className), methodName,
+                MethodType.methodType(returnType, parameterTypes));
+    }
+
+    public MethodHandle virtualMethod(String className, String methodName, Class<?> returnType,
+                                      Class<?>... parameterTypes) throws ReflectiveOperationException {
+        return MethodHandles.publicLookup().findVirtual(type(className), methodName,
+                MethodType.methodType(returnType, parameterTypes));
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public Object enumConstant(String className, String constantName) throws ClassNotFoundException {
+        return Enum.valueOf((Class<? extends Enum>) type(className), constantName);
+    }
+}
@@ -0,0 +1,61 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Translates a synthetic .vm file (projects/07 Parser and CodeWriter.writeArithmetic/writePushPop) in memory, as
+ * VMTranslator.translate does for each file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class VMTranslatorBenchmark {
+
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int lines;
+
+    private byte[] content;
+    private Object options;
+    private MethodHandle translate;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        Tools translator = Tools.load("vm-translator");
+        Class<?> optionsType = translator.type("TranslationOptions");
+        translate = translator.staticMethod("VMTranslator", "translate", translator.type("Translation"), byte[].class,
+                String.class, optionsType);
+        options = translator.constructor("TranslationOptions", translator.type("CodeMode"), boolean.class,
+                boolean.class, boolean.class).invoke(translator.enumConstant("CodeMode", "SPEED"), false, false, false);
+
+        Path directory = Files.createTempDirectory("vm");
+        try {
+            content = Files.readAllBytes(Inputs.vm(directory, lines));
+        } finally {
+            Inputs.delete(directory);
+        }
+    }
+
+    @Benchmark
+    public Object translate() throws Throwable {
+        return translate.invoke(content, "Bench.vm", options);
+    }
+}
@@ -0,0 +1,391 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Executes Hack machine code, as specified by CPU.hdl and Computer.hdl.
+ * The ROM is decoded once, when it is loaded, into one dispatch word per instruction, so the execution loop only
+ * switches on precomputed fields and never allocates.
+ */
+public class CPUEmulator {
+
+    public static final int RAM_SIZE = 32768;
+    public static final int SCREEN = 16384;
+    public static final int KBD = 24576;
+
+    /**
+     * The reasons for which run() returns.
+     */
+    public enum StopReason {
+        // The cycle budget was exhausted.
+        BUDGET,
+        // The next instruction has a breakpoint.
+        BREAKPOINT,
+        // The program reached an infinite loop of the form (END) @END 0;JMP.
+        HALT,
+        // The program counter left the ROM.
+        PC_OUT_OF_ROM
+    }
+
+    // The layout of a dispatch word. An A-instruction is dispatched as its own value (bit 15 clear). A
+    // C-instruction keeps its jump, dest and comp fields in bits 0..12, and sets C_INSTRUCTION.
+    private static final int C_INSTRUCTION = 1 << 16;
+    private static final int BREAKPOINT = 1 << 17;
+    private static final int HALT = 1 << 18;
+    private static final int STOP_FLAGS = BREAKPOINT | HALT;
+    private static final int DEST_M = 0b001 << 3;
+    private static final int DEST_D = 0b010 << 3;
+    private static final int DEST_A = 0b100 << 3;
+
+    private final short[] rom;
+    private final int[] program;
+    private final short[] ram;
+    private int a;
+    private int d;
+    private int pc;
+    private long cycles;
+    // The number of times the instruction at each ROM address was executed, or null if it isn't counted.
+    private long[] profile;
+
+    /**
+     * Loads the given program into the ROM and resets the computer.
+     */
+    public CPUEmulator(short[] rom) {
+        this.rom = rom.clone();
+        this.program = new int[rom.length];
+        this.ram = new short[RAM_SIZE];
+
+        for (int i = 0; i < rom.length; i++) {
+            program[i] = decode(rom[i]);
+        }
+
+        // Mark the halting loops.
+        for (int i = 1; i < rom.length; i++) {
+            if (isHaltPoint(rom, i)) {
+                program[i] |= HALT;
+            }
+        }
+    }
+
+    /**
+     * Is the instruction at the given address the jump of a halting loop, i.e. @i-1 at address i-1 followed by an
+     * unconditional jump that doesn't change A? The program halts when it reaches that jump with A = i-1.
+     */
+    static boolean isHaltPoint(short[] rom, int address) {
+        if (address < 1 || address >= rom.length || rom[address - 1] != address - 1) {
+            return false;
+        }
+        int instruction = rom[address];
+        return instruction < 0 && (instruction & 0b111) == 0b111 && (instruction & DEST_A) == 0;
+    }
+
+    /**
+     * Loads the given .hack file, in any of the assembler's output formats.
+     */
+    public static CPUEmulator load(String hackFile) throws IOException {
+        return new CPUEmulator(HackImage.load(hackFile));
+    }
+
+    private static int decode(short word) {
+        if (word >= 0) {
+            return word;
+        }
+        return C_INSTRUCTION | (word & 0x1FFF);
+    }
+
+    /**
+     * Sets the PC, the registers, the RAM and the cycle counter to zero.
+     */
+    public void reset() {
+        a = 0;
+        d = 0;
+        pc = 0;
+        cycles = 0;
+        Arrays.fill(ram, (short) 0);
+    }
+
+    /**
+     * Executes instructions until the given number of cycles was executed, or until a breakpoint, a halting loop
+     * or the end of the ROM is reached.
+     */
+    public StopReason run(long cycleBudget) {
+        final int[] program = this.program;
+        final short[] ram = this.ram;
+        final long[] profile = this.profile;
+        int a = this.a;
+        int d = this.d;
+        int pc = this.pc;
+        long cycles = this.cycles;
+        final long endCycle = cycleBudget > Long.MAX_VALUE - cycles ? Long.MAX_VALUE : cycles + cycleBudget;
+        StopReason reason = StopReason.BUDGET;
+
+        // The instruction at which execution resumes doesn't stop on its breakpoint again.
+        boolean resumed = true;
+
+        while (cycles < endCycle) {
+            if (pc >= program.length) {
+                reason = StopReason.PC_OUT_OF_ROM;
+                break;
+            }
+
+            int op = program[pc];
+            if ((op & STOP_FLAGS) != 0) {
+                if ((op & BREAKPOINT) != 0 && !resumed) {
+                    reason = StopReason.BREAKPOINT;
+                    break;
+                }
+                if ((op & HALT) != 0 && a == pc - 1) {
+                    reason = StopReason.HALT;
+                    break;
+                }
+            }
+            resumed = false;
+            cycles++;
+            if (profile != null) {
+                profile[pc]++;
+            }
+
+            if ((op & C_INSTRUCTION) == 0) {
+                a = op & 0x7FFF;
+                pc++;
+                continue;
+            }
+
+            int out;
+            switch ((op >>> 6) & 0x7F) {
+                case 0b0101010: out = 0; break;
+                case 0b0111111: out = 1; break;
+                case 0b0111010: out = -1; break;
+                case 0b0001100: out = d; break;
+                case 0b0110000: out = a; break;
+                case 0b1110000: out = ram[a & 0x7FFF]; break;
+                case 0b0001101: out = ~d; break;
+                case 0b0110001: out = ~a; break;
+                case 0b1110001: out = ~ram[a & 0x7FFF]; break;
+                case 0b0001111: out = -d; break;
+                case 0b0110011: out = -a; break;
+                case 0b1110011: out = -ram[a & 0x7FFF]; break;
+                case 0b0011111: out = d + 1; break;
+                case 0b0110111: out = a + 1; break;
+                case 0b1110111: out = ram[a & 0x7FFF] + 1; break;
+                case 0b0001110: out = d - 1; break;
+                case 0b0110010: out = a - 1; break;
+                case 0b1110010: out = ram[a & 0x7FFF] - 1; break;
+                case 0b0000010: out = d + a; break;
+                case 0b1000010: out = d + ram[a & 0x7FFF]; break;
+                case 0b0010011: out = d - a; break;
+                case 0b1010011: out = d - ram[a & 0x7FFF]; break;
+                case 0b0000111: out = a - d; break;
+                case 0b1000111: out = ram[a & 0x7FFF] - d; break;
+                case 0b0000000: out = d & a; break;
+                case 0b1000000: out = d & ram[a & 0x7FFF]; break;
+                case 0b0010101: out = d | a; break;
+                case 0b1010101: out = d | ram[a & 0x7FFF]; break;
+                default:
+                    // The remaining bit patterns aren't in the language, but the ALU defines them too.
+                    out = alu(op >>> 6, d, (op & (1 << 12)) != 0 ? ram[a & 0x7FFF] : a);
+            }
+            out = (short) out;
+
+            // M is addressed, and a jump goes to, the A before it's updated, as in CPU.hdl, e.g. A=A+1;JMP jumps to
+            // the old A.
+            int target = a & 0x7FFF;
+            if ((op & DEST_M) != 0) {
+                ram[target] = (short) out;
+            }
+            if ((op & DEST_A) != 0) {
+                a = out;
+            }
+            if ((op & DEST_D) != 0) {
+                d = out;
+            }
+
+            // The jump bits are j1 (out < 0), j2 (out = 0) and j3 (out > 0).
+            if (((op >>> (out < 0 ? 2 : out == 0 ? 1 : 0)) & 1) != 0) {
+                pc = target;
+            } else {
+                pc++;
+            }
+        }
+
+        this.a = a;
+        this.d = d;
+        this.pc = pc;
+        this.cycles = cycles;
+        return reason;
+    }
+
+    /**
+     * Computes the ALU output for the control bits zx, nx, zy, ny, f, no (bits 5..0 of comp).
+     */
+    static int alu(int comp, int x, int y) {
+        if ((comp & 0b100000) != 0) x = 0;
+        if ((comp & 0b010000) != 0) x = ~x;
+        if ((comp & 0b001000) != 0) y = 0;
+        if ((comp & 0b000100) != 0) y = ~y;
+        int out = (comp & 0b000010) != 0 ? x + y : x & y;
+        if ((comp & 0b000001) != 0) out = ~out;
+        return (short) out;
+    }
+
+    /**
+     * Sets a breakpoint: run() stops before executing the instruction at the given ROM address.
+     */
+    public void setBreakpoint(int address) {
+        program[address] |= BREAKPOINT;
+    }
+
+    public void clearBreakpoint(int address) {
+        program[address] &= ~BREAKPOINT;
+    }
+
+    /**
+     * Counts the executions of each instruction into the given array, indexed by ROM address, from now on, or stops
+     * counting if it's null. Profilers map the counts back to the code the program was translated from.
+     */
+    public void setProfile(long[] profile) {
+        if (profile != null && profile.length < program.length) {
+            throw new IllegalArgumentException("The profile has fewer counters than the ROM has instructions");
+        }
+        this.profile = profile;
+    }
+
+    /**
+     * Simulates a key press (or release, with key 0) on the memory-mapped keyboard.
+     */
+    public void setKey(int key) {
+        ram[KBD] = (short) key;
+    }
+
+    /**
+     * Returns the RAM itself, so tests and tools can read and poke it.
+     */
+    public short[] ram() {
+        return ram;
+    }
+
+    public short[] rom() {
+        return rom;
+    }
+
+    public int a() {
+        return a;
+    }
+
+    public int d() {
+        return d;
+    }
+
+    public int pc() {
+        return pc;
+    }
+
+    public long cycles() {
+        return cycles;
+    }
+
+    // Runs the emulator for the given number of cycles, sampling the call stack every sampleInterval cycles.
+    private static StopReason runSampled(CPUEmulator emulator, Profiler profiler, long cycleBudget,
+                                         long sampleInterval) {
+        short[] ram = emulator.ram();
+        long remaining = cycleBudget;
+        while (true) {
+            long before = emulator.cycles();
+            StopReason reason = emulator.run(Math.min(sampleInterval, remaining));
+            long cycles = emulator.cycles() - before;
+            profiler.sample(emulator.pc(), address -> ram[address], cycles);
+            remaining -= cycles;
+            if (reason != StopReason.BUDGET || remaining == 0) {
+                return reason;
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        try {
+            long cycleBudget = Long.MAX_VALUE;
+            boolean jit = false;
+            boolean profile = false;
+            long sampleInterval = 1000;
+            int top = 20;
+            Path stacksFile = null;
+            String hackFile = null;
+            for (String arg : args) {
+                if (arg.startsWith("--cycles=")) {
+                    cycleBudget = Long.parseLong(arg.substring("--cycles=".length()));
+                } else if (arg.equals("--jit")) {
+                    jit = true;
+                } else if (arg.equals("--profile")) {
+                    profile = true;
+                } else if (arg.startsWith("--sample=")) {
+                    sampleInterval = Long.parseLong(arg.substring("--sample=".length()));
+                } else if (arg.startsWith("--top=")) {
+                    top = Integer.parseInt(arg.substring("--top=".length()));
+                } else if (arg.startsWith("--stacks=")) {
+                    profile = true;
+                    stacksFile = Paths.get(arg.substring("--stacks=".length()));
+                } else {
+                    hackFile = arg;
+                }
+            }
+            if (hackFile == null || (jit && profile) || sampleInterval < 1) {
+                throw new IllegalArgumentException("Usage: CPUEmulator [--cycles=n] [--jit | --profile [--sample=n] "
+                        + "[--top=n] [--stacks=file]] program.hack");
+            }
+
+            StopReason reason;
+            int pc, a, d;
+            long cycles;
+            short[] ram;
+            long start;
+            Profiler profiler = null;
+            if (jit) {
+                JitCPUEmulator emulator = JitCPUEmulator.load(hackFile);
+                start = System.nanoTime();
+                reason = emulator.run(cycleBudget);
+                System.out.printf("Compiled %d regions (%d failed the check)%n",
+                        emulator.compiledRegions(), emulator.failedChecks());
+                pc = emulator.pc();
+                a = emulator.a();
+                d = emulator.d();
+                cycles = emulator.cycles();
+                ram = emulator.ram();
+            } else {
+                CPUEmulator emulator = CPUEmulator.load(hackFile);
+                if (profile) {
+                    // The source map of Xxx.hack is Xxx.hack.map, which the assembler writes with --source-map.
+                    Path mapFile = Paths.get(hackFile + ".map");
+                    profiler = Profiler.load(mapFile, emulator.rom().length, "cycles");
+                    emulator.setProfile(profiler.counts());
+                }
+                start = System.nanoTime();
+                reason = profiler == null ? emulator.run(cycleBudget)
+                        : runSampled(emulator, profiler, cycleBudget, sampleInterval);
+                pc = emulator.pc();
+                a = emulator.a();
+                d = emulator.d();
+                cycles = emulator.cycles();
+                ram = emulator.ram();
+            }
+            double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+
+            System.out.printf("Stopped (%s) at PC=%d after %d cycles in %.3f s (%.0f instructions/s)%n",
+                    reason, pc, cycles, seconds, cycles / seconds);
+            System.out.printf("A=%d D=%d%n", a, d);
+            for (int i = 0; i < 16; i++) {
+                System.out.printf("RAM[%d]=%d%n", i, ram[i]);
+            }
+            if (profiler != null) {
+                System.out.println();
+                profiler.report(System.out, top);
+                if (stacksFile != null) {
+                    profiler.writeStacks(stacksFile);
+                }
+            }
+        } catch (Exception ex) {
+            System.out.println("Error: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+}
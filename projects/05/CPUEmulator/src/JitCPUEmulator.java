@@ -0,0 +1,576 @@
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Executes Hack machine code by compiling the hot parts of the program into JVM classes.
+ * <p>
+ * The program is executed as a sequence of basic blocks: straight-line code that ends with a jump instruction.
+ * Cold blocks are interpreted. When a block has been entered HOT_THRESHOLD times, it is compiled together with the
+ * blocks reachable from it through constant jump targets (@LABEL followed by a jump, as the assembler resolves
+ * labels) into a region: a generated class whose method runs the blocks with A and D in local variables and jumps
+ * between them directly. A jump to a computed address (e.g. a function return) or out of the region returns to the
+ * interpreter, which dispatches to the region compiled for the target, if any.
+ * <p>
+ * The first execution of every region, for up to CHECKED_CYCLES cycles, is checked against the interpreter: the same
+ * cycles are interpreted from the same state, and if the results differ the region is dropped and its blocks are
+ * interpreted from then on.
+ */
+public class JitCPUEmulator {
+
+    // The number of entries into a block before it is compiled.
+    private static final int HOT_THRESHOLD = 100;
+    // Limits on the size of the generated code. The JVM doesn't compile methods of more than 8000 bytes of bytecode.
+    private static final int MAX_BLOCK_LENGTH = 64;
+    private static final int MAX_REGION_LENGTH = 400;
+    // The number of cycles of the first execution of a region that are checked against the interpreter.
+    private static final int CHECKED_CYCLES = 10000;
+    // The instruction fields.
+    private static final int DEST_M = 0b001 << 3;
+    private static final int DEST_D = 0b010 << 3;
+    private static final int DEST_A = 0b100 << 3;
+    private static final int JUMP = 0b111;
+    private static final int A_BIT = 1 << 12;
+
+    // The local variables of the generated method.
+    private static final int CPU = 1;
+    private static final int CYCLES = 2;
+    private static final int END_CYCLE = 4;
+    private static final int RAM = 6;
+    private static final int A = 7;
+    private static final int D = 8;
+    private static final int OUT = 9;
+    private static final int NEXT = 10;
+
+    // The conditional jumps on the ALU output, indexed by the jump field: JGT, JEQ, JGE, JLT, JNE and JLE.
+    private static final int[] JUMP_OPCODES = {
+            -1, Opcodes.IFGT, Opcodes.IFEQ, Opcodes.IFGE, Opcodes.IFLT, Opcodes.IFNE, Opcodes.IFLE, -1
+    };
+
+    /**
+     * A compiled region. run() executes blocks from the one at cpu.pc while the cycle budget allows, and returns the
+     * new cycle count. If there isn't enough budget left for the first block, it returns the given cycle count.
+     */
+    interface Region {
+        long run(JitCPUEmulator cpu, long cycles, long endCycle);
+    }
+
+    private final short[] rom;
+    private final boolean[] haltPoints;
+    private final Region[] regions;
+    private final int[] heat;
+    // The regions that haven't been checked yet, and the entry points of each.
+    private final Map<Region, int[]> uncheckedRegions = new IdentityHashMap<>();
+    private final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+    // The machine state. The generated classes are nestmates of this class and access these fields directly.
+    private final short[] ram;
+    private int a;
+    private int d;
+    private int pc;
+    private long cycles;
+    private int compiledRegions;
+    private int failedChecks;
+
+    /**
+     * Loads the given program into the ROM and resets the computer.
+     */
+    public JitCPUEmulator(short[] rom) {
+        if (rom.length > CPUEmulator.RAM_SIZE) {
+            throw new IllegalArgumentException("The program doesn't fit in the ROM");
+        }
+        this.rom = rom.clone();
+        this.haltPoints = new boolean[rom.length];
+        this.regions = new Region[rom.length];
+        this.heat = new int[rom.length];
+        this.ram = new short[CPUEmulator.RAM_SIZE];
+
+        for (int i = 0; i < rom.length; i++) {
+            haltPoints[i] = CPUEmulator.isHaltPoint(rom, i);
+        }
+    }
+
+    /**
+     * Loads the given .hack file, in any of the assembler's output formats.
+     */
+    public static JitCPUEmulator load(String hackFile) throws IOException {
+        return new JitCPUEmulator(HackImage.load(hackFile));
+    }
+
+    /**
+     * Sets the PC, the registers, the RAM and the cycle counter to zero. The compiled regions are kept.
+     */
+    public void reset() {
+        a = 0;
+        d = 0;
+        pc = 0;
+        cycles = 0;
+        Arrays.fill(ram, (short) 0);
+    }
+
+    /**
+     * Executes instructions until the given number of cycles was executed, or until a halting loop or the end of
+     * the ROM is reached. Breakpoints aren't supported; use CPUEmulator to debug.
+     */
+    public CPUEmulator.StopReason run(long cycleBudget) {
+        final long endCycle = cycleBudget > Long.MAX_VALUE - cycles ? Long.MAX_VALUE : cycles + cycleBudget;
+
+        while (cycles < endCycle) {
+            if (pc >= rom.length) {
+                return CPUEmulator.StopReason.PC_OUT_OF_ROM;
+            }
+            if (haltPoints[pc] && a == pc - 1) {
+                return CPUEmulator.StopReason.HALT;
+            }
+
+            Region region = regions[pc];
+            if (region != null) {
+                long start = cycles;
+                if (!uncheckedRegions.isEmpty() && uncheckedRegions.containsKey(region)) {
+                    runChecked(region, endCycle);
+                } else {
+                    cycles = region.run(this, cycles, endCycle);
+                }
+                if (cycles != start) {
+                    continue;
+                }
+                // There isn't enough budget left for the whole block; interpret it.
+            } else if (heat[pc]++ == HOT_THRESHOLD && !haltPoints[pc]) {
+                compile(pc);
+                continue;
+            }
+
+            interpretBlock(endCycle);
+        }
+        return CPUEmulator.StopReason.BUDGET;
+    }
+
+    // Interprets instructions up to and including the next jump instruction, stopping early at the end of the
+    // budget, at a halting loop or at the end of the ROM.
+    private void interpretBlock(long endCycle) {
+        boolean jump;
+        do {
+            jump = rom[pc] < 0 && (rom[pc] & JUMP) != 0;
+            step();
+        } while (!jump && cycles < endCycle && pc < rom.length && !haltPoints[pc]);
+    }
+
+    // Executes the single instruction at the PC.
+    private void step() {
+        int instruction = rom[pc];
+        cycles++;
+        if (instruction >= 0) {
+            a = instruction;
+            pc++;
+            return;
+        }
+
+        int out = CPUEmulator.alu(instruction >>> 6, d, (instruction & A_BIT) != 0 ? ram[a & 0x7FFF] : a);
+        // M and the jump target are the A before the update.
+        int target = a & 0x7FFF;
+        if ((instruction & DEST_M) != 0) ram[target] = (short) out;
+        if ((instruction & DEST_A) != 0) a = out;
+        if ((instruction & DEST_D) != 0) d = out;
+        if (((instruction >>> (out < 0 ? 2 : out == 0 ? 1 : 0)) & 1) != 0) {
+            pc = target;
+        } else {
+            pc++;
+        }
+    }
+
+    // Runs the region, then runs the same cycles again with the interpreter from the same state, and compares.
+    private void runChecked(Region region, long endCycle) {
+        int[] entries = uncheckedRegions.remove(region);
+        short[] initialRam = ram.clone();
+        int initialA = a;
+        int initialD = d;
+        int initialPc = pc;
+        long initialCycles = cycles;
+
+        long compiledCycles = region.run(this, cycles, Math.min(endCycle, cycles + CHECKED_CYCLES));
+        if (compiledCycles == initialCycles) {
+            // Nothing was executed, so there is nothing to check yet.
+            uncheckedRegions.put(region, entries);
+            return;
+        }
+        short[] compiledRam = ram.clone();
+        int compiledA = a;
+        int compiledD = d;
+        int compiledPc = pc;
+
+        System.arraycopy(initialRam, 0, ram, 0, ram.length);
+        a = initialA;
+        d = initialD;
+        pc = initialPc;
+        cycles = initialCycles;
+        while (cycles < compiledCycles) {
+            step();
+        }
+
+        if (a != compiledA || d != compiledD || pc != compiledPc || !Arrays.equals(ram, compiledRam)) {
+            failedChecks++;
+            for (int entry : entries) {
+                regions[entry] = null;
+                heat[entry] = Integer.MIN_VALUE;
+            }
+        }
+    }
+
+    // A basic block of the region being compiled.
+    private static final class Block {
+        final int start;
+        final int length;
+        // Whether the block ends with a jump instruction, and its target if it is a constant, or -1.
+        final boolean endsWithJump;
+        final int target;
+        final Label label = new Label();
+
+        Block(int start, int length, boolean endsWithJump, int target) {
+            this.start = start;
+            this.length = length;
+            this.endsWithJump = endsWithJump;
+            this.target = target;
+        }
+    }
+
+    // Compiles the region of the blocks reachable from the given address and installs it.
+    private void compile(int entry) {
+        // Collect the blocks, following the constant jump targets and the fall-through paths.
+        TreeMap<Integer, Block> blocks = new TreeMap<>();
+        List<Integer> pending = new ArrayList<>(List.of(entry));
+        int regionLength = 0;
+        while (!pending.isEmpty() && regionLength < MAX_REGION_LENGTH) {
+            int start = pending.remove(pending.size() - 1);
+            if (blocks.containsKey(start)) {
+                continue;
+            }
+            Block block = scanBlock(start);
+            blocks.put(start, block);
+            regionLength += block.length;
+
+            int next = start + block.length;
+            boolean unconditional = block.endsWithJump && (rom[next - 1] & JUMP) == JUMP;
+            if (!unconditional) {
+                addSuccessor(pending, next);
+            }
+            if (block.target != -1) {
+                addSuccessor(pending, block.target);
+            }
+        }
+
+        Region region;
+        try {
+            Class<?> type = lookup.defineHiddenClass(generate(blocks), true, MethodHandles.Lookup.ClassOption.NESTMATE)
+                    .lookupClass();
+            region = (Region) type.getConstructor().newInstance();
+        } catch (ReflectiveOperationException ex) {
+            throw new RuntimeException("Can't load the compiled region at " + entry, ex);
+        }
+
+        List<Integer> entries = new ArrayList<>();
+        for (int start : blocks.keySet()) {
+            if (regions[start] == null) {
+                regions[start] = region;
+                entries.add(start);
+            }
+        }
+        uncheckedRegions.put(region, entries.stream().mapToInt(Integer::intValue).toArray());
+        compiledRegions++;
+    }
+
+    private void addSuccessor(List<Integer> pending, int address) {
+        if (address < rom.length && !haltPoints[address]) {
+            pending.add(address);
+        }
+    }
+
+    // Finds the extent of the block that starts at the given address. The block doesn't include the jump of a
+    // halting loop, so that the interpreter can detect it.
+    private Block scanBlock(int start) {
+        int knownA = -1;
+        int i = start;
+        while (i < rom.length && i - start < MAX_BLOCK_LENGTH && (i == start || !haltPoints[i])) {
+            int instruction = rom[i++];
+            if (instruction >= 0) {
+                knownA = instruction;
+            } else {
+                // A jump goes to the A before the instruction updates it.
+                if ((instruction & JUMP) != 0) {
+                    return new Block(start, i - start, true, knownA);
+                }
+                if ((instruction & DEST_A) != 0) {
+                    knownA = -1;
+                }
+            }
+        }
+        return new Block(start, i - start, false, -1);
+    }
+
+    // Generates the class of a region:
+    //
+    //     long run(JitCPUEmulator cpu, long cycles, long endCycle) {
+    //         short[] ram = cpu.ram; int a = cpu.a; int d = cpu.d;
+    //         switch (cpu.pc) { case <block>: goto <block>; ... }
+    //     <block>:
+    //         if (cycles + <length> > endCycle) { next = <block>; goto exit; }
+    //         cycles += <length>;
+    //         <instructions>
+    //         goto <successor>, or next = <address>; goto exit;
+    //         ...
+    //     exit:
+    //         cpu.a = a; cpu.d = d; cpu.pc = next;
+    //         return cycles;
+    //     }
+    private byte[] generate(TreeMap<Integer, Block> blocks) {
+        String owner = "JitCPUEmulator";
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+        cw.visit(Opcodes.V17, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC, "JitRegion", null,
+                "java/lang/Object", new String[]{"JitCPUEmulator$Region"});
+
+        MethodVisitor init = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        init.visitCode();
+        init.visitVarInsn(Opcodes.ALOAD, 0);
+        init.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        init.visitInsn(Opcodes.RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "run", "(L" + owner + ";JJ)J", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(Opcodes.ALOAD, CPU);
+        mv.visitFieldInsn(Opcodes.GETFIELD, owner, "ram", "[S");
+        mv.visitVarInsn(Opcodes.ASTORE, RAM);
+        mv.visitVarInsn(Opcodes.ALOAD, CPU);
+        mv.visitFieldInsn(Opcodes.GETFIELD, owner, "a", "I");
+        mv.visitVarInsn(Opcodes.ISTORE, A);
+        mv.visitVarInsn(Opcodes.ALOAD, CPU);
+        mv.visitFieldInsn(Opcodes.GETFIELD, owner, "d", "I");
+        mv.visitVarInsn(Opcodes.ISTORE, D);
+        mv.visitInsn(Opcodes.ICONST_0);
+        mv.visitVarInsn(Opcodes.ISTORE, OUT);
+
+        // Dispatch to the entry block. An unknown entry returns without executing anything.
+        Label exit = new Label();
+        Label unknownEntry = new Label();
+        int[] keys = blocks.keySet().stream().mapToInt(Integer::intValue).toArray();
+        Label[] labels = blocks.values().stream().map(block -> block.label).toArray(Label[]::new);
+        mv.visitVarInsn(Opcodes.ALOAD, CPU);
+        mv.visitFieldInsn(Opcodes.GETFIELD, owner, "pc", "I");
+        mv.visitLookupSwitchInsn(unknownEntry, keys, labels);
+        mv.visitLabel(unknownEntry);
+        mv.visitVarInsn(Opcodes.LLOAD, CYCLES);
+        mv.visitInsn(Opcodes.LRETURN);
+
+        for (Block block : blocks.values()) {
+            mv.visitLabel(block.label);
+
+            // Check the budget.
+            Label body = new Label();
+            mv.visitVarInsn(Opcodes.LLOAD, CYCLES);
+            mv.visitLdcInsn((long) block.length);
+            mv.visitInsn(Opcodes.LADD);
+            mv.visitVarInsn(Opcodes.LLOAD, END_CYCLE);
+            mv.visitInsn(Opcodes.LCMP);
+            mv.visitJumpInsn(Opcodes.IFLE, body);
+            exitTo(mv, block.start, exit);
+            mv.visitLabel(body);
+            mv.visitVarInsn(Opcodes.LLOAD, CYCLES);
+            mv.visitLdcInsn((long) block.length);
+            mv.visitInsn(Opcodes.LADD);
+            mv.visitVarInsn(Opcodes.LSTORE, CYCLES);
+
+            int end = block.start + block.length;
+            for (int i = block.start; i < end; i++) {
+                if (i == end - 1 && block.endsWithJump && block.target == -1) {
+                    // The target is the A before the jump instruction updates it.
+                    mv.visitVarInsn(Opcodes.ILOAD, A);
+                    mv.visitIntInsn(Opcodes.SIPUSH, 0x7FFF);
+                    mv.visitInsn(Opcodes.IAND);
+                    mv.visitVarInsn(Opcodes.ISTORE, NEXT);
+                }
+                generateInstruction(mv, rom[i]);
+            }
+
+            // Go to the successor.
+            int next = end;
+            if (block.endsWithJump) {
+                int jump = rom[end - 1] & JUMP;
+                Label taken = new Label();
+                if (jump != JUMP) {
+                    mv.visitVarInsn(Opcodes.ILOAD, OUT);
+                    mv.visitJumpInsn(JUMP_OPCODES[jump], taken);
+                    goTo(mv, blocks, next, exit);
+                }
+                mv.visitLabel(taken);
+                if (block.target != -1) {
+                    goTo(mv, blocks, block.target, exit);
+                } else {
+                    mv.visitJumpInsn(Opcodes.GOTO, exit);
+                }
+            } else {
+                goTo(mv, blocks, next, exit);
+            }
+        }
+
+        mv.visitLabel(exit);
+        mv.visitVarInsn(Opcodes.ALOAD, CPU);
+        mv.visitVarInsn(Opcodes.ILOAD, A);
+        mv.visitFieldInsn(Opcodes.PUTFIELD, owner, "a", "I");
+        mv.visitVarInsn(Opcodes.ALOAD, CPU);
+        mv.visitVarInsn(Opcodes.ILOAD, D);
+        mv.visitFieldInsn(Opcodes.PUTFIELD, owner, "d", "I");
+        mv.visitVarInsn(Opcodes.ALOAD, CPU);
+        mv.visitVarInsn(Opcodes.ILOAD, NEXT);
+        mv.visitFieldInsn(Opcodes.PUTFIELD, owner, "pc", "I");
+        mv.visitVarInsn(Opcodes.LLOAD, CYCLES);
+        mv.visitInsn(Opcodes.LRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static void goTo(MethodVisitor mv, TreeMap<Integer, Block> blocks, int address, Label exit) {
+        Block block = blocks.get(address);
+        if (block != null) {
+            mv.visitJumpInsn(Opcodes.GOTO, block.label);
+        } else {
+            exitTo(mv, address, exit);
+        }
+    }
+
+    private static void exitTo(MethodVisitor mv, int address, Label exit) {
+        mv.visitLdcInsn(address);
+        mv.visitVarInsn(Opcodes.ISTORE, NEXT);
+        mv.visitJumpInsn(Opcodes.GOTO, exit);
+    }
+
+    // Generates the code of an instruction. The ALU output of a C-instruction is left in OUT for the jump.
+    private static void generateInstruction(MethodVisitor mv, int instruction) {
+        if (instruction >= 0) {
+            mv.visitIntInsn(Opcodes.SIPUSH, instruction);
+            mv.visitVarInsn(Opcodes.ISTORE, A);
+            return;
+        }
+        if ((instruction & (DEST_A | DEST_D | DEST_M | JUMP)) == 0) {
+            return;
+        }
+
+        // The ALU, with the control bits zx, nx, zy, ny, f and no resolved at compile time.
+        int comp = instruction >>> 6;
+        if ((comp & 0b100000) != 0) {
+            mv.visitInsn(Opcodes.ICONST_0);
+        } else {
+            mv.visitVarInsn(Opcodes.ILOAD, D);
+        }
+        if ((comp & 0b010000) != 0) {
+            not(mv);
+        }
+        if ((comp & 0b001000) != 0) {
+            mv.visitInsn(Opcodes.ICONST_0);
+        } else if ((instruction & A_BIT) != 0) {
+            loadM(mv);
+        } else {
+            mv.visitVarInsn(Opcodes.ILOAD, A);
+        }
+        if ((comp & 0b000100) != 0) {
+            not(mv);
+        }
+        mv.visitInsn((comp & 0b000010) != 0 ? Opcodes.IADD : Opcodes.IAND);
+        if ((comp & 0b000001) != 0) {
+            not(mv);
+        }
+        mv.visitInsn(Opcodes.I2S);
+        mv.visitVarInsn(Opcodes.ISTORE, OUT);
+
+        // M is written at the address in A before A is updated, as in CPUEmulator.
+        if ((instruction & DEST_M) != 0) {
+            mv.visitVarInsn(Opcodes.ALOAD, RAM);
+            mv.visitVarInsn(Opcodes.ILOAD, A);
+            mv.visitIntInsn(Opcodes.SIPUSH, 0x7FFF);
+            mv.visitInsn(Opcodes.IAND);
+            mv.visitVarInsn(Opcodes.ILOAD, OUT);
+            mv.visitInsn(Opcodes.SASTORE);
+        }
+        if ((instruction & DEST_A) != 0) {
+            mv.visitVarInsn(Opcodes.ILOAD, OUT);
+            mv.visitVarInsn(Opcodes.ISTORE, A);
+        }
+        if ((instruction & DEST_D) != 0) {
+            mv.visitVarInsn(Opcodes.ILOAD, OUT);
+            mv.visitVarInsn(Opcodes.ISTORE, D);
+        }
+    }
+
+    private static void loadM(MethodVisitor mv) {
+        mv.visitVarInsn(Opcodes.ALOAD, RAM);
+        mv.visitVarInsn(Opcodes.ILOAD, A);
+        mv.visitIntInsn(Opcodes.SIPUSH, 0x7FFF);
+        mv.visitInsn(Opcodes.IAND);
+        mv.visitInsn(Opcodes.SALOAD);
+    }
+
+    private static void not(MethodVisitor mv) {
+        mv.visitInsn(Opcodes.ICONST_M1);
+        mv.visitInsn(Opcodes.IXOR);
+    }
+
+    /**
+     * Sets the value of the keyboard register, as if the key with the given code was pressed (0 for no key).
+     */
+    public void setKey(int keyCode) {
+        ram[CPUEmulator.KBD] = (short) keyCode;
+    }
+
+    /**
+     * Returns the RAM, including the screen memory map. Changes to the array are seen by the program.
+     */
+    public short[] ram() {
+        return ram;
+    }
+
+    public short[] rom() {
+        return rom.clone();
+    }
+
+    public int a() {
+        return a;
+    }
+
+    public int d() {
+        return d;
+    }
+
+    public int pc() {
+        return pc;
+    }
+
+    public long cycles() {
+        return cycles;
+    }
+
+    /**
+     * Returns the number of compiled regions.
+     */
+    public int compiledRegions() {
+        return compiledRegions;
+    }
+
+    /**
+     * Returns the number of compiled regions that gave different results than the interpreter and were dropped.
+     */
+    public int failedChecks() {
+        return failedChecks;
+    }
+}
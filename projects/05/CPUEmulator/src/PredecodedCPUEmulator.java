@@ -0,0 +1,522 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Executes Hack machine code from a pre-decoded instruction cache.
+ * When the ROM is loaded, each word is translated into a micro-op code and an operand, kept in parallel arrays.
+ * The common C-instructions get their own micro-ops, and the sequences the VM translator emits all the time
+ * (e.g. @SP / AM=M-1 / D=M) are fused into superinstructions that execute several instructions at once.
+ * The instructions are recognized by their encoding, as produced by Code.
+ * <p>
+ * A superinstruction is placed at the address of its first instruction only; the following addresses keep their
+ * own micro-ops, so a jump into the middle of a fused sequence still executes correctly.
+ */
+public class PredecodedCPUEmulator {
+
+    // The micro-ops. A single instruction:
+    private static final int LOAD_A = 0;          // @x
+    private static final int GENERIC = 1;         // any C-instruction
+    private static final int D_EQ_M = 2;          // D=M
+    private static final int D_EQ_A = 3;          // D=A
+    private static final int M_EQ_D = 4;          // M=D
+    private static final int A_EQ_M = 5;          // A=M
+    private static final int AM_EQ_M_MINUS_1 = 6; // AM=M-1
+    private static final int A_EQ_A_MINUS_1 = 7;  // A=A-1
+    private static final int A_EQ_M_MINUS_1 = 8;  // A=M-1
+    private static final int M_EQ_M_PLUS_1 = 9;   // M=M+1
+    private static final int M_EQ_M_MINUS_1 = 10; // M=M-1
+    private static final int M_EQ_D_PLUS_M = 11;  // M=D+M
+    private static final int M_EQ_M_MINUS_D = 12; // M=M-D
+    private static final int D_EQ_M_MINUS_D = 13; // D=M-D
+    private static final int D_EQ_D_PLUS_A = 14;  // D=D+A
+    private static final int D_EQ_D_PLUS_M = 15;  // D=D+M
+    private static final int M_EQ_0 = 16;         // M=0
+    private static final int M_EQ_MINUS_1 = 17;   // M=-1
+    private static final int JMP = 18;            // 0;JMP
+    private static final int D_JUMP = 19;         // D;JGT, D;JEQ, ... (operand: jump bits)
+    // Superinstructions:
+    private static final int POP_D = 20;          // @SP / AM=M-1 / D=M
+    private static final int PUSH_D = 21;         // @SP / A=M / M=D / @SP / M=M+1
+    private static final int LOAD_A_D_EQ_A = 22;  // @x / D=A
+    private static final int LOAD_A_D_EQ_M = 23;  // @x / D=M
+    private static final int LOAD_A_INC_M = 24;   // @x / M=M+1
+    private static final int GOTO = 25;           // @x / 0;JMP
+    private static final int D_JUMP_TO = 26;      // @x / D;Jxx (operand: x | jump bits << 16)
+    private static final int HALT = 27;           // @x / 0;JMP at address x, a halting loop
+    // Control:
+    private static final int BREAKPOINT = 28;
+    private static final int OUT_OF_ROM = 29;
+
+    // The number of instructions executed by each micro-op.
+    private static final int[] SPANS = {
+            1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
+            3, 5, 2, 2, 2, 2, 2, 1, 0, 0
+    };
+    private static final int MAX_SPAN = 5;
+
+    private static final short W_D_EQ_M = c("D", "M", "null");
+    private static final short W_D_EQ_A = c("D", "A", "null");
+    private static final short W_M_EQ_D = c("M", "D", "null");
+    private static final short W_A_EQ_M = c("A", "M", "null");
+    private static final short W_AM_EQ_M_MINUS_1 = c("AM", "M-1", "null");
+    private static final short W_A_EQ_A_MINUS_1 = c("A", "A-1", "null");
+    private static final short W_A_EQ_M_MINUS_1 = c("A", "M-1", "null");
+    private static final short W_M_EQ_M_PLUS_1 = c("M", "M+1", "null");
+    private static final short W_M_EQ_M_MINUS_1 = c("M", "M-1", "null");
+    private static final short W_M_EQ_D_PLUS_M = c("M", "D+M", "null");
+    private static final short W_M_EQ_M_MINUS_D = c("M", "M-D", "null");
+    private static final short W_D_EQ_M_MINUS_D = c("D", "M-D", "null");
+    private static final short W_D_EQ_D_PLUS_A = c("D", "D+A", "null");
+    private static final short W_D_EQ_D_PLUS_M = c("D", "D+M", "null");
+    private static final short W_M_EQ_0 = c("M", "0", "null");
+    private static final short W_M_EQ_MINUS_1 = c("M", "-1", "null");
+    private static final short W_JMP = c("null", "0", "JMP");
+    private static final short W_D_NO_JUMP = c("null", "D", "null");
+    private static final int SP = 0;
+
+    private final short[] rom;
+    // The micro-op and the operand at each address. The arrays cover the whole 15-bit address space, and the
+    // addresses past the end of the ROM hold OUT_OF_ROM.
+    private final byte[] ops;
+    private final int[] operands;
+    private final boolean[] breakpoints;
+    private final short[] ram;
+    private int a;
+    private int d;
+    private int pc;
+    private long cycles;
+
+    /**
+     * Loads the given program into the ROM and resets the computer.
+     */
+    public PredecodedCPUEmulator(short[] rom) {
+        if (rom.length > CPUEmulator.RAM_SIZE) {
+            throw new IllegalArgumentException("The program doesn't fit in the ROM");
+        }
+        this.rom = rom.clone();
+        this.ops = new byte[CPUEmulator.RAM_SIZE + 1];
+        this.operands = new int[CPUEmulator.RAM_SIZE + 1];
+        this.breakpoints = new boolean[CPUEmulator.RAM_SIZE + 1];
+        this.ram = new short[CPUEmulator.RAM_SIZE];
+
+        Arrays.fill(ops, (byte) OUT_OF_ROM);
+        for (int i = 0; i < rom.length; i++) {
+            decode(i);
+        }
+    }
+
+    /**
+     * Loads the given .hack file, in any of the assembler's output formats.
+     */
+    public static PredecodedCPUEmulator load(String hackFile) throws IOException {
+        return new PredecodedCPUEmulator(HackImage.load(hackFile));
+    }
+
+    private static short c(String dest, String comp, String jump) {
+        return (short) Code.cInstruction(dest, comp, jump);
+    }
+
+    // Decodes the instruction at the given address, fusing it with the following instructions if possible.
+    private void decode(int address) {
+        if (breakpoints[address]) {
+            ops[address] = BREAKPOINT;
+            return;
+        }
+
+        int op = fuse(address);
+        if (op == -1) {
+            op = single(rom[address]);
+            operands[address] = op == LOAD_A || op == D_JUMP || op == GENERIC ? rom[address] & 0x7FFF : 0;
+        }
+        ops[address] = (byte) op;
+    }
+
+    private static int single(short word) {
+        if (word >= 0) {
+            return LOAD_A;
+        }
+        if (word == W_D_EQ_M) return D_EQ_M;
+        if (word == W_D_EQ_A) return D_EQ_A;
+        if (word == W_M_EQ_D) return M_EQ_D;
+        if (word == W_A_EQ_M) return A_EQ_M;
+        if (word == W_AM_EQ_M_MINUS_1) return AM_EQ_M_MINUS_1;
+        if (word == W_A_EQ_A_MINUS_1) return A_EQ_A_MINUS_1;
+        if (word == W_A_EQ_M_MINUS_1) return A_EQ_M_MINUS_1;
+        if (word == W_M_EQ_M_PLUS_1) return M_EQ_M_PLUS_1;
+        if (word == W_M_EQ_M_MINUS_1) return M_EQ_M_MINUS_1;
+        if (word == W_M_EQ_D_PLUS_M) return M_EQ_D_PLUS_M;
+        if (word == W_M_EQ_M_MINUS_D) return M_EQ_M_MINUS_D;
+        if (word == W_D_EQ_M_MINUS_D) return D_EQ_M_MINUS_D;
+        if (word == W_D_EQ_D_PLUS_A) return D_EQ_D_PLUS_A;
+        if (word == W_D_EQ_D_PLUS_M) return D_EQ_D_PLUS_M;
+        if (word == W_M_EQ_0) return M_EQ_0;
+        if (word == W_M_EQ_MINUS_1) return M_EQ_MINUS_1;
+        if (word == W_JMP) return JMP;
+        if ((word & ~0b111) == W_D_NO_JUMP) return D_JUMP;
+        return GENERIC;
+    }
+
+    // Returns the superinstruction that starts at the given address and sets its operand, or -1 if none does.
+    // A superinstruction may not cover a breakpoint.
+    private int fuse(int address) {
+        short word = rom[address];
+        if (word < 0) {
+            return -1;
+        }
+
+        if (word == SP && matches(address, W_AM_EQ_M_MINUS_1, W_D_EQ_M)) {
+            return POP_D;
+        }
+        if (word == SP && matches(address, W_A_EQ_M, W_M_EQ_D, (short) SP, W_M_EQ_M_PLUS_1)) {
+            return PUSH_D;
+        }
+
+        operands[address] = word;
+        if (matches(address, W_D_EQ_A)) {
+            return LOAD_A_D_EQ_A;
+        }
+        if (matches(address, W_D_EQ_M)) {
+            return LOAD_A_D_EQ_M;
+        }
+        if (matches(address, W_M_EQ_M_PLUS_1)) {
+            return LOAD_A_INC_M;
+        }
+        if (word == address && address + 1 < rom.length && !breakpoints[address + 1]
+                && CPUEmulator.isHaltPoint(rom, address + 1)) {
+            return HALT;
+        }
+        if (matches(address, W_JMP)) {
+            return GOTO;
+        }
+        if (address + 1 < rom.length && !breakpoints[address + 1] && (rom[address + 1] & ~0b111) == W_D_NO_JUMP) {
+            operands[address] = word | (rom[address + 1] & 0b111) << 16;
+            return D_JUMP_TO;
+        }
+        return -1;
+    }
+
+    // Are the instructions after the given address the given words, with no breakpoints on them?
+    private boolean matches(int address, short... words) {
+        if (address + words.length >= rom.length) {
+            return false;
+        }
+        for (int i = 0; i < words.length; i++) {
+            if (rom[address + 1 + i] != words[i] || breakpoints[address + 1 + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets the PC, the registers, the RAM and the cycle counter to zero.
+     */
+    public void reset() {
+        a = 0;
+        d = 0;
+        pc = 0;
+        cycles = 0;
+        Arrays.fill(ram, (short) 0);
+    }
+
+    /**
+     * Executes instructions until the given number of cycles was executed, or until a breakpoint, a halting loop
+     * or the end of the ROM is reached.
+     */
+    public CPUEmulator.StopReason run(long cycleBudget) {
+        final long endCycle = cycleBudget > Long.MAX_VALUE - cycles ? Long.MAX_VALUE : cycles + cycleBudget;
+
+        final long lastFusedCycle = endCycle - MAX_SPAN;
+
+        // The instruction at which execution resumes doesn't stop on its breakpoint again.
+        boolean resumed = true;
+
+        while (cycles < endCycle) {
+            CPUEmulator.StopReason reason = stopReason(resumed);
+            if (reason != null) {
+                return reason;
+            }
+
+            // Step over the instruction at which execution resumes, and finish the last few cycles one instruction
+            // at a time, so the budget isn't exceeded by a superinstruction.
+            if (resumed || cycles > lastFusedCycle) {
+                step();
+                resumed = false;
+                continue;
+            }
+
+            reason = runFused(lastFusedCycle);
+            if (reason != CPUEmulator.StopReason.BUDGET) {
+                return reason;
+            }
+        }
+        return CPUEmulator.StopReason.BUDGET;
+    }
+
+    // Returns the reason to stop before the instruction at the PC, or null, checking in the same order as CPUEmulator.
+    private CPUEmulator.StopReason stopReason(boolean resumed) {
+        if (pc >= rom.length) {
+            return CPUEmulator.StopReason.PC_OUT_OF_ROM;
+        }
+        if (breakpoints[pc] && !resumed) {
+            return CPUEmulator.StopReason.BREAKPOINT;
+        }
+        if (a == pc - 1 && CPUEmulator.isHaltPoint(rom, pc)) {
+            return CPUEmulator.StopReason.HALT;
+        }
+        return null;
+    }
+
+    // Runs the micro-ops while at least MAX_SPAN cycles are left before the given cycle.
+    private CPUEmulator.StopReason runFused(long lastCycle) {
+        final byte[] ops = this.ops;
+        final int[] operands = this.operands;
+        final short[] ram = this.ram;
+        int a = this.a;
+        int d = this.d;
+        int pc = this.pc;
+        long cycles = this.cycles;
+        CPUEmulator.StopReason reason = CPUEmulator.StopReason.BUDGET;
+
+        loop:
+        while (cycles <= lastCycle) {
+            int op = ops[pc];
+            cycles += SPANS[op];
+            switch (op) {
+                case LOAD_A:
+                    a = operands[pc];
+                    pc++;
+                    break;
+                case GENERIC: {
+                    int instruction = operands[pc];
+                    int out = CPUEmulator.alu(instruction >>> 6, d, (instruction & (1 << 12)) != 0 ? ram[a & 0x7FFF] : a);
+                    // M and the jump target are the A before the update.
+                    int target = a & 0x7FFF;
+                    if ((instruction & 0b001000) != 0) ram[target] = (short) out;
+                    if ((instruction & 0b100000) != 0) a = out;
+                    if ((instruction & 0b010000) != 0) d = out;
+                    if (((instruction >>> (out < 0 ? 2 : out == 0 ? 1 : 0)) & 1) != 0) {
+                        pc = target;
+                    } else {
+                        pc++;
+                    }
+                    break;
+                }
+                case D_EQ_M:
+                    d = ram[a & 0x7FFF];
+                    pc++;
+                    break;
+                case D_EQ_A:
+                    d = a;
+                    pc++;
+                    break;
+                case M_EQ_D:
+                    ram[a & 0x7FFF] = (short) d;
+                    pc++;
+                    break;
+                case A_EQ_M:
+                    a = ram[a & 0x7FFF];
+                    pc++;
+                    break;
+                case AM_EQ_M_MINUS_1: {
+                    short out = (short) (ram[a & 0x7FFF] - 1);
+                    ram[a & 0x7FFF] = out;
+                    a = out;
+                    pc++;
+                    break;
+                }
+                case A_EQ_A_MINUS_1:
+                    a = (short) (a - 1);
+                    pc++;
+                    break;
+                case A_EQ_M_MINUS_1:
+                    a = (short) (ram[a & 0x7FFF] - 1);
+                    pc++;
+                    break;
+                case M_EQ_M_PLUS_1:
+                    ram[a & 0x7FFF]++;
+                    pc++;
+                    break;
+                case M_EQ_M_MINUS_1:
+                    ram[a & 0x7FFF]--;
+                    pc++;
+                    break;
+                case M_EQ_D_PLUS_M:
+                    ram[a & 0x7FFF] += (short) d;
+                    pc++;
+                    break;
+                case M_EQ_M_MINUS_D:
+                    ram[a & 0x7FFF] -= (short) d;
+                    pc++;
+                    break;
+                case D_EQ_M_MINUS_D:
+                    d = (short) (ram[a & 0x7FFF] - d);
+                    pc++;
+                    break;
+                case D_EQ_D_PLUS_A:
+                    d = (short) (d + a);
+                    pc++;
+                    break;
+                case D_EQ_D_PLUS_M:
+                    d = (short) (d + ram[a & 0x7FFF]);
+                    pc++;
+                    break;
+                case M_EQ_0:
+                    ram[a & 0x7FFF] = 0;
+                    pc++;
+                    break;
+                case M_EQ_MINUS_1:
+                    ram[a & 0x7FFF] = -1;
+                    pc++;
+                    break;
+                case JMP:
+                    pc = a & 0x7FFF;
+                    break;
+                case D_JUMP:
+                    if (((operands[pc] >>> (d < 0 ? 2 : d == 0 ? 1 : 0)) & 1) != 0) {
+                        pc = a & 0x7FFF;
+                    } else {
+                        pc++;
+                    }
+                    break;
+                case POP_D: {
+                    int sp = ram[SP] - 1;
+                    ram[SP] = (short) sp;
+                    a = (short) sp;
+                    d = ram[sp & 0x7FFF];
+                    pc += 3;
+                    break;
+                }
+                case PUSH_D:
+                    ram[ram[SP] & 0x7FFF] = (short) d;
+                    ram[SP]++;
+                    a = SP;
+                    pc += 5;
+                    break;
+                case LOAD_A_D_EQ_A:
+                    a = operands[pc];
+                    d = a;
+                    pc += 2;
+                    break;
+                case LOAD_A_D_EQ_M:
+                    a = operands[pc];
+                    d = ram[a];
+                    pc += 2;
+                    break;
+                case LOAD_A_INC_M:
+                    a = operands[pc];
+                    ram[a]++;
+                    pc += 2;
+                    break;
+                case GOTO:
+                    a = operands[pc];
+                    pc = a;
+                    break;
+                case D_JUMP_TO: {
+                    int operand = operands[pc];
+                    a = operand & 0x7FFF;
+                    if (((operand >>> (d < 0 ? 18 : d == 0 ? 17 : 16)) & 1) != 0) {
+                        pc = a;
+                    } else {
+                        pc += 2;
+                    }
+                    break;
+                }
+                case HALT:
+                    a = operands[pc];
+                    pc++;
+                    reason = CPUEmulator.StopReason.HALT;
+                    break loop;
+                case BREAKPOINT:
+                    cycles -= SPANS[op];
+                    reason = CPUEmulator.StopReason.BREAKPOINT;
+                    break loop;
+                default:
+                    reason = CPUEmulator.StopReason.PC_OUT_OF_ROM;
+                    break loop;
+            }
+        }
+
+        this.a = a;
+        this.d = d;
+        this.pc = pc;
+        this.cycles = cycles;
+        return reason;
+    }
+
+    // Executes the single instruction at the PC, decoding it from the ROM.
+    private void step() {
+        int instruction = rom[pc];
+        cycles++;
+        if (instruction >= 0) {
+            a = instruction;
+            pc++;
+            return;
+        }
+
+        int out = CPUEmulator.alu(instruction >>> 6, d, (instruction & (1 << 12)) != 0 ? ram[a & 0x7FFF] : a);
+        int target = a & 0x7FFF;
+        if ((instruction & 0b001000) != 0) ram[target] = (short) out;
+        if ((instruction & 0b100000) != 0) a = out;
+        if ((instruction & 0b010000) != 0) d = out;
+        if (((instruction >>> (out < 0 ? 2 : out == 0 ? 1 : 0)) & 1) != 0) {
+            pc = target;
+        } else {
+            pc++;
+        }
+    }
+
+    /**
+     * Sets a breakpoint: run() stops before executing the instruction at the given ROM address.
+     */
+    public void setBreakpoint(int address) {
+        breakpoints[address] = true;
+        redecode(address);
+    }
+
+    public void clearBreakpoint(int address) {
+        breakpoints[address] = false;
+        redecode(address);
+    }
+
+    // Decodes again the instructions whose superinstructions may cover the given address.
+    private void redecode(int address) {
+        for (int i = Math.max(0, address - MAX_SPAN + 1); i <= address && i < rom.length; i++) {
+            decode(i);
+        }
+    }
+
+    /**
+     * Simulates a key press (or release, with key 0) on the memory-mapped keyboard.
+     */
+    public void setKey(int key) {
+        ram[CPUEmulator.KBD] = (short) key;
+    }
+
+    /**
+     * Returns the RAM itself, so tests and tools can read and poke it.
+     */
+    public short[] ram() {
+        return ram;
+    }
+
+    public short[] rom() {
+        return rom;
+    }
+
+    public int a() {
+        return a;
+    }
+
+    public int d() {
+        return d;
+    }
+
+    public int pc() {
+        return pc;
+    }
+
+    public long cycles() {
+        return cycles;
+    }
+}
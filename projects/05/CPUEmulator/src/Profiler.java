@@ -0,0 +1,176 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Attributes the execution of a program translated from VM code to its VM functions and commands.
+ * The emulator counts the executions of each address into counts(), which the source map of the program maps to
+ * commands. The call stacks are sampled: every n cycles, the emulator's frames are walked from LCL through the saved
+ * LCLs and return addresses of the VM calling convention, so the samples can be drawn as a flame graph of collapsed
+ * stacks.
+ */
+public class Profiler {
+
+    private static final int RAM_SIZE = 32768;
+    private static final int LCL = 1;
+    private static final int STACK = 256;
+    // A frame holds the return address and the caller's LCL, ARG, THIS and THAT, below the callee's LCL.
+    private static final int FRAME_SIZE = 5;
+    private static final int MAX_DEPTH = 1024;
+
+    private final SourceMap map;
+    private final long[] counts;
+    private final String unit;
+    // The sampled cycles of each call stack, from the outermost function to the innermost, separated by ';'.
+    private final Map<String, Long> stacks = new HashMap<>();
+
+    /**
+     * Creates a profiler of a program of the given number of addresses with the given source map, whose cycles are
+     * named by the given unit, e.g. "cycles" for Hack instructions.
+     */
+    public Profiler(SourceMap map, int programSize, String unit) {
+        this.map = map;
+        this.counts = new long[programSize];
+        this.unit = unit;
+    }
+
+    /**
+     * Creates a profiler of a Hack program of the given number of addresses, with its binary source map, Xxx.hack.map,
+     * which the assembler writes with --source-map from the map of the VM translator.
+     */
+    public static Profiler load(Path mapFile, int programSize, String unit) throws IOException {
+        return new Profiler(SourceMap.read(mapFile), programSize, unit);
+    }
+
+    /**
+     * Returns the counters that the emulator increments, one per address.
+     */
+    public long[] counts() {
+        return counts;
+    }
+
+    /**
+     * Records a sample of the given number of cycles in the call stack of the machine whose next instruction is at
+     * the given address, and whose RAM the given function reads.
+     */
+    public void sample(int pc, IntUnaryOperator ram, long cycles) {
+        List<String> stack = new ArrayList<>();
+        int entry = pc < counts.length ? map.find(pc) : -1;
+        stack.add(entry < 0 ? "?" : map.function(entry));
+
+        // The walk ends at a frame whose return address is outside the VM code, e.g. in the bootstrap code. Code
+        // outside the VM code, e.g. a shared routine of VMTranslator's size mode, isn't called through a frame, so
+        // LCL isn't its own frame, and it's sampled without its callers.
+        int frame = entry < 0 || map.file(entry).isEmpty() ? 0 : ram.applyAsInt(LCL);
+        while (stack.size() < MAX_DEPTH && frame >= STACK + FRAME_SIZE && frame < RAM_SIZE) {
+            int returnAddress = ram.applyAsInt(frame - FRAME_SIZE);
+            if (returnAddress < 1 || returnAddress >= counts.length) {
+                break;
+            }
+            // The instruction before the return address is in the caller's call command.
+            int caller = map.find(returnAddress - 1);
+            if (caller < 0 || map.file(caller).isEmpty()) {
+                break;
+            }
+            stack.add(map.function(caller));
+            frame = ram.applyAsInt(frame - FRAME_SIZE + 1);
+        }
+
+        Collections.reverse(stack);
+        stacks.merge(String.join(";", stack), cycles, Long::sum);
+    }
+
+    /**
+     * Prints the given number of the hottest functions and commands. The cycles spent in a function itself are
+     * counted; the cycles spent in it and the functions it calls are sampled.
+     */
+    public void report(PrintStream out, int top) {
+        long total = 0;
+        int size = map.size();
+        long[] entryCounts = new long[size];
+        long unmapped = 0;
+        int entry = -1;
+        for (int address = 0; address < counts.length; address++) {
+            while (entry + 1 < size && map.address(entry + 1) <= address) {
+                entry++;
+            }
+            total += counts[address];
+            if (entry < 0) {
+                unmapped += counts[address];
+            } else {
+                entryCounts[entry] += counts[address];
+            }
+        }
+
+        Map<String, Long> self = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            self.merge(map.function(i), entryCounts[i], Long::sum);
+        }
+        if (unmapped > 0) {
+            self.put("?", unmapped);
+        }
+        Map<String, Long> inclusive = new HashMap<>();
+        long sampled = 0;
+        for (Map.Entry<String, Long> stack : stacks.entrySet()) {
+            sampled += stack.getValue();
+            Set<String> callers = new HashSet<>(Arrays.asList(stack.getKey().split(";")));
+            for (String function : callers) {
+                inclusive.merge(function, stack.getValue(), Long::sum);
+            }
+        }
+
+        out.printf("%d %s%n%n", total, unit);
+        out.printf("%7s %14s %7s  %s%n", "self%", "self " + unit, "total%", "function");
+        List<Map.Entry<String, Long>> hottestFunctions = new ArrayList<>(self.entrySet());
+        hottestFunctions.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        for (Map.Entry<String, Long> function : hottestFunctions.subList(0, Math.min(top, hottestFunctions.size()))) {
+            out.printf("%6.2f%% %14d %6.2f%%  %s%n", percent(function.getValue(), total), function.getValue(),
+                    percent(inclusive.getOrDefault(function.getKey(), 0L), sampled), function.getKey());
+        }
+
+        out.printf("%n%7s %14s  %s%n", "self%", unit, "command");
+        Integer[] hottestCommands = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            hottestCommands[i] = i;
+        }
+        Arrays.sort(hottestCommands, (a, b) -> Long.compare(entryCounts[b], entryCounts[a]));
+        for (int i = 0; i < Math.min(top, size); i++) {
+            int command = hottestCommands[i];
+            // The code outside the VM code is named by its function alone.
+            String text = map.file(command).isEmpty() ? map.function(command)
+                    : map.file(command) + ":" + map.line(command) + " " + map.function(command) + ": "
+                    + map.command(command);
+            out.printf("%6.2f%% %14d  %s%n", percent(entryCounts[command], total), entryCounts[command], text);
+        }
+    }
+
+    private static double percent(long part, long total) {
+        return total == 0 ? 0.0 : 100.0 * part / total;
+    }
+
+    /**
+     * Writes the sampled call stacks to the given file in the collapsed format of flame graph tools: one line per
+     * stack, with its functions from the outermost, separated by ';', and its cycles.
+     */
+    public void writeStacks(Path file) throws IOException {
+        List<String> keys = new ArrayList<>(stacks.keySet());
+        Collections.sort(keys);
+        try (BufferedWriter writer = Files.newBufferedWriter(file)) {
+            for (String stack : keys) {
+                writer.write(stack + " " + stacks.get(stack));
+                writer.newLine();
+            }
+        }
+    }
+}
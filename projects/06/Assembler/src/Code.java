@@ -3,121 +3,170 @@
  */
 public class Code {
 
+    private static final int C_INSTRUCTION_PREFIX = 0b111 << 13;
+
     /**
      * @return the binary code of the dest mnemonic
      */
     public static String dest(String mnemonic) {
+        return toBinary(destCode(mnemonic), 3);
+    }
+
+    /**
+     * @return the binary code of the comp mnemonic
+     */
+    public static String comp(String mnemonic) {
+        return toBinary(compCode(mnemonic), 7);
+    }
+
+    /**
+     * @return the binary code of the jump mnemonic
+     */
+    public static String jump(String mnemonic) {
+        return toBinary(jumpCode(mnemonic), 3);
+    }
+
+    /**
+     * @return the 16-bit word of the A-instruction @address
+     */
+    public static int aInstruction(int address) {
+        if (address < 0 || address > 0x7FFF) {
+            throw new RuntimeException("Illegal address: " + address);
+        }
+        return address;
+    }
+
+    /**
+     * @return the 16-bit word of the C-instruction dest=comp;jump
+     */
+    public static int cInstruction(String dest, String comp, String jump) {
+        return C_INSTRUCTION_PREFIX | compCode(comp) << 6 | destCode(dest) << 3 | jumpCode(jump);
+    }
+
+    /**
+     * @return the 3-bit code of the dest mnemonic
+     */
+    public static int destCode(String mnemonic) {
         switch (mnemonic) {
             case "null":
-                return "000";
+                return 0b000;
             case "M":
-                return "001";
+                return 0b001;
             case "D":
-                return "010";
+                return 0b010;
             case "MD":
-                return "011";
+                return 0b011;
             case "A":
-                return "100";
+                return 0b100;
             case "AM":
-                return "101";
+                return 0b101;
             case "AD":
-                return "110";
+                return 0b110;
             case "AMD":
-                return "111";
-                default:
-                    throw new RuntimeException("Illegal dest mnemonic");
+                return 0b111;
+            default:
+                throw new RuntimeException("Illegal dest mnemonic");
         }
     }
 
     /**
-     * @return the binary code of the comp mnemonic
+     * @return the 7-bit code (a c1..c6) of the comp mnemonic
      */
-    public static String comp(String mnemonic) {
+    public static int compCode(String mnemonic) {
         switch (mnemonic) {
             case "0":
-                return "0101010";
+                return 0b0101010;
             case "1":
-                return "0111111";
+                return 0b0111111;
             case "-1":
-                return "0111010";
+                return 0b0111010;
             case "D":
-                return "0001100";
+                return 0b0001100;
             case "A":
-                return "0110000";
+                return 0b0110000;
             case "M":
-                return "1110000";
+                return 0b1110000;
             case "!D":
-                return "0001101";
+                return 0b0001101;
             case "!A":
-                return "0110001";
+                return 0b0110001;
             case "!M":
-                return "1110001";
+                return 0b1110001;
             case "-D":
-                return "0001111";
+                return 0b0001111;
             case "-A":
-                return "0110011";
+                return 0b0110011;
             case "-M":
-                return "1110011";
+                return 0b1110011;
             case "D+1":
-                return "0011111";
+                return 0b0011111;
             case "A+1":
-                return "0110111";
+                return 0b0110111;
             case "M+1":
-                return "1110111";
+                return 0b1110111;
             case "D-1":
-                return "0001110";
+                return 0b0001110;
             case "A-1":
-                return "0110010";
+                return 0b0110010;
             case "M-1":
-                return "1110010";
+                return 0b1110010;
             case "D+A":
-                return "0000010";
+                return 0b0000010;
             case "D+M":
-                return "1000010";
+                return 0b1000010;
             case "D-A":
-                return "0010011";
+                return 0b0010011;
             case "D-M":
-                return "1010011";
+                return 0b1010011;
             case "A-D":
-                return "0000111";
+                return 0b0000111;
             case "M-D":
-                return "1000111";
+                return 0b1000111;
             case "D&A":
-                return "0000000";
+                return 0b0000000;
             case "D&M":
-                return "1000000";
+                return 0b1000000;
             case "D|A":
-                return "0010101";
+                return 0b0010101;
             case "D|M":
-                return "1010101";
+                return 0b1010101;
             default:
                 throw new RuntimeException("Illegal comp mnemonic");
         }
     }
 
     /**
-     * @return the binary code of the jump mnemonic
+     * @return the 3-bit code of the jump mnemonic
      */
-    public static String jump(String mnemonic) {
+    public static int jumpCode(String mnemonic) {
         switch (mnemonic) {
             case "null":
-                return "000";
+                return 0b000;
             case "JGT":
-                return "001";
+                return 0b001;
             case "JEQ":
-                return "010";
+                return 0b010;
             case "JGE":
-                return "011";
+                return 0b011;
             case "JLT":
-                return "100";
+                return 0b100;
             case "JNE":
-                return "101";
+                return 0b101;
             case "JLE":
-                return "110";
+                return 0b110;
             case "JMP":
-                return "111";
+                return 0b111;
             default:
                 throw new RuntimeException("Illegal jump mnemonic");
         }
     }
+
+    private static String toBinary(int code, int width) {
+        char[] bits = new char[width];
+        for (int i = width - 1; i >= 0; i--) {
+            bits[i] = (char) ('0' + (code & 1));
+            code >>>= 1;
+        }
+        return new String(bits);
+    }
 }
@@ -0,0 +1,89 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Loads the machine code written by the assembler into a ROM image.
+ */
+public final class HackImage {
+    private HackImage() { }
+
+    /**
+     * Reads the given file, in any of the output formats, into an array of 16-bit words.
+     * The format is detected from the content of the file.
+     */
+    public static short[] load(String input) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(input), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() >= HackWriter.HEADER_SIZE && buffer.getInt(0) == HackWriter.MAGIC) {
+                return loadBinary(buffer);
+            }
+            return loadText(buffer);
+        }
+    }
+
+    private static short[] loadBinary(ByteBuffer buffer) {
+        short version = buffer.getShort(4);
+        if (version != HackWriter.VERSION) {
+            throw new RuntimeException("Unsupported version: " + version);
+        }
+
+        int wordCount = buffer.getInt(8);
+        if ((long) HackWriter.HEADER_SIZE + 2L * wordCount != buffer.remaining()) {
+            throw new RuntimeException("Truncated image");
+        }
+
+        short[] rom = new short[wordCount];
+        buffer.position(HackWriter.HEADER_SIZE);
+        buffer.asShortBuffer().get(rom);
+        return rom;
+    }
+
+    // Each line holds one word, either as 16 binary digits (TEXT) or 4 hexadecimal digits (HEX).
+    private static short[] loadText(ByteBuffer buffer) {
+        short[] rom = new short[Math.max(16, buffer.remaining() / 5)];
+        int wordCount = 0;
+        int binaryWord = 0;
+        int hexWord = 0;
+        int digits = 0;
+
+        while (true) {
+            int b = buffer.hasRemaining() ? buffer.get() : '\n';
+            if (b == '\n') {
+                if (digits != 0) {
+                    if (wordCount == rom.length) {
+                        rom = Arrays.copyOf(rom, wordCount * 2);
+                    }
+                    if (digits == 16 && binaryWord >= 0) {
+                        rom[wordCount++] = (short) binaryWord;
+                    } else if (digits == 4) {
+                        rom[wordCount++] = (short) hexWord;
+                    } else {
+                        throw new RuntimeException("Illegal word in line " + (wordCount + 1));
+                    }
+                    binaryWord = 0;
+                    hexWord = 0;
+                    digits = 0;
+                }
+                if (!buffer.hasRemaining()) {
+                    break;
+                }
+            } else if (b > ' ') {
+                int digit = Character.digit(b, 16);
+                if (digit == -1) {
+                    throw new RuntimeException("Illegal word in line " + (wordCount + 1));
+                }
+                // A non-binary digit marks the binary word as invalid.
+                binaryWord = digit > 1 || binaryWord < 0 ? -1 : (binaryWord << 1) | digit;
+                hexWord = (hexWord << 4) | digit;
+                digits++;
+            }
+        }
+
+        return Arrays.copyOf(rom, wordCount);
+    }
+}
@@ -0,0 +1,123 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes the assembled 16-bit words into the output file in one of the output formats.
+ */
+public class HackWriter implements AutoCloseable {
+
+    /**
+     * The header of a BIN file: the magic "HACK", a 16-bit version, 16 reserved bits and the 32-bit word count,
+     * all big-endian. The words follow the header.
+     */
+    public static final int MAGIC = 0x4841434B;
+    public static final short VERSION = 1;
+    public static final int HEADER_SIZE = 12;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final byte[] HEX_DIGITS = "0123456789ABCDEF".getBytes();
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+    private final OutputFormat format;
+    private final int headerWordCount;
+    private int wordCount;
+
+    /**
+     * Creates the output file and gets ready to write into it.
+     */
+    public HackWriter(String outputFile, OutputFormat format) throws IOException {
+        this(FileChannel.open(Paths.get(outputFile), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), format, 0);
+    }
+
+    /**
+     * Gets ready to write into the given channel, e.g. the standard output.
+     * A BIN header can be patched only in a file, so the number of words that will be written must be given
+     * when the channel isn't a FileChannel.
+     */
+    public HackWriter(WritableByteChannel channel, OutputFormat format, int wordCount) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        this.format = format;
+        this.headerWordCount = wordCount;
+        this.wordCount = 0;
+
+        if (format == OutputFormat.BIN) {
+            // If the word count turns out different, it is patched in when the file is closed.
+            writeHeader(buffer, wordCount);
+        }
+    }
+
+    /**
+     * Writes the given 16-bit word.
+     */
+    public void write(int word) throws IOException {
+        if (buffer.remaining() < 17) {
+            flush();
+        }
+
+        switch (format) {
+            case TEXT:
+                for (int i = 15; i >= 0; i--) {
+                    buffer.put((byte) ('0' + ((word >>> i) & 1)));
+                }
+                buffer.put((byte) '\n');
+                break;
+            case HEX:
+                for (int i = 12; i >= 0; i -= 4) {
+                    buffer.put(HEX_DIGITS[(word >>> i) & 0xF]);
+                }
+                buffer.put((byte) '\n');
+                break;
+            case BIN:
+                buffer.putShort((short) word);
+                break;
+        }
+
+        wordCount++;
+    }
+
+    /**
+     * Returns the number of words written so far.
+     */
+    public int wordCount() {
+        return wordCount;
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private static void writeHeader(ByteBuffer buffer, int wordCount) {
+        buffer.putInt(MAGIC).putShort(VERSION).putShort((short) 0).putInt(wordCount);
+    }
+
+    /**
+     * Closes the output file.
+     */
+    public void close() throws IOException {
+        try {
+            flush();
+            if (format == OutputFormat.BIN && wordCount != headerWordCount) {
+                if (!(channel instanceof FileChannel)) {
+                    throw new IOException("Expected " + headerWordCount + " words but " + wordCount + " were written");
+                }
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                writeHeader(header, wordCount);
+                header.flip();
+                ((FileChannel) channel).write(header, 0);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+}
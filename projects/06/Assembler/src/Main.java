@@ -1,107 +1,431 @@
-import java.io.BufferedWriter;
-import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * Initializes I/O files and drives the process.
  */
 public class Main {
+
+    private static final String USAGE =
+            "Usage: Main [--format=text|bin|hex] [--single-pass] [--source-map] [--jobs=n] "
+                    + "(input.asm | - | directory | glob)...";
+
     public static void main(String[] args) {
 
-        // 1. Initialization
+        // Parse the command line.
+        OutputFormat format = OutputFormat.TEXT;
+        boolean singlePass = false;
+        boolean sourceMap = false;
+        int jobs = Runtime.getRuntime().availableProcessors();
+        List<String> inputs = new ArrayList<>();
+        try {
+            for (String arg : args) {
+                if (arg.startsWith("--format=")) {
+                    format = OutputFormat.fromString(arg.substring("--format=".length()));
+                } else if (arg.equals("--single-pass")) {
+                    singlePass = true;
+                } else if (arg.equals("--source-map")) {
+                    sourceMap = true;
+                } else if (arg.startsWith("--jobs=")) {
+                    jobs = Integer.parseInt(arg.substring("--jobs=".length()));
+                } else {
+                    inputs.add(arg);
+                }
+            }
+            if (inputs.isEmpty() || jobs < 1) {
+                throw new IllegalArgumentException(USAGE);
+            }
+        } catch (NumberFormatException ex) {
+            System.out.println("Error: " + USAGE);
+            System.exit(1);
+        } catch (IllegalArgumentException ex) {
+            System.out.println("Error: " + ex.getMessage());
+            System.exit(1);
+        }
 
-        // Create an empty symbol table.
-        SymbolTable symbolTable = new SymbolTable();
-        symbolTable.addPreDefinedSymbols();
+        // A single file (or the standard input) is assembled directly, as it always was.
+        String firstInput = inputs.get(0);
+        if (inputs.size() == 1 && (firstInput.equals("-") || Files.isRegularFile(Paths.get(firstInput)))) {
+            try {
+                assemble(firstInput, format, singlePass, sourceMap);
+            } catch (Exception ex) {
+                System.out.println("Error: " + ex.getMessage());
+                System.exit(1);
+            }
+            return;
+        }
 
-        // Change file name extension to hack.
-        String outputFileName = args[0].replace(".asm", ".hack");
+        try {
+            List<String> asmFiles = new ArrayList<>();
+            for (String input : inputs) {
+                asmFiles.addAll(listAsmFiles(input));
+            }
+            if (!assembleAll(asmFiles, format, singlePass, sourceMap, jobs)) {
+                System.exit(1);
+            }
+        } catch (Exception ex) {
+            System.out.println("Error: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
 
-        // The generated code is written into a text file named xxx.hack
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter(outputFileName))) {
+    /**
+     * Assembles the given files concurrently on a pool of the given size, reports the errors of each file and
+     * prints a throughput summary.
+     *
+     * @return whether all the files were assembled successfully
+     */
+    public static boolean assembleAll(List<String> asmFiles, OutputFormat format, boolean singlePass,
+                                      boolean sourceMap, int jobs) throws InterruptedException {
 
-            // Open a text file (containing the source code) with a given name, e.g. Pong.asm
-            Parser parser = new Parser(args[0]);
+        long start = System.nanoTime();
+        List<Callable<Integer>> tasks = new ArrayList<>();
+        for (String asmFile : asmFiles) {
+            tasks.add(() -> assemble(asmFile, format, singlePass, sourceMap));
+        }
 
-            // 2. First pass
-            int lineNumber = 0;
-            while (parser.hasMoreCommands()) {
-                parser.advance();
-
-                // Adds the found labels to the symbol table.
-                if (parser.commandType() == CommandType.L_COMMAND) {
-                    String s = parser.symbol();
-                    symbolTable.addEntry(s, lineNumber);
-                    continue;
+        ForkJoinPool pool = new ForkJoinPool(jobs);
+        List<Future<Integer>> results;
+        try {
+            results = pool.invokeAll(tasks);
+        } finally {
+            pool.shutdown();
+        }
+
+        long instructions = 0;
+        int failed = 0;
+        for (int i = 0; i < results.size(); i++) {
+            try {
+                instructions += results.get(i).get();
+            } catch (ExecutionException ex) {
+                // The pool may wrap the original exception, so report the innermost cause.
+                Throwable cause = ex;
+                while (cause.getCause() != null) {
+                    cause = cause.getCause();
                 }
+                System.out.println("Error: " + asmFiles.get(i) + ": " + cause.getMessage());
+                failed++;
+            }
+        }
+
+        double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+        System.out.printf("Assembled %d of %d files, %d instructions in %.3f s (%.0f instructions/s, %.1f files/s)%n",
+                asmFiles.size() - failed, asmFiles.size(), instructions, seconds,
+                instructions / seconds, (asmFiles.size() - failed) / seconds);
+
+        return failed == 0;
+    }
+
+    /**
+     * Assembles the given file into a file with the same name and the extension of the given format.
+     * The input "-" denotes the standard input, and then the code is written to the standard output.
+     * With sourceMap, the source map of the code is written too, unless the input is the standard input.
+     *
+     * @return the number of instructions written
+     */
+    public static int assemble(String inputFileName, OutputFormat format, boolean singlePass, boolean sourceMap)
+            throws IOException {
 
-                lineNumber++;
+        // 1. Initialization
+
+        // Create a symbol table with the pre-defined symbols.
+        SymbolTable symbolTable = SymbolTable.withPreDefinedSymbols();
+
+        boolean standardInput = inputFileName.equals("-");
+
+        // Open a text file (containing the source code) with a given name, e.g. Pong.asm
+        try (InputStream in = standardInput ? System.in : Files.newInputStream(Paths.get(inputFileName))) {
+            Parser parser = new Parser(in);
+
+            if (singlePass) {
+                short[] words = assembleSinglePass(parser, symbolTable);
+                try (HackWriter writer = openWriter(inputFileName, format, words.length)) {
+                    for (short word : words) {
+                        writer.write(word);
+                    }
+                }
+                if (sourceMap && !standardInput) {
+                    writeSourceMap(inputFileName, format, parser);
+                }
+                return words.length;
             }
 
+            // 2. First pass
+            int instructionCount = firstPass(parser, symbolTable);
+
             // 3. Second pass
             parser.reset();
-            int n = 16;
-
-            while (parser.hasMoreCommands()) {
-                parser.advance();
+            int wordCount;
+            try (HackWriter writer = openWriter(inputFileName, format, instructionCount)) {
+                secondPass(parser, symbolTable, writer);
+                wordCount = writer.wordCount();
+            }
+            if (sourceMap && !standardInput) {
+                writeSourceMap(inputFileName, format, parser);
+            }
+            return wordCount;
+        }
+    }
 
-                // Parse the instruction: break it into its underlying fields
-                switch (parser.commandType()) {
-                    // Translates A-instruction
-                    case A_COMMAND:
-                        String s = parser.symbol();
-                        if (symbolTable.contains(s)) {
-                            int address = symbolTable.getAddress(s);
-                            // Translates the decimal value into a binary value
-                            long binaryValue = Long.parseLong(Long.toBinaryString(address));
-                            // Write the 16-bit A instruction to the output file.
-                            bw.write(String.format("%016d", binaryValue) + "\n");
+    /**
+     * Writes the source map of the code (see ProvenanceMap) to xxx.hack.map, with a row for each ROM address: the
+     * line of its instruction in the input. If the input has an up-to-date map of its own lines, xxx.asm.map (written
+     * by the VM translator), the columns of the line's row in it follow, which are streamed since the lines of the
+     * instructions are in order.
+     */
+    private static void writeSourceMap(String inputFileName, OutputFormat format, Parser parser) throws IOException {
+        // The names are joined with concat(), since the first + of a program bootstraps the concatenation of strings,
+        // which takes longer than writing a map.
+        Path asmMapFile = Paths.get(inputFileName.concat(".map"));
+        boolean upToDate = Files.exists(asmMapFile) && Files.getLastModifiedTime(asmMapFile)
+                .compareTo(Files.getLastModifiedTime(Paths.get(inputFileName))) >= 0;
+        try (ProvenanceMap.Reader asmMap = upToDate ? new ProvenanceMap.Reader(asmMapFile) : null) {
+            String[] asmColumns = asmMap == null ? new String[0] : asmMap.columns();
+            boolean[] asmStrings = asmMap == null ? new boolean[0] : asmMap.strings();
+            String[] columns = new String[asmColumns.length + 1];
+            boolean[] strings = new boolean[asmColumns.length + 1];
+            columns[0] = "asm.line";
+            System.arraycopy(asmColumns, 0, columns, 1, asmColumns.length);
+            System.arraycopy(asmStrings, 0, strings, 1, asmStrings.length);
 
+            Path mapFile = Paths.get(inputFileName.replace(".asm", format.extension).concat(".map"));
+            try (ProvenanceMap.Writer writer = new ProvenanceMap.Writer(mapFile, columns, strings)) {
+                boolean mapped = asmMap != null;
+                parser.reset();
+                while (parser.hasMoreCommands()) {
+                    parser.advance();
+                    if (parser.commandType() == CommandType.L_COMMAND) {
+                        continue;
+                    }
+                    int line = parser.lineNumber();
+                    writer.set(0, line);
+                    // The row of line n in the map of the input is n - 1. The columns of the last row are kept
+                    // until a row differs.
+                    boolean changed = false;
+                    while (mapped && asmMap.index() < line - 1) {
+                        mapped = asmMap.next();
+                        changed |= !mapped || !asmMap.repeated();
+                    }
+                    for (int i = 0; changed && i < asmColumns.length; i++) {
+                        if (asmStrings[i]) {
+                            writer.set(i + 1, mapped ? asmMap.string(i) : null);
                         } else {
-                            long binaryValue;
-
-                            // Checks if the value is a non-negative decimal constant
-                            // or a symbol referring to such a constant.
-                            if (isNumber(s)) {
-                                binaryValue = Long.parseLong(Long.toBinaryString(Long.parseLong(s)));
-                            } else {
-                                // Handling symbols that denote variables.
-                                symbolTable.addEntry(s, n);
-                                // Translates the decimal value into a binary value
-                                binaryValue = Long.parseLong(Long.toBinaryString(n));
-                                n++;
-                            }
-                            bw.write(String.format("%016d", binaryValue) + "\n");
+                            writer.set(i + 1, mapped ? asmMap.value(i) : ProvenanceMap.NONE);
                         }
-                        break;
-                        // Translate C-instruction
-                    case C_COMMAND:
-                        // Parses the command.
-                        String c = parser.comp();
-                        String d = parser.dest();
-                        String j = parser.jump();
-
-                        // Translates the command.
-                        String cc = Code.comp(c);
-                        String dd = Code.dest(d);
-                        String jj = Code.jump(j);
-
-                        // Assembles and writes the translated fields
-                        bw.write("111" + cc + dd + jj + "\n");
-                        break;
+                    }
+                    writer.endRow();
                 }
             }
-        } catch (Exception ex) {
-            System.out.println("Error: " + ex.getMessage());
-            System.exit(1);
         }
     }
 
-    private static boolean isNumber(String str) {
-        try {
-            Long.parseLong(str);
-            return true;
-        } catch (NumberFormatException e) {
-            return false;
+    // Adds the labels to the symbol table, and returns the number of instructions.
+    private static int firstPass(Parser parser, SymbolTable symbolTable) {
+        int lineNumber = 0;
+        while (parser.hasMoreCommands()) {
+            parser.advance();
+
+            // Adds the found labels to the symbol table.
+            if (parser.commandType() == CommandType.L_COMMAND) {
+                String s = parser.symbol();
+                symbolTable.addEntry(s, lineNumber);
+                continue;
+            }
+
+            lineNumber++;
+        }
+        return lineNumber;
+    }
+
+    // Translates the instructions, allocating the variables, and writes them.
+    private static void secondPass(Parser parser, SymbolTable symbolTable, HackWriter writer) throws IOException {
+
+        // The encoded word of each distinct C-instruction.
+        int[] instructionWords = new int[parser.instructionCount()];
+
+        while (parser.hasMoreCommands()) {
+            parser.advance();
+
+            // Parse the instruction: break it into its underlying fields
+            int word;
+            switch (parser.commandType()) {
+                // Translates A-instruction
+                case A_COMMAND:
+                    int address;
+
+                    // Checks if the value is a non-negative decimal constant
+                    // or a symbol referring to such a constant.
+                    if (parser.isConstant()) {
+                        address = parser.constant();
+                    } else {
+                        // Handling symbols that denote labels, pre-defined symbols or variables.
+                        address = symbolTable.getOrAssign(parser.symbol());
+                    }
+
+                    word = Code.aInstruction(address);
+                    break;
+                // Translate C-instruction
+                case C_COMMAND:
+                    // Translates the command once, the first time it is seen.
+                    int id = parser.instruction();
+                    word = instructionWords[id];
+                    if (word == 0) {
+                        word = Code.cInstruction(parser.dest(), parser.comp(), parser.jump());
+                        instructionWords[id] = word;
+                    }
+                    break;
+                default:
+                    continue;
+            }
+
+            // Writes the 16-bit instruction to the output file.
+            writer.write(word);
+        }
+    }
+
+    /**
+     * Translates the instructions as they are read, in a single pass.
+     * A reference to a symbol that isn't defined yet is encoded with address 0 and recorded as a fixup. At the end
+     * of the input the fixups are patched in the order they were recorded: a symbol that was defined as a label
+     * gets its address, and any other symbol is a variable and gets the next free RAM address. Variables are
+     * therefore allocated in the order of their first appearance, exactly as in the two-pass translation.
+     *
+     * @return the translated words
+     */
+    private static short[] assembleSinglePass(Parser parser, SymbolTable symbolTable) {
+        short[] words = new short[1024];
+        int wordCount = 0;
+
+        // The forward references: the index of the word to patch and the symbol it refers to.
+        int[] fixupWords = new int[256];
+        String[] fixupSymbols = new String[256];
+        int fixupCount = 0;
+
+        // The encoded word of each distinct C-instruction.
+        int[] instructionWords = new int[64];
+
+        while (parser.hasMoreCommands()) {
+            parser.advance();
+
+            int word;
+            switch (parser.commandType()) {
+                case L_COMMAND:
+                    symbolTable.addEntry(parser.symbol(), wordCount);
+                    continue;
+                case A_COMMAND:
+                    int address;
+                    if (parser.isConstant()) {
+                        address = parser.constant();
+                    } else {
+                        String s = parser.symbol();
+                        address = symbolTable.getAddressOrDefault(s, -1);
+                        if (address == -1) {
+                            if (fixupCount == fixupWords.length) {
+                                fixupWords = Arrays.copyOf(fixupWords, fixupCount * 2);
+                                fixupSymbols = Arrays.copyOf(fixupSymbols, fixupCount * 2);
+                            }
+                            fixupWords[fixupCount] = wordCount;
+                            fixupSymbols[fixupCount] = s;
+                            fixupCount++;
+                            address = 0;
+                        }
+                    }
+                    word = Code.aInstruction(address);
+                    break;
+                default:
+                    int id = parser.instruction();
+                    if (id >= instructionWords.length) {
+                        instructionWords = Arrays.copyOf(instructionWords, Math.max(id + 1, instructionWords.length * 2));
+                    }
+                    word = instructionWords[id];
+                    if (word == 0) {
+                        word = Code.cInstruction(parser.dest(), parser.comp(), parser.jump());
+                        instructionWords[id] = word;
+                    }
+            }
+
+            if (wordCount == words.length) {
+                words = Arrays.copyOf(words, wordCount * 2);
+            }
+            words[wordCount++] = (short) word;
+        }
+
+        // Patch the forward references.
+        for (int i = 0; i < fixupCount; i++) {
+            words[fixupWords[i]] = (short) Code.aInstruction(symbolTable.getOrAssign(fixupSymbols[i]));
+        }
+
+        return Arrays.copyOf(words, wordCount);
+    }
+
+    // Opens the output: a file named xxx.hack (or with the extension of the chosen format), or the standard output.
+    private static HackWriter openWriter(String inputFileName, OutputFormat format, int wordCount)
+            throws IOException {
+        if (inputFileName.equals("-")) {
+            return new HackWriter(Channels.newChannel(System.out), format, wordCount);
+        }
+
+        // Change file name extension to hack (or to the extension of the chosen format).
+        String outputFileName = inputFileName.replace(".asm", format.extension);
+        return new HackWriter(FileChannel.open(Paths.get(outputFileName), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), format, wordCount);
+    }
+
+    /**
+     * Returns the .asm files denoted by the given input: the file itself, the .asm files in a directory, or the
+     * .asm files matching a glob pattern such as projects/**&#47;*.asm.
+     */
+    private static List<String> listAsmFiles(String input) throws IOException {
+        Path path = Paths.get(input);
+        if (Files.isRegularFile(path)) {
+            return List.of(input);
+        }
+
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> files = Files.list(path)) {
+                return files.filter(file -> file.toString().endsWith(".asm") && Files.isRegularFile(file))
+                        .map(Path::toString).sorted().collect(Collectors.toList());
+            }
+        }
+
+        // Walk from the longest directory prefix that doesn't contain glob characters.
+        int globIndex = indexOfGlob(input);
+        if (globIndex == -1) {
+            throw new IOException("No such file or directory: " + input);
+        }
+        int separatorIndex = Math.max(input.lastIndexOf('/', globIndex), input.lastIndexOf('\\', globIndex));
+        Path base = Paths.get(separatorIndex == -1 ? "" : input.substring(0, separatorIndex + 1));
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + input);
+        try (Stream<Path> files = Files.walk(base.toString().isEmpty() ? Paths.get(".") : base)) {
+            return files.map(file -> base.toString().isEmpty() ? Paths.get(".").relativize(file) : file)
+                    .filter(file -> matcher.matches(file) && Files.isRegularFile(file))
+                    .map(Path::toString).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static int indexOfGlob(String input) {
+        for (int i = 0; i < input.length(); i++) {
+            if ("*?[{".indexOf(input.charAt(i)) != -1) {
+                return i;
+            }
         }
+        return -1;
     }
 }
@@ -0,0 +1,30 @@
+/**
+ * The formats in which the assembler can write the machine code.
+ */
+public enum OutputFormat {
+    // One line of 16 ASCII '0'/'1' characters per instruction (the standard .hack file).
+    TEXT(".hack"),
+    // A small header followed by packed big-endian 16-bit words.
+    BIN(".bin"),
+    // One line of 4 hexadecimal digits per instruction.
+    HEX(".hex");
+
+    public final String extension;
+
+    OutputFormat(String extension) {
+        this.extension = extension;
+    }
+
+    public static OutputFormat fromString(String str) {
+        switch (str) {
+            case "text":
+                return TEXT;
+            case "bin":
+                return BIN;
+            case "hex":
+                return HEX;
+            default:
+                throw new IllegalArgumentException("Illegal format: " + str);
+        }
+    }
+}
@@ -1,58 +1,231 @@
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Unpacks each instruction into its underlying fields
  */
 public class Parser {
 
-    private String currentLine = null;
-    private int currentLineIndex = 0;
-    private List<String> lines;
+    // The kinds of the commands in the compact instruction stream.
+    private static final byte A_CONSTANT = 0;
+    private static final byte A_SYMBOL = 1;
+    private static final byte L_SYMBOL = 2;
+    private static final byte C_INSTRUCTION = 3;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // The instruction stream: the kind of each command and its operand. The operand is the constant value of
+    // an A_CONSTANT, the symbol id of an A_SYMBOL or L_SYMBOL, or the instruction id of a C_INSTRUCTION.
+    private byte[] kinds = new byte[1024];
+    private int[] operands = new int[1024];
+    // The line of each command in the input, from 1.
+    private int[] lines = new int[1024];
+    private int commandCount = 0;
+    private int currentCommandIndex = -1;
+    private int nextCommandIndex = 0;
+
+    // Side table of the distinct symbols, indexed by symbol id.
+    private final Map<String, Integer> symbolIds = new HashMap<>();
+    private String[] symbols = new String[64];
+
+    // Side table of the distinct C-instructions, indexed by instruction id.
+    private final Map<String, Integer> instructionIds = new HashMap<>();
+    private String[] dests = new String[64];
+    private String[] comps = new String[64];
+    private String[] jumps = new String[64];
+
+    // The input that is still to be read, or null when all of it was read.
+    private InputStream in;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int bufferPosition = 0;
+    private int bufferLimit = 0;
+
+    // The current line without whitespace and comments.
+    private byte[] line = new byte[256];
+    private int lineLength = 0;
+    private int lineNumber = 1;
+    private boolean inComment = false;
 
     /**
      * Opens the input file/stream and gets ready to parse it.
+     * The whole file is read by the constructor.
      *
      * @param input Input file or stream
      */
     public Parser(String input) throws IOException {
+        try (InputStream in = Files.newInputStream(Paths.get(input))) {
+            this.in = in;
+            while (readCommand()) {
+                // Read all the commands.
+            }
+        }
+    }
+
+    /**
+     * Parses the given stream. The stream is read once and is not closed.
+     * The stream is read lazily, as commands are requested by hasMoreCommands().
+     *
+     * @param in Input stream
+     */
+    public Parser(InputStream in) {
+        this.in = in;
+    }
+
+    // Reads the input up to the end of the next command, removing whitespace and comments on the fly, and adds
+    // the command to the stream. Returns false if the input ended without another command.
+    private boolean readCommand() throws IOException {
+        while (in != null) {
+            if (bufferPosition == bufferLimit) {
+                int n = in.read(buffer);
+                if (n == -1) {
+                    in = null;
+                    return endLine();
+                }
+                bufferPosition = 0;
+                bufferLimit = n;
+            }
+
+            byte b = buffer[bufferPosition++];
+            if (b == '\n') {
+                inComment = false;
+                boolean added = endLine();
+                lineNumber++;
+                if (added) {
+                    return true;
+                }
+            } else if (inComment || b <= ' ') {
+                // Skip comments and whitespace (including '\r').
+            } else if (b == '/' && lineLength > 0 && line[lineLength - 1] == '/') {
+                lineLength--;
+                inComment = true;
+            } else {
+                if (lineLength == line.length) {
+                    line = Arrays.copyOf(line, lineLength * 2);
+                }
+                line[lineLength++] = b;
+            }
+        }
+        return false;
+    }
+
+    // Adds the command in the current line, if any, to the instruction stream. Returns whether a command was added.
+    private boolean endLine() {
+        if (lineLength == 0) {
+            return false;
+        }
 
-        // Reads all the lines from the assembly file
-        lines = Files.readAllLines(Paths.get(input));
+        switch (line[0]) {
+            case '@':
+                if (lineLength > 1 && isDigit(line[1])) {
+                    addCommand(A_CONSTANT, parseConstant());
+                } else {
+                    addCommand(A_SYMBOL, symbolId(1, lineLength));
+                }
+                break;
+            case '(':
+                if (line[lineLength - 1] != ')') {
+                    throw new RuntimeException("Illegal label: " + lineString(0, lineLength));
+                }
+                addCommand(L_SYMBOL, symbolId(1, lineLength - 1));
+                break;
+            default:
+                addCommand(C_INSTRUCTION, instructionId());
+        }
 
-        /// Remove white space
-        List<String> linesToRemove = new LinkedList<>();
-        // Mark empty lines and line comments
-        for (String line: lines) {
-            if(line.isEmpty() || line.startsWith("//")) {
-                linesToRemove.add(line);
+        lineLength = 0;
+        return true;
+    }
+
+    private void addCommand(byte kind, int operand) {
+        if (commandCount == kinds.length) {
+            kinds = Arrays.copyOf(kinds, commandCount * 2);
+            operands = Arrays.copyOf(operands, commandCount * 2);
+            lines = Arrays.copyOf(lines, commandCount * 2);
+        }
+        kinds[commandCount] = kind;
+        operands[commandCount] = operand;
+        lines[commandCount] = lineNumber;
+        commandCount++;
+    }
+
+    private int parseConstant() {
+        int value = 0;
+        for (int i = 1; i < lineLength; i++) {
+            if (!isDigit(line[i])) {
+                throw new RuntimeException("Illegal constant: " + lineString(1, lineLength));
+            }
+            value = value * 10 + (line[i] - '0');
+            if (value > 0x7FFF) {
+                throw new RuntimeException("Constant out of range: " + lineString(1, lineLength));
             }
         }
+        return value;
+    }
 
-        // Remove empty lines and line comments
-        for (String line: linesToRemove) {
-            lines.remove(line);
+    private int symbolId(int begin, int end) {
+        String symbol = lineString(begin, end);
+        Integer id = symbolIds.get(symbol);
+        if (id == null) {
+            id = symbolIds.size();
+            if (id == symbols.length) {
+                symbols = Arrays.copyOf(symbols, id * 2);
+            }
+            symbols[id] = symbol;
+            symbolIds.put(symbol, id);
         }
+        return id;
+    }
 
-        // Remove in-line comments and indentation
-        for (int i = 0; i < lines.size(); i++) {
-            String line = lines.get(i);
-            int index = line.indexOf("//");
-            if(index != -1) {
-                line = line.substring(0, index);
+    // Returns the id of the C-instruction in the current line, splitting it into dest=comp;jump the first time
+    // it is seen.
+    private int instructionId() {
+        String instruction = lineString(0, lineLength);
+        Integer id = instructionIds.get(instruction);
+        if (id == null) {
+            id = instructionIds.size();
+            if (id == dests.length) {
+                dests = Arrays.copyOf(dests, id * 2);
+                comps = Arrays.copyOf(comps, id * 2);
+                jumps = Arrays.copyOf(jumps, id * 2);
             }
-            lines.set(i, line.trim());
+            int equalsIndex = instruction.indexOf('=');
+            int semicolonIndex = instruction.indexOf(';');
+            dests[id] = equalsIndex != -1 ? instruction.substring(0, equalsIndex).intern() : "null";
+            comps[id] = instruction.substring(equalsIndex + 1,
+                    semicolonIndex != -1 ? semicolonIndex : instruction.length()).intern();
+            jumps[id] = semicolonIndex != -1 ? instruction.substring(semicolonIndex + 1).intern() : "null";
+            instructionIds.put(instruction, id);
         }
+        return id;
+    }
+
+    private String lineString(int begin, int end) {
+        return new String(line, begin, end - begin, StandardCharsets.US_ASCII);
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
     }
 
     /**
      * Are there more lines to the input?
      */
     public boolean hasMoreCommands() {
-        return currentLineIndex < lines.size();
+        if (nextCommandIndex < commandCount) {
+            return true;
+        }
+        try {
+            return readCommand();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
     }
 
     /**
@@ -62,8 +235,7 @@ public class Parser {
      * 4. Initially there is no current command.
      */
     public void advance() {
-        currentLine = lines.get(currentLineIndex);
-        currentLineIndex++;
+        currentCommandIndex = nextCommandIndex++;
     }
 
     /**
@@ -75,16 +247,32 @@ public class Parser {
      * @return
      */
     public CommandType commandType() {
-        switch (currentLine.charAt(0)) {
-            case '@':
+        switch (kinds[currentCommandIndex]) {
+            case A_CONSTANT:
+            case A_SYMBOL:
                 return CommandType.A_COMMAND;
-            case '(':
+            case L_SYMBOL:
                 return CommandType.L_COMMAND;
             default:
                 return CommandType.C_COMMAND;
         }
     }
 
+    /**
+     * Is the current command an A-command with a decimal constant, e.g. @21?
+     */
+    public boolean isConstant() {
+        return kinds[currentCommandIndex] == A_CONSTANT;
+    }
+
+    /**
+     * 1. Returns the decimal value xxx of the current command @xxx.
+     * 2. Should be called only when isConstant() is true.
+     */
+    public int constant() {
+        return operands[currentCommandIndex];
+    }
+
     /**
      * 1. Returns the symbol or decimal xxx of the current command @xxx or (xxx)
      * 2. Should be called only when commandType() is A_COMMAND or L_COMMAND.
@@ -92,11 +280,10 @@ public class Parser {
      * @return
      */
     public String symbol() {
-        if(commandType() == CommandType.L_COMMAND) {
-            return currentLine.substring(1, currentLine.length() - 1);
-        } else {
-            return currentLine.substring(1);
+        if (isConstant()) {
+            return String.valueOf(constant());
         }
+        return symbols[operands[currentCommandIndex]];
     }
 
     /**
@@ -106,8 +293,7 @@ public class Parser {
      * @return
      */
     public String dest() {
-        int index = currentLine.indexOf('=');
-        return index != -1 ? currentLine.substring(0, currentLine.indexOf('=')) : "null";
+        return dests[operands[currentCommandIndex]];
     }
 
     /**
@@ -117,11 +303,7 @@ public class Parser {
      * @return
      */
     public String comp() {
-        if (currentLine.indexOf(';') != -1) {
-            return currentLine.substring(currentLine.indexOf('=') + 1, currentLine.indexOf(';'));
-        } else {
-            return currentLine.substring(currentLine.indexOf('=') + 1);
-        }
+        return comps[operands[currentCommandIndex]];
     }
 
     /**
@@ -131,12 +313,40 @@ public class Parser {
      * @return
      */
     public String jump() {
+        return jumps[operands[currentCommandIndex]];
+    }
 
-        int index = currentLine.indexOf(';');
-        return index != -1 ? currentLine.substring(index + 1) : "null";
+    /**
+     * 1. Returns the id of the current C-command. Equal C-commands share the same id.
+     * 2. Should be called only when commandType() is C_COMMAND.
+     */
+    public int instruction() {
+        return operands[currentCommandIndex];
+    }
+
+    /**
+     * Returns the line of the current command in the input, from 1.
+     */
+    public int lineNumber() {
+        return lines[currentCommandIndex];
+    }
+
+    /**
+     * Returns the number of distinct C-commands read so far.
+     */
+    public int instructionCount() {
+        return instructionIds.size();
+    }
+
+    /**
+     * Returns the number of commands (including labels) read so far.
+     */
+    public int commandCount() {
+        return commandCount;
     }
 
     public void reset() {
-        currentLineIndex = 0;
+        nextCommandIndex = 0;
+        currentCommandIndex = -1;
     }
 }
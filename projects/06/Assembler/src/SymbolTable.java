@@ -1,17 +1,48 @@
-import java.util.Hashtable;
+import java.util.Arrays;
 
 /**
- * Manages the symbol table
+ * Manages the symbol table.
+ * The table is an open-addressing hash map from symbols to addresses with linear probing. It isn't thread-safe;
+ * each assembled file has its own table.
  */
 public class SymbolTable {
 
-    private Hashtable<String, Integer> table;
+    private static final int VARIABLE_BASE_ADDRESS = 16;
+    private static final int INITIAL_CAPACITY = 64;
+
+    // The pre-defined symbols. New tables start as a copy of this frozen table.
+    private static final SymbolTable PRE_DEFINED_SYMBOLS = createPreDefinedSymbols();
+
+    private String[] symbols;
+    private int[] addresses;
+    private int size;
+    private int nextVariableAddress;
+    private boolean frozen;
 
     /**
      * Creates a new empty symbol table.
      */
     public SymbolTable() {
-        table = new Hashtable<>();
+        symbols = new String[INITIAL_CAPACITY];
+        addresses = new int[INITIAL_CAPACITY];
+        size = 0;
+        nextVariableAddress = VARIABLE_BASE_ADDRESS;
+        frozen = false;
+    }
+
+    private SymbolTable(SymbolTable base) {
+        symbols = Arrays.copyOf(base.symbols, base.symbols.length);
+        addresses = Arrays.copyOf(base.addresses, base.addresses.length);
+        size = base.size;
+        nextVariableAddress = VARIABLE_BASE_ADDRESS;
+        frozen = false;
+    }
+
+    /**
+     * Creates a new symbol table that contains the pre-defined symbols.
+     */
+    public static SymbolTable withPreDefinedSymbols() {
+        return new SymbolTable(PRE_DEFINED_SYMBOLS);
     }
 
     /**
@@ -20,7 +51,15 @@ public class SymbolTable {
      * @param address
      */
     public void addEntry(String symbol, int address) {
-        table.put(symbol, address);
+        if (frozen) {
+            throw new IllegalStateException("The symbol table is frozen");
+        }
+        int slot = slotOf(symbol);
+        if (symbols[slot] == null) {
+            insert(slot, symbol, address);
+        } else {
+            addresses[slot] = address;
+        }
     }
 
     /**
@@ -29,7 +68,7 @@ public class SymbolTable {
      * @return
      */
     public boolean contains(String symbol) {
-        return table.containsKey(symbol);
+        return symbols[slotOf(symbol)] != null;
     }
 
     /**
@@ -38,33 +77,123 @@ public class SymbolTable {
      * @return
      */
     public int getAddress(String symbol) {
-        return table.get(symbol);
+        int slot = slotOf(symbol);
+        if (symbols[slot] == null) {
+            throw new RuntimeException("Unknown symbol: " + symbol);
+        }
+        return addresses[slot];
+    }
+
+    /**
+     * Returns the address associated with the symbol, or the given default address if the table doesn't contain
+     * the symbol.
+     * @param symbol
+     * @param defaultAddress
+     * @return
+     */
+    public int getAddressOrDefault(String symbol, int defaultAddress) {
+        int slot = slotOf(symbol);
+        return symbols[slot] != null ? addresses[slot] : defaultAddress;
+    }
+
+    /**
+     * Returns the address associated with the symbol, with a single lookup.
+     * A symbol that isn't in the table is a variable: it is added with the next free RAM address, starting at 16.
+     * @param symbol
+     * @return
+     */
+    public int getOrAssign(String symbol) {
+        int slot = slotOf(symbol);
+        if (symbols[slot] == null) {
+            int address = nextVariableAddress++;
+            insert(slot, symbol, address);
+            return address;
+        }
+        return addresses[slot];
+    }
+
+    /**
+     * Returns the number of symbols in the table.
+     */
+    public int size() {
+        return size;
     }
 
     public void addPreDefinedSymbols() {
         // Adds the pre-defined symbols to the symbol table.
-        this.addEntry("R0", 0);
-        this.addEntry("R1", 1);
-        this.addEntry("R2", 2);
-        this.addEntry("R3", 3);
-        this.addEntry("R4", 4);
-        this.addEntry("R5", 5);
-        this.addEntry("R6", 6);
-        this.addEntry("R7", 7);
-        this.addEntry("R8", 8);
-        this.addEntry("R9", 9);
-        this.addEntry("R10", 10);
-        this.addEntry("R11", 11);
-        this.addEntry("R12", 12);
-        this.addEntry("R13", 13);
-        this.addEntry("R14", 14);
-        this.addEntry("R15", 15);
-        this.addEntry("SCREEN", 16384);
-        this.addEntry("KBD", 24576);
-        this.addEntry("SP", 0);
-        this.addEntry("LCL", 1);
-        this.addEntry("ARG", 2);
-        this.addEntry("THIS", 3);
-        this.addEntry("THAT", 4);
+        String[] preDefinedSymbols = PRE_DEFINED_SYMBOLS.symbols;
+        for (int i = 0; i < preDefinedSymbols.length; i++) {
+            if (preDefinedSymbols[i] != null) {
+                this.addEntry(preDefinedSymbols[i], PRE_DEFINED_SYMBOLS.addresses[i]);
+            }
+        }
+    }
+
+    private static SymbolTable createPreDefinedSymbols() {
+        SymbolTable table = new SymbolTable();
+        table.addEntry("R0", 0);
+        table.addEntry("R1", 1);
+        table.addEntry("R2", 2);
+        table.addEntry("R3", 3);
+        table.addEntry("R4", 4);
+        table.addEntry("R5", 5);
+        table.addEntry("R6", 6);
+        table.addEntry("R7", 7);
+        table.addEntry("R8", 8);
+        table.addEntry("R9", 9);
+        table.addEntry("R10", 10);
+        table.addEntry("R11", 11);
+        table.addEntry("R12", 12);
+        table.addEntry("R13", 13);
+        table.addEntry("R14", 14);
+        table.addEntry("R15", 15);
+        table.addEntry("SCREEN", 16384);
+        table.addEntry("KBD", 24576);
+        table.addEntry("SP", 0);
+        table.addEntry("LCL", 1);
+        table.addEntry("ARG", 2);
+        table.addEntry("THIS", 3);
+        table.addEntry("THAT", 4);
+        table.frozen = true;
+        return table;
+    }
+
+    // Returns the slot that holds the symbol, or the empty slot where it should be inserted.
+    private int slotOf(String symbol) {
+        int mask = symbols.length - 1;
+        int hash = symbol.hashCode();
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        while (true) {
+            String current = symbols[slot];
+            if (current == null || current == symbol || current.equals(symbol)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void insert(int slot, String symbol, int address) {
+        symbols[slot] = symbol;
+        addresses[slot] = address;
+        size++;
+
+        // Keep the load factor at most 1/2, so that probe sequences stay short.
+        if (size * 2 > symbols.length) {
+            rehash();
+        }
+    }
+
+    private void rehash() {
+        String[] oldSymbols = symbols;
+        int[] oldAddresses = addresses;
+        symbols = new String[oldSymbols.length * 2];
+        addresses = new int[oldSymbols.length * 2];
+        for (int i = 0; i < oldSymbols.length; i++) {
+            if (oldSymbols[i] != null) {
+                int slot = slotOf(oldSymbols[i]);
+                symbols[slot] = oldSymbols[i];
+                addresses[slot] = oldAddresses[i];
+            }
+        }
     }
 }
@@ -0,0 +1,235 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A buffer of assembly code as ASCII bytes, which CodeWriter writes into.
+ * The fixed lines of the code are written from byte templates (see template()), which are computed once, and only
+ * the names and numbers between them are written a character at a time, so writing a command allocates nothing.
+ * A buffer opened on a file writes itself to the file through a FileChannel whenever it fills; any other buffer
+ * grows to hold all of its code, e.g. the code of a VM file. A character outside ASCII, e.g. in a label, is written
+ * in UTF-8. A failure to write to the file is thrown as an UncheckedIOException.
+ */
+public final class CodeBuffer implements AutoCloseable {
+
+    /**
+     * The line separator of the platform, which ends every line.
+     */
+    public static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+
+    private static final int FILE_BUFFER_SIZE = 1 << 16;
+
+    private byte[] bytes;
+    private int length;
+    private final FileChannel channel;
+    // The number of bytes already written to the file.
+    private long written;
+
+    public CodeBuffer() {
+        this.bytes = new byte[8192];
+        this.channel = null;
+    }
+
+    /**
+     * Creates the given file, or truncates it, and writes the code into it.
+     */
+    public CodeBuffer(Path file) throws IOException {
+        this.bytes = new byte[FILE_BUFFER_SIZE];
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Returns the template of the given lines: their bytes, each followed by the line separator.
+     */
+    public static byte[] template(String... lines) {
+        CodeBuffer buffer = new CodeBuffer();
+        for (String line : lines) {
+            buffer.write(line).newLine();
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Writes the given template.
+     */
+    public CodeBuffer write(byte[] template) {
+        reserve(template.length);
+        if (template.length > bytes.length) {
+            // Only a buffer on a file is smaller than what it reserves.
+            writeToFile(ByteBuffer.wrap(template));
+        } else {
+            System.arraycopy(template, 0, bytes, length, template.length);
+            length += template.length;
+        }
+        return this;
+    }
+
+    /**
+     * Writes the given text, e.g. a name.
+     */
+    public CodeBuffer write(String text) {
+        int size = text.length();
+        reserve(size);
+        if (size > bytes.length) {
+            return write(text.getBytes(StandardCharsets.UTF_8));
+        }
+        int start = length;
+        for (int i = 0; i < size; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                length = start;
+                return write(text.getBytes(StandardCharsets.UTF_8));
+            }
+            bytes[length++] = (byte) c;
+        }
+        return this;
+    }
+
+    /**
+     * Writes the given ASCII character.
+     */
+    public CodeBuffer write(char c) {
+        reserve(1);
+        bytes[length++] = (byte) c;
+        return this;
+    }
+
+    /**
+     * Writes the given number in decimal.
+     */
+    public CodeBuffer write(int value) {
+        if (value < 0) {
+            if (value == Integer.MIN_VALUE) {
+                return write(Integer.toString(value));
+            }
+            write('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (int rest = value / 10; rest != 0; rest /= 10) {
+            digits++;
+        }
+        reserve(digits);
+        for (int i = length + digits - 1; i >= length; i--) {
+            bytes[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+        return this;
+    }
+
+    /**
+     * Ends the current line.
+     */
+    public CodeBuffer newLine() {
+        return write(LINE_SEPARATOR);
+    }
+
+    /**
+     * Returns the number of bytes written so far.
+     */
+    public long position() {
+        return written + length;
+    }
+
+    /**
+     * Returns the bytes of the code of a buffer that isn't on a file.
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(bytes, length);
+    }
+
+    /**
+     * Returns the lines of the code of a buffer that isn't on a file.
+     */
+    public List<String> lines() {
+        return lines(bytes, length);
+    }
+
+    /**
+     * Returns the lines of the given code, without their line separators.
+     */
+    public static List<String> lines(byte[] code) {
+        return lines(code, code.length);
+    }
+
+    private static List<String> lines(byte[] code, int length) {
+        List<String> lines = new ArrayList<>();
+        // The line separator ends with '\n', on every platform.
+        int separator = LINE_SEPARATOR.length;
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            if (code[i] == '\n') {
+                lines.add(new String(code, start, Math.max(i + 1 - separator, start) - start,
+                        StandardCharsets.UTF_8));
+                start = i + 1;
+            }
+        }
+        if (start < length) {
+            lines.add(new String(code, start, length - start, StandardCharsets.UTF_8));
+        }
+        return lines;
+    }
+
+    /**
+     * Writes the given pieces of code to the given channel, in order.
+     */
+    public static void writeFully(FileChannel channel, byte[]... pieces) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[pieces.length];
+        long remaining = 0;
+        for (int i = 0; i < pieces.length; i++) {
+            buffers[i] = ByteBuffer.wrap(pieces[i]);
+            remaining += pieces[i].length;
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+    }
+
+    // Makes room for the given number of bytes, by writing a buffer on a file to the file, or growing any other.
+    private void reserve(int size) {
+        if (length + size <= bytes.length) {
+            return;
+        }
+        if (channel != null) {
+            writeToFile(ByteBuffer.wrap(bytes, 0, length));
+            length = 0;
+        } else {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + size));
+        }
+    }
+
+    private void writeToFile(ByteBuffer buffer) {
+        try {
+            while (buffer.hasRemaining()) {
+                written += channel.write(buffer);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /**
+     * Writes the rest of the code of a buffer on a file to the file, and closes it.
+     */
+    @Override
+    public void close() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        try {
+            writeToFile(ByteBuffer.wrap(bytes, 0, length));
+            length = 0;
+        } finally {
+            channel.close();
+        }
+    }
+}
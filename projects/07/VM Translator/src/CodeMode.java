@@ -0,0 +1,9 @@
+/**
+ * The kinds of code that CodeWriter writes.
+ */
+public enum CodeMode {
+    // Every command is written inline, for speed.
+    SPEED,
+    // Comparisons, calls and returns jump to routines that are written once per program, for size.
+    SIZE
+}
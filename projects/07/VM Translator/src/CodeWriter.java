@@ -1,102 +1,385 @@
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.EnumMap;
+import java.util.Map;
 
 /**
  * writes the assembly code that implements the parsed command
+ * <p>
+ * The code is written into a CodeBuffer. The fixed lines of each pattern of code are byte templates, computed once,
+ * and only the names and indexes between them are written for each command.
  */
 public class CodeWriter implements AutoCloseable {
 
-    private static final int staticBaseAddress = 16;
     private static final int tempBaseAddress = 5;
-    private BufferedWriter bw;
+    // The labels of the shared routines of CodeMode.SIZE, which don't clash with the labels of Class.function.
+    private static final String CALL_ROUTINE = "VM$call";
+    private static final String RETURN_ROUTINE = "VM$return";
+    private static final String COMPARISON_END = "VM$compareEnd";
+    private static final String ROUTINES_END = "VM$routinesEnd";
+    // The largest segment index that a cached pop addresses with A=A+1 instructions, which is shorter than
+    // computing the address through R13 and R14.
+    private static final int MAX_INCREMENTS = 7;
+
+    private static final byte[] INIT = CodeBuffer.template("@256", "D=A", "@SP", "M=D");
+    private static final byte[] PUSH_D = CodeBuffer.template(
+            "@SP",
+            "A=M",
+            "M=D", // *SP=D
+            "@SP",
+            "M=M+1"); // SP++
+    private static final byte[] POP_TO_D = CodeBuffer.template(
+            "@SP",
+            "AM=M-1", // SP--
+            "D=M"); // D = *SP
+    private static final byte[] D_EQUALS_A = CodeBuffer.template("D=A");
+    private static final byte[] D_EQUALS_M = CodeBuffer.template("D=M");
+    private static final byte[] M_EQUALS_D = CodeBuffer.template("M=D");
+    private static final byte[] A_PLUS_1 = CodeBuffer.template("A=A+1");
+    private static final byte[] JUMP = CodeBuffer.template("0;JMP");
+    private static final byte[] JUMP_IF_TRUE = CodeBuffer.template("D;JNE");
+    private static final byte[] COMPARE = CodeBuffer.template("@SP", "AM=M-1", "D=M", "A=A-1", "D=M-D");
+    private static final byte[] SET_TRUE = CodeBuffer.template("@SP", "A=M-1", "M=-1");
+    private static final byte[] SET_FALSE = CodeBuffer.template("@SP", "A=M-1", "M=0");
+    private static final byte[] CACHED_COMPARE = CodeBuffer.template("@SP", "AM=M-1", "D=M-D");
+    private static final byte[] D_EQUALS_FALSE = CodeBuffer.template("D=0");
+    private static final byte[] D_EQUALS_TRUE = CodeBuffer.template("D=-1");
+    private static final byte[] NEG = CodeBuffer.template("D=0", "@SP", "A=M-1", "M=D-M");
+    private static final byte[] NOT = CodeBuffer.template("@SP", "A=M-1", "M=!M");
+    private static final byte[] NEG_OF_D = CodeBuffer.template("D=-D");
+    private static final byte[] NOT_OF_D = CodeBuffer.template("D=!D");
+    private static final byte[] POP_TO_THIS = CodeBuffer.template("@SP", "AM=M-1", "D=M", "@THIS", "M=D");
+    private static final byte[] POP_TO_THAT = CodeBuffer.template("@SP", "AM=M-1", "D=M", "@THAT", "M=D");
+    private static final byte[] THIS_TO_D = CodeBuffer.template("@THIS", "D=M");
+    private static final byte[] THAT_TO_D = CodeBuffer.template("@THAT", "D=M");
+    private static final byte[] D_TO_THIS = CodeBuffer.template("@THIS", "M=D");
+    private static final byte[] D_TO_THAT = CodeBuffer.template("@THAT", "M=D");
+    private static final byte[] SAVE_VALUE = CodeBuffer.template("@R13", "M=D");
+    private static final byte[] STORE_AT_R13 = CodeBuffer.template("@R13", "A=M", "M=D");
+    private static final byte[] PUSH_ZERO = CodeBuffer.template(
+            "@SP",
+            "A=M",
+            "M=0", // *SP=0
+            "@SP",
+            "M=M+1"); // SP++
+    private static final byte[] SIZE_CALL_ARGUMENTS = CodeBuffer.template("D=A", "@R13", "M=D");
+    private static final byte[] SIZE_CALL_FUNCTION = CodeBuffer.template("D=A", "@R14", "M=D");
+    private static final byte[] SIZE_RETURN = CodeBuffer.template("@" + RETURN_ROUTINE, "0;JMP");
+    private static final byte[] CALL_ARGUMENTS = CodeBuffer.template("@SP", "D=M");
+    private static final byte[] CALL_FRAME = CodeBuffer.template(
+            "D=D-A",
+            "@ARG",
+            "M=D", // ARG = SP - 5 - nArgs
+            "@SP",
+            "D=M",
+            "@LCL",
+            "M=D"); // LCL = SP
+    private static final byte[][] SAVE_POINTERS = {
+            CodeBuffer.template("@LCL", "D=M"),
+            CodeBuffer.template("@ARG", "D=M"),
+            CodeBuffer.template("@THIS", "D=M"),
+            CodeBuffer.template("@THAT", "D=M")};
+    private static final byte[] RETURN = returnCode();
+    // The return addresses are Xxx.yyy$$ret.n, and the comparison labels Xxx$$IFn and Xxx$$ELSEn: a VM label can't
+    // have a '$', so no label of a command, Xxx.yyy$label or Xxx$label outside a function, is one of them.
+    private static final byte[] RETURN_ADDRESS = "$$ret.".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] IF = "$$IF".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ELSE = "$$ELSE".getBytes(StandardCharsets.US_ASCII);
+
+    // The templates of the commands on the segments that are addressed through a pointer, by segment.
+    private static final Map<Segment, byte[]> PUSH_FROM_SEGMENT = new EnumMap<>(Segment.class);
+    private static final Map<Segment, byte[]> POP_TO_SEGMENT = new EnumMap<>(Segment.class);
+    private static final Map<Segment, byte[]> CACHED_POP_ADDRESS = new EnumMap<>(Segment.class);
+    private static final Map<Segment, byte[]> CACHED_POP_WITH_R14 = new EnumMap<>(Segment.class);
+    private static final Map<Segment, byte[]> CACHED_POP_WITH_R13 = new EnumMap<>(Segment.class);
+    // The templates of the arithmetic commands, by command.
+    private static final Map<Opcode, byte[]> OPERATIONS = new EnumMap<>(Opcode.class);
+    private static final Map<Opcode, byte[]> CACHED_OPERATIONS = new EnumMap<>(Opcode.class);
+    private static final Map<Opcode, byte[]> COMPARISON_JUMPS = new EnumMap<>(Opcode.class);
+    private static final Map<Opcode, byte[]> CACHED_COMPARISON_JUMPS = new EnumMap<>(Opcode.class);
+
+    static {
+        for (Segment segment : new Segment[]{Segment.LOCAL, Segment.ARGUMENT, Segment.THIS, Segment.THAT}) {
+            String pointer = "@" + segment.pointer();
+            PUSH_FROM_SEGMENT.put(segment, CodeBuffer.template(
+                    "D=A",
+                    pointer,
+                    "A=D+M", // address = i + segmentPointer
+                    "D=M")); // D = *address
+            POP_TO_SEGMENT.put(segment, CodeBuffer.template(
+                    "D=A",
+                    pointer,
+                    "D=D+M", // address = i + segmentPointer
+                    "@R13",
+                    "M=D", // M[13] = address
+                    "@SP",
+                    "AM=M-1", // SP--
+                    "D=M", // D = *SP
+                    "@R13",
+                    "A=M",
+                    "M=D")); // *address = *SP
+            CACHED_POP_ADDRESS.put(segment, CodeBuffer.template(pointer, "A=M"));
+            // The address is computed in D, so the value waits in R13.
+            CACHED_POP_WITH_R14.put(segment, CodeBuffer.template(
+                    "D=A",
+                    pointer,
+                    "D=D+M", // address = i + segmentPointer
+                    "@R14",
+                    "M=D",
+                    "@R13",
+                    "D=M",
+                    "@R14",
+                    "A=M",
+                    "M=D")); // *address = top
+            CACHED_POP_WITH_R13.put(segment, CodeBuffer.template(
+                    "D=A",
+                    pointer,
+                    "D=D+M", // address = i + segmentPointer
+                    "@R13",
+                    "M=D")); // M[13] = address
+        }
+        for (Opcode command : new Opcode[]{Opcode.ADD, Opcode.SUB, Opcode.AND, Opcode.OR}) {
+            OPERATIONS.put(command, CodeBuffer.template("@SP", "AM=M-1", "D=M", "A=A-1",
+                    command == Opcode.SUB ? "M=M-D" : "M=D" + getOperation(command) + "M"));
+            CACHED_OPERATIONS.put(command, CodeBuffer.template("@SP", "AM=M-1",
+                    command == Opcode.SUB ? "D=M-D" : "D=D" + getOperation(command) + "M"));
+        }
+        for (Opcode command : new Opcode[]{Opcode.EQ, Opcode.GT, Opcode.LT}) {
+            COMPARISON_JUMPS.put(command, CodeBuffer.template("D;" + getOperation(command)));
+            CACHED_COMPARISON_JUMPS.put(command, CodeBuffer.template("D;J" + command.name()));
+        }
+        CACHED_OPERATIONS.put(Opcode.NEG, CodeBuffer.template("@SP", "AM=M-1", "D=-M"));
+        CACHED_OPERATIONS.put(Opcode.NOT, CodeBuffer.template("@SP", "AM=M-1", "D=!M"));
+    }
+
+    private final CodeMode mode;
+    // With stack caching, the top of the stack may be kept in D instead of in RAM, until it has to be written out.
+    private final boolean stackCaching;
+    // Is the top of the stack in D? Then SP doesn't count it. It's written out before labels, jumps, calls and
+    // returns, so every label is reached with the whole stack in RAM.
+    private boolean topInD;
+    private final CodeBuffer out;
     private int jumpIndex;
+    private int returnIndex;
+    // The name of the VM file being translated, which qualifies its static variables and internal labels.
+    private String fileName;
+    // The function being translated, which qualifies its labels. Code outside any function (e.g. the bootstrap
+    // code) belongs to the file.
+    private String functionName;
 
     /**
      * Open the the output file/ stream and gets ready to write into it.
      */
     public CodeWriter(String outputFile) throws IOException {
-        bw = new BufferedWriter(new FileWriter(outputFile));
+        this(new CodeBuffer(Paths.get(outputFile)), CodeMode.SPEED, false);
+    }
+
+    /**
+     * Gets ready to write code of the given mode into the given buffer, e.g. an in-memory buffer, keeping the top of
+     * the stack in D if stackCaching is set.
+     */
+    public CodeWriter(CodeBuffer buffer, CodeMode mode, boolean stackCaching) {
+        out = buffer;
+        this.mode = mode;
+        this.stackCaching = stackCaching;
         jumpIndex = 0;
+        returnIndex = 0;
+        setFileName("Bootstrap");
     }
 
     /**
-     * Writes to the output file the assembly code that implements the given arithmetic command.
+     * Informs the code writer that the translation of a new VM file is started, e.g. Main for Main.vm.
+     */
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+        this.functionName = fileName;
+    }
+
+    /**
+     * Writes the bootstrap code: SP = 256, then call Sys.init.
+     * This code is placed at the beginning of the output file.
      */
-    public void writeArithmetic(String command) throws IOException {
+    public void writeInit() throws IOException {
+        out.write(INIT);
+
+        writeCall("Sys.init", 0);
+    }
+
+    /**
+     * Writes to the output file the assembly code that implements the commands of the given program.
+     */
+    public void write(VMProgram program) throws IOException {
+        for (int i = 0; i < program.size(); i++) {
+            write(program, i);
+        }
+    }
+
+    /**
+     * Writes to the output file the assembly code that implements the given command of the given program.
+     */
+    public void write(VMProgram program, int command) throws IOException {
+        Opcode opcode = program.opcode(command);
+        switch (opcode) {
+            case PUSH:
+            case POP:
+                writePushPop(opcode, program.segment(command), program.operand(command));
+                break;
+            case LABEL:
+                writeLabel(program.name(command));
+                break;
+            case GOTO:
+                writeGoto(program.name(command));
+                break;
+            case IF_GOTO:
+                writeIf(program.name(command));
+                break;
+            case FUNCTION:
+                writeFunction(program.name(command), program.operand(command));
+                break;
+            case CALL:
+                writeCall(program.name(command), program.operand(command));
+                break;
+            case RETURN:
+                writeReturn();
+                break;
+            default:
+                writeArithmetic(opcode);
+        }
+    }
 
-        StringBuilder assemblyCommands = new StringBuilder();
+    /**
+     * Writes to the output file the assembly code that implements the given arithmetic command.
+     */
+    public void writeArithmetic(Opcode command) throws IOException {
+        if (stackCaching) {
+            writeCachedArithmetic(command);
+            return;
+        }
 
         switch (command) {
-            case "add":
-            case "sub":
-            case "and":
-            case "or":
-                assemblyCommands
-                        .append("@SP").append(System.lineSeparator())
-                        .append("AM=M-1").append(System.lineSeparator())
-                        .append("D=M").append(System.lineSeparator())
-                        .append("A=A-1").append(System.lineSeparator())
-                        .append("M=M" + getOperation(command) + "D").append(System.lineSeparator());
-                break;
-            case "eq":
-            case "gt":
-            case "lt":
-                assemblyCommands
-                        .append("@SP").append(System.lineSeparator())
-                        .append("AM=M-1").append(System.lineSeparator())
-                        .append("D=M").append(System.lineSeparator())
-                        .append("A=A-1").append(System.lineSeparator())
-                        .append("D=M-D").append(System.lineSeparator())
-                        .append("@IF" + jumpIndex).append(System.lineSeparator())
-                        .append("D;" + getOperation(command)).append(System.lineSeparator())
-                        .append("@SP").append(System.lineSeparator())
-                        .append("A=M-1").append(System.lineSeparator())
-                        .append("M=-1").append(System.lineSeparator())
-                        .append("@ELSE" + jumpIndex).append(System.lineSeparator())
-                        .append("0;JMP").append(System.lineSeparator())
-                        .append("(IF" + jumpIndex + ")").append(System.lineSeparator())
-                        .append("@SP").append(System.lineSeparator())
-                        .append("A=M-1").append(System.lineSeparator())
-                        .append("M=0").append(System.lineSeparator())
-                        .append("(ELSE" + jumpIndex + ")").append(System.lineSeparator());
+            case ADD:
+            case SUB:
+            case AND:
+            case OR:
+                out.write(OPERATIONS.get(command));
+                break;
+            case EQ:
+            case GT:
+            case LT:
+                if (mode == CodeMode.SIZE) {
+                    writeRoutineCall(comparisonRoutine(command));
+                    break;
+                }
+                out.write(COMPARE);
+                writeJumpLabel('@', IF);
+                out.write(COMPARISON_JUMPS.get(command)).write(SET_TRUE);
+                writeJumpLabel('@', ELSE);
+                out.write(JUMP);
+                writeJumpLabel('(', IF);
+                out.write(SET_FALSE);
+                writeJumpLabel('(', ELSE);
                 jumpIndex++;
                 break;
-            case "neg":
-                assemblyCommands
-                        .append("D=0").append(System.lineSeparator())
-                        .append("@SP").append(System.lineSeparator())
-                        .append("A=M-1").append(System.lineSeparator())
-                        .append("M=D-M").append(System.lineSeparator());
+            case NEG:
+                out.write(NEG);
+                break;
+            case NOT:
+                out.write(NOT);
+                break;
+            default:
+                throw new RuntimeException("Illegal arithmetic command");
+        }
+    }
+
+    // Computes the command with the top of the stack in D, and leaves the result in D.
+    private void writeCachedArithmetic(Opcode command) throws IOException {
+        switch (command) {
+            case ADD:
+            case SUB:
+            case AND:
+            case OR:
+                writeTopToD();
+                out.write(CACHED_OPERATIONS.get(command));
+                break;
+            case EQ:
+            case GT:
+            case LT:
+                if (mode == CodeMode.SIZE) {
+                    // The shared routines work on the stack in RAM.
+                    writeSpill();
+                    writeRoutineCall(comparisonRoutine(command));
+                    return;
+                }
+                writeTopToD();
+                out.write(CACHED_COMPARE);
+                writeJumpLabel('@', IF);
+                out.write(CACHED_COMPARISON_JUMPS.get(command)).write(D_EQUALS_FALSE);
+                writeJumpLabel('@', ELSE);
+                out.write(JUMP);
+                writeJumpLabel('(', IF);
+                out.write(D_EQUALS_TRUE);
+                writeJumpLabel('(', ELSE);
+                jumpIndex++;
                 break;
-            case "not":
-                assemblyCommands
-                        .append("@SP").append(System.lineSeparator())
-                        .append("A=M-1").append(System.lineSeparator())
-                        .append("M=!M").append(System.lineSeparator());
+            case NEG:
+            case NOT:
+                if (topInD) {
+                    out.write(command == Opcode.NEG ? NEG_OF_D : NOT_OF_D);
+                } else {
+                    out.write(CACHED_OPERATIONS.get(command));
+                }
                 break;
             default:
                 throw new RuntimeException("Illegal arithmetic command");
         }
+        topInD = true;
+    }
+
+    // Writes the reference to, or the definition of, the label of the current comparison, e.g. @Main$$IF3 or
+    // (Main$$IF3).
+    private void writeJumpLabel(char prefix, byte[] kind) {
+        out.write(prefix).write(fileName).write(kind).write(jumpIndex);
+        if (prefix == '(') {
+            out.write(')');
+        }
+        out.newLine();
+    }
 
-        bw.write(assemblyCommands.toString());
+    // Writes the top of the stack out to RAM, if it's in D.
+    private void writeSpill() {
+        if (topInD) {
+            out.write(PUSH_D);
+            topInD = false;
+        }
+    }
+
+    // Moves the top of the stack into D, popping it from RAM if it isn't in D already. The caller sets topInD.
+    private void writeTopToD() {
+        if (!topInD) {
+            out.write(POP_TO_D);
+        }
     }
 
-    private String getOperation(String command) {
+    private static String comparisonRoutine(Opcode command) {
+        return "VM$" + command.keyword();
+    }
+
+    private static String getOperation(Opcode command) {
         switch (command) {
-            case "add":
+            case ADD:
                 return "+";
-            case "sub":
+            case SUB:
                 return "-";
-            case "and":
+            case AND:
                 return "&";
-            case "or":
+            case OR:
                 return "|";
-            case "eq":
+            case EQ:
                 return "JNE";
-            case "gt":
+            case GT:
                 return "JLE";
-            case "lt":
+            case LT:
                 return "JGE";
             default:
                 throw new RuntimeException("Illegal command");
@@ -105,15 +388,15 @@ public class CodeWriter implements AutoCloseable {
 
     /**
      * Writes to the output file assembly code that implements the given command,
-     * where command is either C_PUSH or C_POP.
+     * where command is either PUSH or POP.
      */
-    public void writePushPop(CommandType commandType, String segment, int index) throws IOException {
+    public void writePushPop(Opcode command, Segment segment, int index) throws IOException {
 
-        switch (commandType) {
-            case C_PUSH:
+        switch (command) {
+            case PUSH:
                 writePush(segment, index);
                 break;
-            case C_POP:
+            case POP:
                 writePop(segment, index);
                 break;
             default:
@@ -121,128 +404,345 @@ public class CodeWriter implements AutoCloseable {
         }
     }
 
-    private void writePush(String segment, int index) throws IOException {
-
-        StringBuilder assemblyCommands = new StringBuilder();
+    private void writePush(Segment segment, int index) {
+        writeSpill();
 
         switch (segment) {
-            case "constant":
-                assemblyCommands
-                        .append("@").append(index).append(System.lineSeparator())
-                        .append("D=A").append(System.lineSeparator());
-                break;
-            case "local":
-            case "argument":
-            case "this":
-            case "that":
-                assemblyCommands
-                        .append("@").append(index).append(System.lineSeparator())
-                        .append("D=A").append(System.lineSeparator())
-                        .append("@").append(getSegmentPointer(segment)).append(System.lineSeparator())
-                        .append("A=D+M").append(System.lineSeparator()) // address = i + segmentPointer
-                        .append("D=M").append(System.lineSeparator()); // D = *address
-                break;
-            case "static":
-                assemblyCommands
-                        .append("@").append(staticBaseAddress + index).append(System.lineSeparator())
-                        .append("D=M").append(System.lineSeparator());
-                break;
-            case "temp":
-                assemblyCommands
-                        .append("@").append(tempBaseAddress + index).append(System.lineSeparator())
-                        .append("D=M").append(System.lineSeparator());
-                break;
-            case "pointer":
-                assemblyCommands
-                        .append("@").append(index == 0 ? "THIS" : "THAT").append(System.lineSeparator())
-                        .append("D=M").append(System.lineSeparator());
+            case CONSTANT:
+                writeAddress(index);
+                out.write(D_EQUALS_A);
+                break;
+            case LOCAL:
+            case ARGUMENT:
+            case THIS:
+            case THAT:
+                writeAddress(index);
+                out.write(PUSH_FROM_SEGMENT.get(segment));
+                break;
+            case STATIC:
+                writeStaticAddress(index);
+                out.write(D_EQUALS_M);
+                break;
+            case TEMP:
+                writeAddress(tempBaseAddress + index);
+                out.write(D_EQUALS_M);
+                break;
+            case POINTER:
+                out.write(index == 0 ? THIS_TO_D : THAT_TO_D);
                 break;
             default:
                 throw new RuntimeException("Illegal segment");
         }
 
-        assemblyCommands
-                .append("@SP").append(System.lineSeparator())
-                .append("A=M").append(System.lineSeparator())
-                .append("M=D").append(System.lineSeparator()) // *SP=D
-                .append("@SP").append(System.lineSeparator())
-                .append("M=M+1").append(System.lineSeparator()); // SP++
-
-        bw.write(assemblyCommands.toString());
+        if (stackCaching) {
+            topInD = true;
+        } else {
+            out.write(PUSH_D);
+        }
     }
 
-    private String getSegmentPointer(String segment) {
+    private void writePop(Segment segment, int index) {
+        if (stackCaching) {
+            writeCachedPop(segment, index);
+            return;
+        }
+
         switch (segment) {
-            case "local":
-                return "LCL";
-            case "argument":
-                return "ARG";
-            case "this":
-                return "THIS";
-            case "that":
-                return "THAT";
+            case LOCAL:
+            case ARGUMENT:
+            case THIS:
+            case THAT:
+                writeAddress(index);
+                out.write(POP_TO_SEGMENT.get(segment));
+                break;
+            case STATIC:
+                out.write(POP_TO_D);
+                writeStaticAddress(index);
+                out.write(M_EQUALS_D); // *address = *SP
+                break;
+            case TEMP:
+                out.write(POP_TO_D);
+                writeAddress(tempBaseAddress + index);
+                out.write(M_EQUALS_D); // *address = *SP
+                break;
+            case POINTER:
+                out.write(index == 0 ? POP_TO_THIS : POP_TO_THAT);
+                break;
             default:
                 throw new RuntimeException("Illegal segment");
         }
     }
 
-    private void writePop(String segment, int index) throws IOException {
-
-        StringBuilder assemblyCommands = new StringBuilder();
-
+    private void writeCachedPop(Segment segment, int index) {
         switch (segment) {
-            case "local":
-            case "argument":
-            case "this":
-            case "that":
-                assemblyCommands
-                        .append("@").append(index).append(System.lineSeparator())
-                        .append("D=A").append(System.lineSeparator())
-                        .append("@").append(getSegmentPointer(segment)).append(System.lineSeparator())
-                        .append("D=D+M").append(System.lineSeparator()) // address = i + segmentPointer
-                        .append("@R13").append(System.lineSeparator())
-                        .append("M=D").append(System.lineSeparator()) // M[13] = address
-                        .append("@SP").append(System.lineSeparator())
-                        .append("AM=M-1").append(System.lineSeparator()) // SP--
-                        .append("D=M").append(System.lineSeparator()) // D = *SP
-                        .append("@R13").append(System.lineSeparator())
-                        .append("A=M").append(System.lineSeparator());
-                break;
-            case "static":
-                assemblyCommands
-                        .append("@SP").append(System.lineSeparator())
-                        .append("AM=M-1").append(System.lineSeparator()) // SP--
-                        .append("D=M").append(System.lineSeparator()) // D = *SP
-                        .append("@").append(staticBaseAddress + index).append(System.lineSeparator());
-                break;
-            case "temp":
-                assemblyCommands
-                        .append("@SP").append(System.lineSeparator())
-                        .append("AM=M-1").append(System.lineSeparator()) // SP--
-                        .append("D=M").append(System.lineSeparator()) // D = *SP
-                        .append("@").append(tempBaseAddress + index).append(System.lineSeparator());
-                break;
-            case "pointer":
-                assemblyCommands
-                        .append("@SP").append(System.lineSeparator())
-                        .append("AM=M-1").append(System.lineSeparator()) // SP--
-                        .append("D=M").append(System.lineSeparator()) // D = *SP
-                        .append("@").append(index == 0 ? "THIS" : "THAT").append(System.lineSeparator());
+            case LOCAL:
+            case ARGUMENT:
+            case THIS:
+            case THAT:
+                if (index <= MAX_INCREMENTS) {
+                    writeTopToD();
+                    out.write(CACHED_POP_ADDRESS.get(segment));
+                    // address = segmentPointer + i
+                    for (int i = 0; i < index; i++) {
+                        out.write(A_PLUS_1);
+                    }
+                    out.write(M_EQUALS_D); // *address = top
+                } else if (topInD) {
+                    out.write(SAVE_VALUE);
+                    writeAddress(index);
+                    out.write(CACHED_POP_WITH_R14.get(segment));
+                } else {
+                    writeAddress(index);
+                    out.write(CACHED_POP_WITH_R13.get(segment)).write(POP_TO_D).write(STORE_AT_R13);
+                }
+                break;
+            case STATIC:
+                writeTopToD();
+                writeStaticAddress(index);
+                out.write(M_EQUALS_D); // *address = top
+                break;
+            case TEMP:
+                writeTopToD();
+                writeAddress(tempBaseAddress + index);
+                out.write(M_EQUALS_D); // *address = top
+                break;
+            case POINTER:
+                writeTopToD();
+                out.write(index == 0 ? D_TO_THIS : D_TO_THAT);
                 break;
             default:
                 throw new RuntimeException("Illegal segment");
         }
+        topInD = false;
+    }
+
+    // Writes an A-instruction of the given address, e.g. @5.
+    private void writeAddress(int address) {
+        out.write('@').write(address).newLine();
+    }
+
+    // Writes an A-instruction of the given static variable of the file, e.g. @Main.2.
+    private void writeStaticAddress(int index) {
+        out.write('@').write(fileName).write('.').write(index).newLine();
+    }
 
-        assemblyCommands
-                .append("M=D").append(System.lineSeparator()); // *address = *SP
+    /**
+     * Writes assembly code that effects the label command.
+     */
+    public void writeLabel(String label) throws IOException {
+        writeSpill();
+        out.write('(').write(functionName).write('$').write(label).write(')').newLine();
+    }
 
-        bw.write(assemblyCommands.toString());
+    /**
+     * Writes assembly code that effects the goto command.
+     */
+    public void writeGoto(String label) throws IOException {
+        writeSpill();
+        out.write('@').write(functionName).write('$').write(label).newLine()
+                .write(JUMP);
+    }
+
+    /**
+     * Writes assembly code that effects the if-goto command: pops the top of the stack, and jumps if it isn't false.
+     */
+    public void writeIf(String label) throws IOException {
+        writeTopToD();
+        topInD = false;
+        out.write('@').write(functionName).write('$').write(label).newLine()
+                .write(JUMP_IF_TRUE);
+    }
+
+    /**
+     * Writes assembly code that effects the function command: the entry label, and nVars local variables
+     * initialized to 0.
+     */
+    public void writeFunction(String functionName, int nVars) throws IOException {
+        this.functionName = functionName;
+
+        writeSpill();
+        out.write('(').write(functionName).write(')').newLine();
+        for (int i = 0; i < nVars; i++) {
+            out.write(PUSH_ZERO);
+        }
+    }
+
+    /**
+     * Writes assembly code that effects the call command: saves the frame of the caller, repositions ARG and LCL,
+     * and jumps to the function.
+     */
+    public void writeCall(String functionName, int nArgs) throws IOException {
+        writeSpill();
+
+        if (mode == CodeMode.SIZE) {
+            writeAddress(nArgs);
+            out.write(SIZE_CALL_ARGUMENTS); // R13 = nArgs
+            out.write('@').write(functionName).newLine()
+                    .write(SIZE_CALL_FUNCTION); // R14 = function
+            writeRoutineCall(CALL_ROUTINE);
+            return;
+        }
+
+        int returnAddress = returnIndex++;
+        writeReturnAddress('@', returnAddress);
+        out.write(D_EQUALS_A).write(PUSH_D); // push returnAddress
+        for (byte[] pointer : SAVE_POINTERS) {
+            out.write(pointer).write(PUSH_D); // push pointer
+        }
+        out.write(CALL_ARGUMENTS);
+        writeAddress(5 + nArgs);
+        out.write(CALL_FRAME);
+        out.write('@').write(functionName).newLine()
+                .write(JUMP);
+        writeReturnAddress('(', returnAddress);
+    }
+
+    // Writes the reference to, or the definition of, the return address of the given index in the current function,
+    // e.g. @Main.main$$ret.0 or (Main.main$$ret.0).
+    private void writeReturnAddress(char prefix, int index) {
+        out.write(prefix).write(functionName).write(RETURN_ADDRESS).write(index);
+        if (prefix == '(') {
+            out.write(')');
+        }
+        out.newLine();
+    }
+
+    // Jumps to a shared routine with the return address in D, and defines the return address.
+    private void writeRoutineCall(String routine) {
+        int returnAddress = returnIndex++;
+        writeReturnAddress('@', returnAddress);
+        out.write(D_EQUALS_A);
+        out.write('@').write(routine).newLine()
+                .write(JUMP);
+        writeReturnAddress('(', returnAddress);
+    }
+
+    /**
+     * Writes assembly code that effects the return command: copies the return value to the top of the caller's
+     * stack, restores the caller's frame and jumps to the return address.
+     */
+    public void writeReturn() throws IOException {
+        writeSpill();
+
+        out.write(mode == CodeMode.SIZE ? SIZE_RETURN : RETURN);
+    }
+
+    private static byte[] returnCode() {
+        CodeBuffer code = new CodeBuffer();
+        code.write(CodeBuffer.template(
+                "@LCL",
+                "D=M",
+                "@R13",
+                "M=D", // frame = LCL
+                "@5",
+                "A=D-A",
+                "D=M",
+                "@R14",
+                "M=D", // returnAddress = *(frame - 5)
+                "@SP",
+                "AM=M-1",
+                "D=M",
+                "@ARG",
+                "A=M",
+                "M=D", // *ARG = pop()
+                "@ARG",
+                "D=M+1",
+                "@SP",
+                "M=D")); // SP = ARG + 1
+        for (String pointer : new String[]{"THAT", "THIS", "ARG", "LCL"}) {
+            code.write(CodeBuffer.template(
+                    "@R13",
+                    "AM=M-1",
+                    "D=M",
+                    "@" + pointer,
+                    "M=D")); // pointer = *(--frame)
+        }
+        code.write(CodeBuffer.template(
+                "@R14",
+                "A=M",
+                "0;JMP")); // goto returnAddress
+        return code.toByteArray();
+    }
+
+    /**
+     * Writes the routines that the code of CodeMode.SIZE jumps to, and a jump over them. They are written once per
+     * program, e.g. after the bootstrap code.
+     * A routine is entered with the return address in D, and keeps it in R15. The call routine also takes nArgs in
+     * R13 and the address of the function in R14.
+     */
+    public void writeSharedRoutines() throws IOException {
+        out.write(CodeBuffer.template(
+                "@" + ROUTINES_END,
+                "0;JMP"));
+
+        // The comparisons write true, then overwrite it with false if the jump to the end isn't taken.
+        for (Opcode command : new Opcode[]{Opcode.EQ, Opcode.GT, Opcode.LT}) {
+            out.write(CodeBuffer.template(
+                    "(" + comparisonRoutine(command) + ")",
+                    "@R15",
+                    "M=D",
+                    "@SP",
+                    "AM=M-1",
+                    "D=M",
+                    "A=A-1",
+                    "D=M-D",
+                    "M=-1",
+                    "@" + COMPARISON_END,
+                    "D;J" + command.name(),
+                    "@SP",
+                    "A=M-1",
+                    "M=0"));
+            if (command != Opcode.LT) {
+                out.write(CodeBuffer.template(
+                        "@" + COMPARISON_END,
+                        "0;JMP"));
+            }
+        }
+        out.write(CodeBuffer.template(
+                "(" + COMPARISON_END + ")",
+                "@R15",
+                "A=M",
+                "0;JMP"));
+
+        out.write(CodeBuffer.template("(" + CALL_ROUTINE + ")"))
+                .write(PUSH_D); // push returnAddress
+        for (byte[] pointer : SAVE_POINTERS) {
+            out.write(pointer).write(PUSH_D); // push pointer
+        }
+        out.write(CodeBuffer.template(
+                "@R13",
+                "D=M",
+                "@5",
+                "D=D+A",
+                "@SP",
+                "D=M-D",
+                "@ARG",
+                "M=D", // ARG = SP - 5 - nArgs
+                "@SP",
+                "D=M",
+                "@LCL",
+                "M=D", // LCL = SP
+                "@R14",
+                "A=M",
+                "0;JMP")); // goto function
+
+        out.write(CodeBuffer.template("(" + RETURN_ROUTINE + ")"))
+                .write(RETURN)
+                .write(CodeBuffer.template("(" + ROUTINES_END + ")"));
+    }
+
+    /**
+     * Writes the cached top of the stack out to RAM, e.g. at the end of a file.
+     */
+    public void writeEnd() throws IOException {
+        writeSpill();
     }
 
     /**
      * Closes the output file.
      */
     public void close() throws IOException {
-        bw.close();
+        writeEnd();
+        out.close();
     }
 }
@@ -0,0 +1,12 @@
+/**
+ * A VM function implemented in Java, which VMEmulator calls instead of the function's VM code, e.g. an OS function.
+ */
+@FunctionalInterface
+public interface Intrinsic {
+
+    /**
+     * Returns the value of the function (which is truncated to 16 bits), given the emulator's RAM and the address
+     * of the first argument in it. A method's first argument is this.
+     */
+    int call(VMEmulator vm, int[] ram, int args);
+}
@@ -0,0 +1,380 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The Jack OS (Math, Memory, Array, String, Output, Screen, Keyboard and Sys) as intrinsics of a VMEmulator.
+ * Output prints to a stream instead of drawing characters on the screen, and Keyboard reads from a stream. Screen
+ * draws into the screen memory map. Errors print ERR and the OS error code, and halt.
+ * Jack code only uses the objects of the OS through its functions, so their layout is this class's own: a String is
+ * [maxLength, length, characters...] on the heap.
+ */
+public class JackOS {
+
+    private static final int HEAP_BASE = 2048;
+    private static final int HEAP_END = VMEmulator.SCREEN;
+    private static final int SCREEN_WIDTH = 512;
+    private static final int SCREEN_HEIGHT = 256;
+    private static final int NEW_LINE = 128;
+    private static final int BACKSPACE = 129;
+    private static final int DOUBLE_QUOTE = 34;
+
+    private final PrintStream out;
+    private final BufferedReader in;
+    // The free blocks of the heap by address, with their sizes, and the sizes of the allocated blocks.
+    private final TreeMap<Integer, Integer> freeBlocks = new TreeMap<>();
+    private final Map<Integer, Integer> allocatedBlocks = new HashMap<>();
+    private boolean black;
+
+    public JackOS(PrintStream out, InputStream in) {
+        this.out = out;
+        this.in = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Replaces the OS functions that the emulator's program calls by intrinsics, and initializes the OS.
+     * Sys.init isn't replaced: a program without it is started at Main.main.
+     */
+    public void install(VMEmulator vm) {
+        freeBlocks.clear();
+        allocatedBlocks.clear();
+        freeBlocks.put(HEAP_BASE, HEAP_END - HEAP_BASE);
+        black = true;
+
+        for (String init : new String[]{"Math.init", "Memory.init", "Output.init", "Screen.init", "Keyboard.init"}) {
+            vm.intrinsify(init, (v, ram, args) -> 0);
+        }
+
+        vm.intrinsify("Math.abs", (v, ram, args) -> Math.abs(ram[args]));
+        vm.intrinsify("Math.multiply", (v, ram, args) -> ram[args] * ram[args + 1]);
+        vm.intrinsify("Math.divide", (v, ram, args) ->
+                ram[args + 1] == 0 ? error(v, 3) : ram[args] / ram[args + 1]);
+        vm.intrinsify("Math.min", (v, ram, args) -> Math.min(ram[args], ram[args + 1]));
+        vm.intrinsify("Math.max", (v, ram, args) -> Math.max(ram[args], ram[args + 1]));
+        vm.intrinsify("Math.sqrt", (v, ram, args) -> ram[args] < 0 ? error(v, 4) : (int) Math.sqrt(ram[args]));
+
+        vm.intrinsify("Memory.peek", (v, ram, args) -> ram[ram[args] & 0x7FFF]);
+        vm.intrinsify("Memory.poke", (v, ram, args) -> {
+            ram[ram[args] & 0x7FFF] = ram[args + 1];
+            return 0;
+        });
+        vm.intrinsify("Memory.alloc", (v, ram, args) -> ram[args] <= 0 ? error(v, 5) : allocate(v, ram[args]));
+        vm.intrinsify("Memory.deAlloc", (v, ram, args) -> free(ram[args]));
+        vm.intrinsify("Array.new", (v, ram, args) -> ram[args] <= 0 ? error(v, 2) : allocate(v, ram[args]));
+        vm.intrinsify("Array.dispose", (v, ram, args) -> free(ram[args]));
+
+        installString(vm);
+        installOutput(vm);
+        installScreen(vm);
+        installKeyboard(vm);
+
+        vm.intrinsify("Sys.halt", (v, ram, args) -> {
+            v.halt();
+            return 0;
+        });
+        vm.intrinsify("Sys.error", (v, ram, args) -> error(v, ram[args]));
+        vm.intrinsify("Sys.wait", (v, ram, args) -> ram[args] < 0 ? error(v, 1) : 0);
+    }
+
+    private void installString(VMEmulator vm) {
+        vm.intrinsify("String.new", (v, ram, args) -> {
+            if (ram[args] < 0) {
+                return error(v, 14);
+            }
+            int string = allocate(v, ram[args] + 2);
+            if (string == 0) {
+                return 0;
+            }
+            ram[string] = ram[args];
+            ram[string + 1] = 0;
+            return string;
+        });
+        vm.intrinsify("String.dispose", (v, ram, args) -> free(ram[args]));
+        vm.intrinsify("String.length", (v, ram, args) -> ram[ram[args] + 1]);
+        vm.intrinsify("String.charAt", (v, ram, args) -> {
+            int string = ram[args];
+            int j = ram[args + 1];
+            return j < 0 || j >= ram[string + 1] ? error(v, 15) : ram[string + 2 + j];
+        });
+        vm.intrinsify("String.setCharAt", (v, ram, args) -> {
+            int string = ram[args];
+            int j = ram[args + 1];
+            if (j < 0 || j >= ram[string + 1]) {
+                return error(v, 16);
+            }
+            ram[string + 2 + j] = ram[args + 2];
+            return 0;
+        });
+        vm.intrinsify("String.appendChar", (v, ram, args) -> {
+            int string = ram[args];
+            if (ram[string + 1] == ram[string]) {
+                return error(v, 17);
+            }
+            ram[string + 2 + ram[string + 1]] = ram[args + 1];
+            ram[string + 1]++;
+            return string;
+        });
+        vm.intrinsify("String.eraseLastChar", (v, ram, args) -> {
+            int string = ram[args];
+            if (ram[string + 1] == 0) {
+                return error(v, 18);
+            }
+            ram[string + 1]--;
+            return 0;
+        });
+        vm.intrinsify("String.intValue", (v, ram, args) -> intValue(stringValue(ram, ram[args])));
+        vm.intrinsify("String.setInt", (v, ram, args) -> {
+            int string = ram[args];
+            String digits = Integer.toString(ram[args + 1]);
+            if (digits.length() > ram[string]) {
+                return error(v, 19);
+            }
+            for (int i = 0; i < digits.length(); i++) {
+                ram[string + 2 + i] = digits.charAt(i);
+            }
+            ram[string + 1] = digits.length();
+            return 0;
+        });
+        vm.intrinsify("String.newLine", (v, ram, args) -> NEW_LINE);
+        vm.intrinsify("String.backSpace", (v, ram, args) -> BACKSPACE);
+        vm.intrinsify("String.doubleQuote", (v, ram, args) -> DOUBLE_QUOTE);
+    }
+
+    private void installOutput(VMEmulator vm) {
+        vm.intrinsify("Output.moveCursor", (v, ram, args) ->
+                ram[args] < 0 || ram[args] > 22 || ram[args + 1] < 0 || ram[args + 1] > 63 ? error(v, 20) : 0);
+        vm.intrinsify("Output.printChar", (v, ram, args) -> {
+            printChar(ram[args]);
+            return 0;
+        });
+        vm.intrinsify("Output.printString", (v, ram, args) -> {
+            String string = stringValue(ram, ram[args]);
+            for (int i = 0; i < string.length(); i++) {
+                printChar(string.charAt(i));
+            }
+            return 0;
+        });
+        vm.intrinsify("Output.printInt", (v, ram, args) -> {
+            out.print(ram[args]);
+            return 0;
+        });
+        vm.intrinsify("Output.println", (v, ram, args) -> {
+            out.println();
+            return 0;
+        });
+        vm.intrinsify("Output.backSpace", (v, ram, args) -> {
+            out.print('\b');
+            return 0;
+        });
+    }
+
+    private void installScreen(VMEmulator vm) {
+        vm.intrinsify("Screen.clearScreen", (v, ram, args) -> {
+            for (int address = VMEmulator.SCREEN; address < VMEmulator.KBD; address++) {
+                ram[address] = 0;
+            }
+            return 0;
+        });
+        vm.intrinsify("Screen.setColor", (v, ram, args) -> {
+            black = ram[args] != 0;
+            return 0;
+        });
+        vm.intrinsify("Screen.drawPixel", (v, ram, args) -> {
+            if (!onScreen(ram[args], ram[args + 1])) {
+                return error(v, 7);
+            }
+            drawPixel(ram, ram[args], ram[args + 1]);
+            return 0;
+        });
+        vm.intrinsify("Screen.drawLine", (v, ram, args) -> {
+            int x1 = ram[args];
+            int y1 = ram[args + 1];
+            int x2 = ram[args + 2];
+            int y2 = ram[args + 3];
+            if (!onScreen(x1, y1) || !onScreen(x2, y2)) {
+                return error(v, 8);
+            }
+            // Bresenham's algorithm.
+            int dx = Math.abs(x2 - x1);
+            int dy = -Math.abs(y2 - y1);
+            int stepX = x1 < x2 ? 1 : -1;
+            int stepY = y1 < y2 ? 1 : -1;
+            int error = dx + dy;
+            while (true) {
+                drawPixel(ram, x1, y1);
+                if (x1 == x2 && y1 == y2) {
+                    return 0;
+                }
+                if (2 * error >= dy) {
+                    error += dy;
+                    x1 += stepX;
+                }
+                if (2 * error <= dx) {
+                    error += dx;
+                    y1 += stepY;
+                }
+            }
+        });
+        vm.intrinsify("Screen.drawRectangle", (v, ram, args) -> {
+            int x1 = ram[args];
+            int y1 = ram[args + 1];
+            int x2 = ram[args + 2];
+            int y2 = ram[args + 3];
+            if (!onScreen(x1, y1) || !onScreen(x2, y2) || x1 > x2 || y1 > y2) {
+                return error(v, 9);
+            }
+            for (int y = y1; y <= y2; y++) {
+                drawRow(ram, x1, x2, y);
+            }
+            return 0;
+        });
+        vm.intrinsify("Screen.drawCircle", (v, ram, args) -> {
+            int x = ram[args];
+            int y = ram[args + 1];
+            int r = ram[args + 2];
+            if (!onScreen(x, y)) {
+                return error(v, 12);
+            }
+            if (r < 0 || r > 181 || !onScreen(x - r, y - r) || !onScreen(x + r, y + r)) {
+                return error(v, 13);
+            }
+            for (int dy = -r; dy <= r; dy++) {
+                int halfWidth = (int) Math.sqrt(r * r - dy * dy);
+                drawRow(ram, x - halfWidth, x + halfWidth, y + dy);
+            }
+            return 0;
+        });
+    }
+
+    private void installKeyboard(VMEmulator vm) {
+        vm.intrinsify("Keyboard.keyPressed", (v, ram, args) -> ram[VMEmulator.KBD]);
+        vm.intrinsify("Keyboard.readChar", (v, ram, args) -> {
+            try {
+                int c = in.read();
+                return c == '\n' ? NEW_LINE : Math.max(c, 0);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        });
+        vm.intrinsify("Keyboard.readLine", (v, ram, args) -> {
+            String line = readLine(ram, ram[args]);
+            int string = allocate(v, line.length() + 2);
+            if (string == 0) {
+                return 0;
+            }
+            ram[string] = line.length();
+            ram[string + 1] = line.length();
+            for (int i = 0; i < line.length(); i++) {
+                ram[string + 2 + i] = line.charAt(i);
+            }
+            return string;
+        });
+        vm.intrinsify("Keyboard.readInt", (v, ram, args) -> intValue(readLine(ram, ram[args])));
+    }
+
+    // Prints the given message, and reads a line.
+    private String readLine(int[] ram, int message) {
+        String prompt = stringValue(ram, message);
+        out.print(prompt);
+        try {
+            String line = in.readLine();
+            return line == null ? "" : line;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private int allocate(VMEmulator vm, int size) {
+        // First fit.
+        for (Map.Entry<Integer, Integer> block : freeBlocks.entrySet()) {
+            int address = block.getKey();
+            int blockSize = block.getValue();
+            if (blockSize >= size) {
+                freeBlocks.remove(address);
+                if (blockSize > size) {
+                    freeBlocks.put(address + size, blockSize - size);
+                }
+                allocatedBlocks.put(address, size);
+                return address;
+            }
+        }
+        return error(vm, 6);
+    }
+
+    private int free(int address) {
+        Integer size = allocatedBlocks.remove(address);
+        if (size == null) {
+            return 0;
+        }
+
+        // Merge the block with the free blocks around it.
+        Integer next = freeBlocks.remove(address + size);
+        if (next != null) {
+            size += next;
+        }
+        Map.Entry<Integer, Integer> previous = freeBlocks.floorEntry(address);
+        if (previous != null && previous.getKey() + previous.getValue() == address) {
+            freeBlocks.put(previous.getKey(), previous.getValue() + size);
+        } else {
+            freeBlocks.put(address, size);
+        }
+        return 0;
+    }
+
+    private int error(VMEmulator vm, int code) {
+        out.print("ERR" + code);
+        vm.halt();
+        return 0;
+    }
+
+    private void printChar(int c) {
+        if (c == NEW_LINE) {
+            out.println();
+        } else if (c == BACKSPACE) {
+            out.print('\b');
+        } else {
+            out.print((char) c);
+        }
+    }
+
+    private static String stringValue(int[] ram, int string) {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < ram[string + 1]; i++) {
+            value.append((char) ram[string + 2 + i]);
+        }
+        return value.toString();
+    }
+
+    // Returns the integer value of the digits at the start of the given string, which may start with a minus sign.
+    private static int intValue(String string) {
+        int value = 0;
+        boolean negative = string.startsWith("-");
+        for (int i = negative ? 1 : 0; i < string.length() && Character.isDigit(string.charAt(i)); i++) {
+            value = value * 10 + (string.charAt(i) - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    private static boolean onScreen(int x, int y) {
+        return x >= 0 && x < SCREEN_WIDTH && y >= 0 && y < SCREEN_HEIGHT;
+    }
+
+    private void drawPixel(int[] ram, int x, int y) {
+        int address = VMEmulator.SCREEN + y * (SCREEN_WIDTH / 16) + x / 16;
+        int bit = 1 << (x & 15);
+        ram[address] = (short) (black ? ram[address] | bit : ram[address] & ~bit);
+    }
+
+    private void drawRow(int[] ram, int x1, int x2, int y) {
+        for (int x = x1; x <= x2; x++) {
+            drawPixel(ram, x, y);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ * The VM commands, with their keywords and the number of arguments they take.
+ */
+public enum Opcode {
+    ADD("add", 0),
+    SUB("sub", 0),
+    NEG("neg", 0),
+    EQ("eq", 0),
+    GT("gt", 0),
+    LT("lt", 0),
+    AND("and", 0),
+    OR("or", 0),
+    NOT("not", 0),
+    PUSH("push", 2),
+    POP("pop", 2),
+    LABEL("label", 1),
+    GOTO("goto", 1),
+    IF_GOTO("if-goto", 1),
+    FUNCTION("function", 2),
+    CALL("call", 2),
+    RETURN("return", 0);
+
+    private static final Opcode[] VALUES = values();
+
+    private final String keyword;
+    private final int arguments;
+
+    Opcode(String keyword, int arguments) {
+        this.keyword = keyword;
+        this.arguments = arguments;
+    }
+
+    public String keyword() {
+        return keyword;
+    }
+
+    public int arguments() {
+        return arguments;
+    }
+
+    /**
+     * Is this one of the arithmetic/ logical commands, add through not?
+     */
+    public boolean isArithmetic() {
+        return ordinal() <= NOT.ordinal();
+    }
+
+    static Opcode valueOf(int ordinal) {
+        return VALUES[ordinal];
+    }
+}
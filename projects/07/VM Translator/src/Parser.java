@@ -1,99 +1,222 @@
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.util.LinkedList;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
- * parses each VM command into its lexical elements
+ * parses a VM file into a VMProgram, in one pass over its bytes
  */
 public class Parser {
 
-    private String[] currentLineParts = null;
-    private int currentLineIndex = 0;
-    private List<String> lines;
+    private static final Opcode[] OPCODES = Opcode.values();
+    private static final Segment[] SEGMENTS = Segment.values();
+    private static final byte[][] OPCODE_KEYWORDS = new byte[OPCODES.length][];
+    private static final byte[][] SEGMENT_KEYWORDS = new byte[SEGMENTS.length][];
+    // A command has a keyword and up to two arguments.
+    private static final int MAX_TOKENS = 3;
 
-    /**
-     * Open the the input file/ stream and gets ready to parse it.
-     */
-    public Parser(String input) throws IOException {
-        // Reads all the lines from the assembly file
-        lines = Files.readAllLines(Paths.get(input));
-
-        /// Remove white space
-        List<String> linesToRemove = new LinkedList<>();
-        // Mark empty lines and line comments
-        for (String line : lines) {
-            if (line.isEmpty() || line.startsWith("//")) {
-                linesToRemove.add(line);
-            }
+    static {
+        for (Opcode opcode : OPCODES) {
+            OPCODE_KEYWORDS[opcode.ordinal()] = opcode.keyword().getBytes(StandardCharsets.US_ASCII);
         }
-
-        // Remove empty lines and line comments
-        for (String line : linesToRemove) {
-            lines.remove(line);
+        for (Segment segment : SEGMENTS) {
+            SEGMENT_KEYWORDS[segment.ordinal()] = segment.keyword().getBytes(StandardCharsets.US_ASCII);
         }
+    }
 
-        // Remove in-line comments and indentation
-        for (int i = 0; i < lines.size(); i++) {
-            String line = lines.get(i);
-            int index = line.indexOf("//");
-            if (index != -1) {
-                line = line.substring(0, index);
-            }
-            lines.set(i, line.trim());
-        }
+    private final byte[] text;
+    private final int[] tokenBegins = new int[MAX_TOKENS];
+    private final int[] tokenEnds = new int[MAX_TOKENS];
+
+    // The commands parsed so far, in growing arrays of which the first size elements are used.
+    private byte[] opcodes = new byte[64];
+    private byte[] segments = new byte[64];
+    private int[] operands = new int[64];
+    private int[] nameIds = new int[64];
+    private int[] lines = new int[64];
+    private int size;
+    private final Map<String, Integer> nameIdsByName = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+
+    private Parser(byte[] text) {
+        this.text = text;
     }
 
     /**
-     * Are there more commands in the input?
+     * Parses the given VM file.
      */
-    public boolean hasMoreCommands() {
-        return currentLineIndex < lines.size();
+    public static VMProgram parse(Path input) throws IOException {
+        return parse(Files.readAllBytes(input));
     }
 
     /**
-     * Reads the next command from the input and make it the current command.
-     * Should be called only if hasMoreCommands() is true. Initially there is no current command.
+     * Parses the given VM code. Errors are reported by line.
      */
-    public void advance() {
-        currentLineParts = lines.get(currentLineIndex).split(" ");
-        currentLineIndex++;
+    public static VMProgram parse(byte[] text) {
+        Parser parser = new Parser(text);
+        parser.parseLines();
+        return parser.toProgram();
     }
 
-    /**
-     * Returns a constant representing the type of the current command.
-     * C_ARITHMETIC is returned for all arithmetic/ logical commands.
-     */
-    public CommandType commandType() {
-        switch (currentLineParts[0]) {
-            case "push":
-                return CommandType.C_PUSH;
-            case "pop":
-                return CommandType.C_POP;
+    private void parseLines() {
+        int position = 0;
+        int line = 0;
+        while (position < text.length) {
+            line++;
+            int lineEnd = position;
+            while (lineEnd < text.length && text[lineEnd] != '\n') {
+                lineEnd++;
+            }
+
+            // Split the line into tokens, up to a comment.
+            int tokens = 0;
+            int i = position;
+            while (i < lineEnd) {
+                byte b = text[i];
+                if (b == '/' && i + 1 < lineEnd && text[i + 1] == '/') {
+                    break;
+                }
+                if (b == ' ' || b == '\t' || b == '\r') {
+                    i++;
+                    continue;
+                }
+                if (tokens == MAX_TOKENS) {
+                    throw error(line, "Too many arguments");
+                }
+                tokenBegins[tokens] = i;
+                while (i < lineEnd && text[i] != ' ' && text[i] != '\t' && text[i] != '\r'
+                        && !(text[i] == '/' && i + 1 < lineEnd && text[i + 1] == '/')) {
+                    i++;
+                }
+                tokenEnds[tokens] = i;
+                tokens++;
+            }
+
+            if (tokens > 0) {
+                parseCommand(line, tokens);
+            }
+            position = lineEnd + 1;
+        }
+    }
+
+    private void parseCommand(int line, int tokens) {
+        int opcodeIndex = lookup(OPCODE_KEYWORDS, 0);
+        if (opcodeIndex < 0) {
+            throw error(line, "Illegal command " + token(0));
+        }
+        Opcode opcode = OPCODES[opcodeIndex];
+        if (tokens - 1 != opcode.arguments()) {
+            throw error(line, opcode.keyword() + " takes " + opcode.arguments() + " arguments");
+        }
+
+        int segment = -1;
+        int operand = 0;
+        int nameId = -1;
+        switch (opcode) {
+            case PUSH:
+            case POP:
+                segment = lookup(SEGMENT_KEYWORDS, 1);
+                if (segment < 0 || (opcode == Opcode.POP && SEGMENTS[segment] == Segment.CONSTANT)) {
+                    throw error(line, "Illegal segment " + token(1));
+                }
+                operand = parseNumber(line, 2);
+                // temp is R5-R12 and pointer is THIS and THAT: a larger index would address the registers after them.
+                if ((SEGMENTS[segment] == Segment.TEMP && operand > 7)
+                        || (SEGMENTS[segment] == Segment.POINTER && operand > 1)) {
+                    throw error(line, "Index out of range " + token(1) + " " + token(2));
+                }
+                break;
+            case LABEL:
+            case GOTO:
+            case IF_GOTO:
+                // A label can't have a '$', which separates the generated labels from the function name.
+                for (int i = tokenBegins[1]; i < tokenEnds[1]; i++) {
+                    if (text[i] == '$') {
+                        throw error(line, "Illegal label " + token(1));
+                    }
+                }
+                nameId = intern(token(1));
+                break;
+            case FUNCTION:
+            case CALL:
+                nameId = intern(token(1));
+                operand = parseNumber(line, 2);
+                break;
             default:
-                return CommandType.C_ARITHMETIC;
+                break;
+        }
+
+        if (size == opcodes.length) {
+            int capacity = size * 2;
+            opcodes = Arrays.copyOf(opcodes, capacity);
+            segments = Arrays.copyOf(segments, capacity);
+            operands = Arrays.copyOf(operands, capacity);
+            nameIds = Arrays.copyOf(nameIds, capacity);
+            lines = Arrays.copyOf(lines, capacity);
         }
+        opcodes[size] = (byte) opcodeIndex;
+        segments[size] = (byte) segment;
+        operands[size] = operand;
+        nameIds[size] = nameId;
+        lines[size] = line;
+        size++;
     }
 
-    /**
-     * Returns the first argument of the current command.
-     * In the case of C_ARITHMETIC the command itself (add, sub, etc.) is returned.
-     * Should not be called if the current command is C_RETURN.
-     *
-     * @return
-     */
-    public String arg1() {
-        return commandType() != CommandType.C_ARITHMETIC ? currentLineParts[1] : currentLineParts[0];
+    // Returns the index of the keyword that the given token is, or -1.
+    private int lookup(byte[][] keywords, int token) {
+        int begin = tokenBegins[token];
+        int length = tokenEnds[token] - begin;
+        for (int k = 0; k < keywords.length; k++) {
+            byte[] keyword = keywords[k];
+            if (keyword.length == length && keyword[0] == text[begin]
+                    && Arrays.equals(keyword, 0, length, text, begin, begin + length)) {
+                return k;
+            }
+        }
+        return -1;
     }
 
-    /**
-     * Returns the second argument of the current command.
-     * Should be called only if the current command is C_PUSH, C_POP, C_FUNCTION or C_CALL.
-     *
-     * @return
-     */
-    public int arg2() {
-        return Integer.parseInt(currentLineParts[2]);
+    private int parseNumber(int line, int token) {
+        int value = 0;
+        for (int i = tokenBegins[token]; i < tokenEnds[token]; i++) {
+            byte b = text[i];
+            if (b < '0' || b > '9') {
+                throw error(line, "Illegal number " + token(token));
+            }
+            value = value * 10 + (b - '0');
+            if (value > 0x7FFF) {
+                throw error(line, "Number out of range " + token(token));
+            }
+        }
+        return value;
+    }
+
+    private int intern(String name) {
+        Integer id = nameIdsByName.get(name);
+        if (id == null) {
+            id = names.size();
+            nameIdsByName.put(name, id);
+            names.add(name);
+        }
+        return id;
+    }
+
+    private String token(int token) {
+        return new String(text, tokenBegins[token], tokenEnds[token] - tokenBegins[token], StandardCharsets.US_ASCII);
+    }
+
+    private RuntimeException error(int line, String message) {
+        return new RuntimeException("line " + line + ": " + message);
+    }
+
+    private VMProgram toProgram() {
+        return new VMProgram(Arrays.copyOf(opcodes, size), Arrays.copyOf(segments, size),
+                Arrays.copyOf(operands, size), Arrays.copyOf(nameIds, size), Arrays.copyOf(lines, size),
+                names.toArray(new String[0]));
     }
 }
@@ -0,0 +1,315 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shrinks the assembly code written by CodeWriter by rewriting short windows of instructions into equivalent shorter
+ * ones, until no rule applies.
+ * The rules rely on the shape of CodeWriter's output: every VM command starts with an A-instruction (or a label) and
+ * sets D before reading it, so D and A are dead between commands, and the RAM above the top of the stack is never
+ * read. With stack caching, D is live between commands, but the windows that overwrite D don't occur.
+ */
+public class PeepholeOptimizer {
+
+    // *SP = D, SP++
+    private static final String[] PUSH_D = {"@SP", "A=M", "M=D", "@SP", "M=M+1"};
+    // SP--, D = *SP
+    private static final String[] POP_D = {"@SP", "AM=M-1", "D=M"};
+    private static final String[] SEGMENT_POINTERS = {"LCL", "ARG", "THIS", "THAT"};
+    // The largest segment index for which "pop segment i" is rewritten with i times A=A+1.
+    private static final int MAX_INCREMENTS = 4;
+
+    private int instructionsBefore;
+    private int instructionsAfter;
+
+    /**
+     * Returns the optimized code of the given lines of assembly code.
+     */
+    public List<String> optimize(List<String> lines) {
+        return optimize(lines, null);
+    }
+
+    /**
+     * Returns the optimized code of the given lines of assembly code, and replaces the given origins of the lines
+     * (e.g. the VM command of each line), if they aren't null, with those of the optimized lines. A replacement has
+     * the origin of the first line it replaces.
+     */
+    public List<String> optimize(List<String> lines, List<Integer> origins) {
+        instructionsBefore += countInstructions(lines);
+
+        List<Integer> lineOrigins = origins;
+        boolean changed = true;
+        while (changed) {
+            List<String> optimized = new ArrayList<>(lines.size());
+            List<Integer> optimizedOrigins = origins == null ? null : new ArrayList<>(lines.size());
+            int i = 0;
+            while (i < lines.size()) {
+                int consumed = rewrite(lines, i, optimized);
+                if (consumed == 0) {
+                    optimized.add(lines.get(i));
+                    consumed = 1;
+                }
+                if (optimizedOrigins != null) {
+                    while (optimizedOrigins.size() < optimized.size()) {
+                        optimizedOrigins.add(lineOrigins.get(i));
+                    }
+                }
+                i += consumed;
+            }
+            changed = optimized.size() != lines.size();
+            lines = optimized;
+            lineOrigins = optimizedOrigins;
+        }
+        lines = removeRedundantLoads(lines, lineOrigins);
+
+        if (origins != null) {
+            origins.clear();
+            origins.addAll(lineOrigins);
+        }
+        instructionsAfter += countInstructions(lines);
+        return lines;
+    }
+
+    /**
+     * Returns the number of instructions (not counting labels) in all the code optimized so far.
+     */
+    public int instructionsBefore() {
+        return instructionsBefore;
+    }
+
+    /**
+     * Returns the number of instructions (not counting labels) in the optimized code.
+     */
+    public int instructionsAfter() {
+        return instructionsAfter;
+    }
+
+    public static int countInstructions(List<String> lines) {
+        int count = 0;
+        for (String line : lines) {
+            if (!line.startsWith("(")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Applies the first rule that matches at the given index, writing its replacement. Returns the number of lines
+    // replaced, or 0 if no rule matched.
+    private static int rewrite(List<String> in, int i, List<String> out) {
+
+        // Constant folding: push constant a; push constant b; add/sub/and/or -> push constant (a op b).
+        // Binary operations have already been rewritten to @SP / A=M-1 / M=D op M below.
+        if (isConstantLoad(in, i) && matches(in, i + 2, PUSH_D) && isConstantLoad(in, i + 7)
+                && matches(in, i + 9, "@SP", "A=M-1") && i + 11 < in.size()) {
+            int a = constant(in, i);
+            int b = constant(in, i + 7);
+            Integer result = fold(in.get(i + 11), a, b);
+            if (result != null && Math.abs(result) <= 0x7FFF) {
+                out.add("@" + Math.abs(result));
+                out.add(result >= 0 ? "D=A" : "D=-A");
+                add(out, PUSH_D);
+                return 12;
+            }
+        }
+
+        // push constant a; neg -> D = -a, push.
+        if (isConstantLoad(in, i) && matches(in, i + 2, PUSH_D)
+                && matches(in, i + 7, "D=0", "@SP", "A=M-1", "M=D-M")) {
+            out.add(in.get(i));
+            out.add("D=-A");
+            add(out, PUSH_D);
+            return 11;
+        }
+
+        // push x; pop -> x is already in D. The next instruction overwrites A.
+        if (matches(in, i, PUSH_D) && matches(in, i + 5, POP_D) && isBoundary(in, i + 8)) {
+            return 8;
+        }
+
+        // push x; binary operation -> the operation reads x from D, and the other operand from the stack.
+        if (matches(in, i, PUSH_D) && matches(in, i + 5, POP_D) && matches(in, i + 8, "A=A-1")) {
+            out.add("@SP");
+            out.add("A=M-1");
+            return 9;
+        }
+
+        // push x; not/neg -> push !x or -x.
+        if (matches(in, i, PUSH_D) && matches(in, i + 5, "@SP", "A=M-1") && i + 7 < in.size()) {
+            String unary = unaryOfD(in.get(i + 7));
+            if (unary != null) {
+                out.add("@SP");
+                out.add("A=M");
+                out.add("M=" + unary);
+                out.add("@SP");
+                out.add("M=M+1");
+                return 8;
+            }
+        }
+        if (matches(in, i, PUSH_D) && matches(in, i + 5, "D=0", "@SP", "A=M-1", "M=D-M")) {
+            out.add("@SP");
+            out.add("A=M");
+            out.add("M=-D");
+            out.add("@SP");
+            out.add("M=M+1");
+            return 9;
+        }
+
+        // push constant 1; add/sub -> increment/decrement the top of the stack. An operand 0 is a no-op.
+        if (isConstantLoad(in, i) && matches(in, i + 2, "@SP", "A=M-1") && i + 4 < in.size()) {
+            int c = constant(in, i);
+            String operation = in.get(i + 4);
+            if (c == 1 && (operation.equals("M=D+M") || operation.equals("M=M-D"))) {
+                out.add("@SP");
+                out.add("A=M-1");
+                out.add(operation.equals("M=D+M") ? "M=M+1" : "M=M-1");
+                return 5;
+            }
+            if (c == 0 && (operation.equals("M=D+M") || operation.equals("M=M-D") || operation.equals("M=D|M"))) {
+                return 5;
+            }
+        }
+
+        // push segment 0/1 -> read at the pointer (+1) directly.
+        if (isConstantLoad(in, i) && constant(in, i) <= 1 && i + 4 < in.size() && isSegmentPointer(in.get(i + 2))
+                && in.get(i + 3).equals("A=D+M") && in.get(i + 4).equals("D=M")) {
+            out.add(in.get(i + 2));
+            out.add(constant(in, i) == 0 ? "A=M" : "A=M+1");
+            out.add("D=M");
+            return 5;
+        }
+
+        // pop segment i, for a small i -> pop into D, then compute the address in A, without R13.
+        if (isConstantLoad(in, i) && constant(in, i) <= MAX_INCREMENTS && i + 3 < in.size()
+                && isSegmentPointer(in.get(i + 2)) && in.get(i + 3).equals("D=D+M")
+                && matches(in, i + 4, "@R13", "M=D") && matches(in, i + 6, POP_D)
+                && matches(in, i + 9, "@R13", "A=M", "M=D")) {
+            add(out, POP_D);
+            out.add(in.get(i + 2));
+            out.add("A=M");
+            for (int k = 0; k < constant(in, i); k++) {
+                out.add("A=A+1");
+            }
+            out.add("M=D");
+            return 12;
+        }
+
+        return 0;
+    }
+
+    // Removes the A-instructions that load the value A already has, e.g. the second @SP in @SP / M=M+1 / @SP.
+    // The origins of the removed lines are removed too, if they aren't null.
+    private static List<String> removeRedundantLoads(List<String> lines, List<Integer> origins) {
+        List<String> out = new ArrayList<>(lines.size());
+        int kept = 0;
+        String knownA = null;
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            if (line.startsWith("(")) {
+                // A label can be reached from anywhere.
+                knownA = null;
+            } else if (line.startsWith("@")) {
+                if (line.equals(knownA)) {
+                    continue;
+                }
+                knownA = line;
+            } else {
+                int equalsIndex = line.indexOf('=');
+                if (equalsIndex != -1 && line.substring(0, equalsIndex).indexOf('A') != -1) {
+                    knownA = null;
+                }
+            }
+            out.add(line);
+            if (origins != null) {
+                origins.set(kept++, origins.get(i));
+            }
+        }
+        if (origins != null) {
+            origins.subList(kept, origins.size()).clear();
+        }
+        return out;
+    }
+
+    private static Integer fold(String operation, int a, int b) {
+        switch (operation) {
+            case "M=D+M":
+                return a + b;
+            case "M=M-D":
+                return a - b;
+            case "M=D&M":
+                return a & b;
+            case "M=D|M":
+                return a | b;
+            default:
+                return null;
+        }
+    }
+
+    // Returns the unary operation applied to D, for the unary operation applied to M, or null.
+    private static String unaryOfD(String operation) {
+        switch (operation) {
+            case "M=!M":
+                return "!D";
+            case "M=-M":
+                return "-D";
+            case "M=M+1":
+                return "D+1";
+            case "M=M-1":
+                return "D-1";
+            default:
+                return null;
+        }
+    }
+
+    // Is the line at the given index the start of a VM command, i.e. an A-instruction, a label or the end of code?
+    private static boolean isBoundary(List<String> lines, int index) {
+        return index >= lines.size() || lines.get(index).startsWith("@") || lines.get(index).startsWith("(");
+    }
+
+    // Is there an @constant / D=A at the given index?
+    private static boolean isConstantLoad(List<String> lines, int index) {
+        if (index + 1 >= lines.size() || !lines.get(index + 1).equals("D=A")) {
+            return false;
+        }
+        String line = lines.get(index);
+        if (line.length() < 2 || line.charAt(0) != '@') {
+            return false;
+        }
+        for (int k = 1; k < line.length(); k++) {
+            if (!Character.isDigit(line.charAt(k))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int constant(List<String> lines, int index) {
+        return Integer.parseInt(lines.get(index).substring(1));
+    }
+
+    private static boolean isSegmentPointer(String line) {
+        for (String pointer : SEGMENT_POINTERS) {
+            if (line.equals("@" + pointer)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matches(List<String> lines, int index, String... pattern) {
+        if (index + pattern.length > lines.size()) {
+            return false;
+        }
+        for (int k = 0; k < pattern.length; k++) {
+            if (!lines.get(index + k).equals(pattern[k])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void add(List<String> out, String[] lines) {
+        for (String line : lines) {
+            out.add(line);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/**
+ * The virtual memory segments, with their keywords and, for the segments that are addressed through a pointer,
+ * the symbol of the pointer.
+ */
+public enum Segment {
+    CONSTANT("constant", null),
+    LOCAL("local", "LCL"),
+    ARGUMENT("argument", "ARG"),
+    THIS("this", "THIS"),
+    THAT("that", "THAT"),
+    STATIC("static", null),
+    TEMP("temp", null),
+    POINTER("pointer", null);
+
+    private static final Segment[] VALUES = values();
+
+    private final String keyword;
+    private final String pointer;
+
+    Segment(String keyword, String pointer) {
+        this.keyword = keyword;
+        this.pointer = pointer;
+    }
+
+    public String keyword() {
+        return keyword;
+    }
+
+    /**
+     * Returns the symbol of the pointer to the segment, e.g. LCL for local, or null for the segments that are
+     * addressed directly.
+     */
+    public String pointer() {
+        return pointer;
+    }
+
+    static Segment valueOf(int ordinal) {
+        return VALUES[ordinal];
+    }
+}
@@ -0,0 +1,73 @@
+import java.util.List;
+
+/**
+ * The assembly code of a VM file in UTF-8, with the labels it defines and the static variables it uses, in order of
+ * appearance, its number of instructions before and after the peephole optimizer (equal if it isn't used), and, if
+ * a source map was asked for, the VM command of each line and the line and function of each command.
+ */
+public final class Translation {
+
+    private final byte[] code;
+    private final List<String> labels;
+    private final List<String> statics;
+    private final int instructionsBefore;
+    private final int instructionsAfter;
+    private final int[] lineRuns;
+    private final int[] commandLines;
+    private final String[] commandFunctions;
+
+    public Translation(byte[] code, List<String> labels, List<String> statics, int instructionsBefore,
+                       int instructionsAfter, int[] lineRuns, int[] commandLines, String[] commandFunctions) {
+        this.code = code;
+        this.labels = List.copyOf(labels);
+        this.statics = List.copyOf(statics);
+        this.instructionsBefore = instructionsBefore;
+        this.instructionsAfter = instructionsAfter;
+        this.lineRuns = lineRuns;
+        this.commandLines = commandLines;
+        this.commandFunctions = commandFunctions;
+    }
+
+    public byte[] code() {
+        return code;
+    }
+
+    public List<String> labels() {
+        return labels;
+    }
+
+    public List<String> statics() {
+        return statics;
+    }
+
+    public int instructionsBefore() {
+        return instructionsBefore;
+    }
+
+    public int instructionsAfter() {
+        return instructionsAfter;
+    }
+
+    /**
+     * Returns the VM command that the lines of the code were translated from, as runs of lines of the same command:
+     * pairs of the index of the command and the number of its lines. Returns null if the source map wasn't built.
+     */
+    public int[] lineRuns() {
+        return lineRuns;
+    }
+
+    /**
+     * Returns the line of each VM command in the file, or null if the source map wasn't built.
+     */
+    public int[] commandLines() {
+        return commandLines;
+    }
+
+    /**
+     * Returns the function of each VM command: the last function command up to it, or else the file's name without
+     * .vm. Returns null if the source map wasn't built.
+     */
+    public String[] commandFunctions() {
+        return commandFunctions;
+    }
+}
@@ -0,0 +1,299 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * An on-disk cache of the translations of VM files.
+ * An entry is keyed by the SHA-256 of the file's name and content, the translation options and the translator's own
+ * classes, so a changed translator never reuses the code of an older one. Entries are written to a temporary file
+ * and moved into place, so concurrent translations can share a cache.
+ * Eviction removes the entries that weren't used for longer than a maximum age, then the least recently used ones
+ * beyond a maximum total size.
+ */
+public class TranslationCache {
+
+    // "VMC3", the format of an entry.
+    private static final int MAGIC = 0x564D4333;
+    private static final String SUFFIX = ".vmc";
+
+    private final Path directory;
+    private final long maxBytes;
+    private final Duration maxAge;
+    private final byte[] translatorHash;
+    private final AtomicBoolean stored = new AtomicBoolean();
+
+    public TranslationCache(Path directory, long maxBytes, Duration maxAge) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxAge = maxAge;
+        this.translatorHash = hashOfTranslator();
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Returns the default cache directory, ~/.cache/vm-translator.
+     */
+    public static Path defaultDirectory() {
+        return Paths.get(System.getProperty("user.home"), ".cache", "vm-translator");
+    }
+
+    /**
+     * Returns the key of the translation of the given file content with the given options.
+     * The file name is part of the key, because it names the file's static variables.
+     */
+    public String key(String fileName, byte[] content, TranslationOptions options) {
+        MessageDigest digest = sha256();
+        digest.update(translatorHash);
+        digest.update(options.toString().getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(fileName.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(content);
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Returns the cached translation with the given key, or null if there is none.
+     */
+    public Translation get(String key) {
+        Path entry = directory.resolve(key + SUFFIX);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(entry)))) {
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            List<String> labels = readStrings(in);
+            List<String> statics = readStrings(in);
+            int instructionsBefore = in.readInt();
+            int instructionsAfter = in.readInt();
+            int[] lineRuns = null;
+            int[] commandLines = null;
+            String[] commandFunctions = null;
+            if (in.readBoolean()) {
+                lineRuns = readInts(in);
+                commandLines = readInts(in);
+                commandFunctions = readFunctions(in, commandLines.length);
+            }
+            byte[] code = new byte[in.readInt()];
+            in.readFully(code);
+
+            // The modification time of an entry is the time it was last used.
+            Files.setLastModifiedTime(entry, FileTime.from(Instant.now()));
+            return new Translation(code, labels, statics, instructionsBefore,
+                    instructionsAfter, lineRuns, commandLines, commandFunctions);
+        } catch (IOException ex) {
+            // A missing, truncated or unreadable entry is a miss, and is overwritten.
+            return null;
+        }
+    }
+
+    /**
+     * Stores the given translation with the given key. A failure to write it is ignored, since the cache only
+     * saves time.
+     */
+    public void put(String key, Translation translation) {
+        Path temporary = null;
+        try {
+            temporary = Files.createTempFile(directory, key, ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(temporary)))) {
+                out.writeInt(MAGIC);
+                writeStrings(out, translation.labels());
+                writeStrings(out, translation.statics());
+                out.writeInt(translation.instructionsBefore());
+                out.writeInt(translation.instructionsAfter());
+                out.writeBoolean(translation.lineRuns() != null);
+                if (translation.lineRuns() != null) {
+                    writeInts(out, translation.lineRuns());
+                    writeInts(out, translation.commandLines());
+                    writeFunctions(out, translation.commandFunctions());
+                }
+                out.writeInt(translation.code().length);
+                out.write(translation.code());
+            }
+            Files.move(temporary, directory.resolve(key + SUFFIX), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            stored.set(true);
+        } catch (IOException ex) {
+            try {
+                if (temporary != null) {
+                    Files.deleteIfExists(temporary);
+                }
+            } catch (IOException ignored) {
+                // The next eviction removes it.
+            }
+        }
+    }
+
+    /**
+     * Removes the entries that weren't used for longer than the maximum age, then the least recently used entries
+     * until the cache is within its maximum size. Only storing entries grows the cache, so nothing is done unless
+     * entries were stored since it was opened.
+     */
+    public void evict() throws IOException {
+        if (!stored.get()) {
+            return;
+        }
+        List<Path> entries;
+        try (Stream<Path> files = Files.list(directory)) {
+            entries = files.filter(file -> file.toString().endsWith(SUFFIX) || file.toString().endsWith(".tmp"))
+                    .collect(Collectors.toList());
+        }
+
+        List<Path> kept = new ArrayList<>();
+        Instant oldest = Instant.now().minus(maxAge);
+        for (Path entry : entries) {
+            try {
+                if (Files.getLastModifiedTime(entry).toInstant().isBefore(oldest)) {
+                    Files.deleteIfExists(entry);
+                } else if (entry.toString().endsWith(SUFFIX)) {
+                    kept.add(entry);
+                }
+            } catch (NoSuchFileException ex) {
+                // Evicted concurrently.
+            }
+        }
+
+        kept.sort(Comparator.comparing(TranslationCache::lastModified).reversed());
+        long bytes = 0;
+        for (Path entry : kept) {
+            try {
+                bytes += Files.size(entry);
+                if (bytes > maxBytes) {
+                    Files.deleteIfExists(entry);
+                }
+            } catch (NoSuchFileException ex) {
+                // Evicted concurrently.
+            }
+        }
+    }
+
+    private static FileTime lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException ex) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    private static List<String> readStrings(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> strings = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            strings.add(in.readUTF());
+        }
+        return strings;
+    }
+
+    private static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+        out.writeInt(strings.size());
+        for (String string : strings) {
+            out.writeUTF(string);
+        }
+    }
+
+    private static int[] readInts(DataInputStream in) throws IOException {
+        int[] ints = new int[in.readInt()];
+        for (int i = 0; i < ints.length; i++) {
+            ints[i] = in.readInt();
+        }
+        return ints;
+    }
+
+    private static void writeInts(DataOutputStream out, int[] ints) throws IOException {
+        out.writeInt(ints.length);
+        for (int value : ints) {
+            out.writeInt(value);
+        }
+    }
+
+    private static String[] readFunctions(DataInputStream in, int commands) throws IOException {
+        String[] functions = new String[commands];
+        int command = 0;
+        while (command < commands) {
+            String function = in.readUTF();
+            int end = command + in.readInt();
+            if (end > commands) {
+                throw new IOException("Illegal entry");
+            }
+            Arrays.fill(functions, command, end, function);
+            command = end;
+        }
+        return functions;
+    }
+
+    // Writes the function of each command as runs of commands of the same function: the function and the number of
+    // commands.
+    private static void writeFunctions(DataOutputStream out, String[] functions) throws IOException {
+        int command = 0;
+        while (command < functions.length) {
+            int end = command + 1;
+            while (end < functions.length && functions[end].equals(functions[command])) {
+                end++;
+            }
+            out.writeUTF(functions[command]);
+            out.writeInt(end - command);
+            command = end;
+        }
+    }
+
+    // Hashes the jar or the class directory that the translator was loaded from.
+    private static byte[] hashOfTranslator() throws IOException {
+        MessageDigest digest = sha256();
+        CodeSource codeSource = TranslationCache.class.getProtectionDomain().getCodeSource();
+        if (codeSource == null) {
+            throw new IOException("Can't locate the translator's classes");
+        }
+        Path location;
+        try {
+            location = Paths.get(codeSource.getLocation().toURI());
+        } catch (URISyntaxException ex) {
+            throw new IOException(ex);
+        }
+
+        if (Files.isDirectory(location)) {
+            List<Path> classFiles;
+            try (Stream<Path> files = Files.walk(location)) {
+                classFiles = files.filter(file -> file.toString().endsWith(".class")).sorted()
+                        .collect(Collectors.toList());
+            }
+            for (Path classFile : classFiles) {
+                digest.update(location.relativize(classFile).toString().getBytes(StandardCharsets.UTF_8));
+                digest.update(Files.readAllBytes(classFile));
+            }
+        } else {
+            digest.update(Files.readAllBytes(location));
+        }
+        return digest.digest();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
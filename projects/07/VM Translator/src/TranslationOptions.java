@@ -0,0 +1,44 @@
+/**
+ * The options that determine the code written for a VM file, and whether its source map is built.
+ */
+public final class TranslationOptions {
+
+    private final CodeMode mode;
+    private final boolean stackCaching;
+    private final boolean optimize;
+    private final boolean sourceMap;
+
+    public TranslationOptions(CodeMode mode, boolean stackCaching, boolean optimize, boolean sourceMap) {
+        this.mode = mode;
+        this.stackCaching = stackCaching;
+        this.optimize = optimize;
+        this.sourceMap = sourceMap;
+    }
+
+    public CodeMode mode() {
+        return mode;
+    }
+
+    public boolean stackCaching() {
+        return stackCaching;
+    }
+
+    public boolean optimize() {
+        return optimize;
+    }
+
+    /**
+     * Is a source map of the code built?
+     */
+    public boolean sourceMap() {
+        return sourceMap;
+    }
+
+    /**
+     * Returns the options as a string that identifies the code they produce, e.g. for a cache key.
+     */
+    @Override
+    public String toString() {
+        return "mode=" + mode + " stackCaching=" + stackCaching + " optimize=" + optimize + " sourceMap=" + sourceMap;
+    }
+}
@@ -0,0 +1,638 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Executes VM programs directly, without translating them to Hack.
+ * The files are linked into one array of operations, with resolved jump targets and static addresses, which runs on
+ * an int[] RAM with the memory map that CodeWriter assumes: SP, LCL, ARG, THIS and THAT at 0..4, temp at 5..12,
+ * static variables from 16 (allocated in order of appearance, as the assembler does) and the stack from 256.
+ * Functions can be replaced by intrinsics, Java code that is called instead of their VM code (see JackOS).
+ */
+public class VMEmulator {
+
+    public static final int RAM_SIZE = 32768;
+    public static final int SP = 0;
+    public static final int LCL = 1;
+    public static final int ARG = 2;
+    public static final int THIS = 3;
+    public static final int THAT = 4;
+    public static final int TEMP = 5;
+    public static final int STATIC = 16;
+    public static final int STACK = 256;
+    public static final int SCREEN = 16384;
+    public static final int KBD = 24576;
+
+    /**
+     * The reasons for which run() returns.
+     */
+    public enum StopReason {
+        // The step budget was exhausted.
+        BUDGET,
+        // An intrinsic halted, e.g. Sys.halt, or the program reached an infinite loop of the form label L / goto L.
+        HALT,
+        // The program ran past its last command, or returned from the function it was bootstrapped with.
+        END
+    }
+
+    // The operations. Arithmetic keeps the order of Opcode. A push or pop of a segment addressed through a pointer
+    // is indirect, and of temp, pointer and static is direct.
+    private static final byte ADD = 0;
+    private static final byte SUB = 1;
+    private static final byte NEG = 2;
+    private static final byte EQ = 3;
+    private static final byte GT = 4;
+    private static final byte LT = 5;
+    private static final byte AND = 6;
+    private static final byte OR = 7;
+    private static final byte NOT = 8;
+    private static final byte PUSH_CONSTANT = 9;
+    private static final byte PUSH_INDIRECT = 10;
+    private static final byte PUSH_DIRECT = 11;
+    private static final byte POP_INDIRECT = 12;
+    private static final byte POP_DIRECT = 13;
+    private static final byte GOTO = 14;
+    private static final byte IF_GOTO = 15;
+    private static final byte HALT_LOOP = 16;
+    private static final byte FUNCTION = 17;
+    private static final byte CALL = 18;
+    private static final byte RETURN = 19;
+
+    // The operation at each address, and its operands: the constant, index, address, jump target, number of local
+    // variables or function id in a, and the pointer or the number of arguments in b.
+    private final byte[] ops;
+    private final int[] a;
+    private final int[] b;
+
+    private final Map<String, Integer> functionIds = new HashMap<>();
+    private final List<String> functionNames = new ArrayList<>();
+    // The address of each function, or -1 if it isn't defined, and its intrinsic, if any.
+    private final int[] entries;
+    private final Intrinsic[] intrinsics;
+
+    // The file and the command that each operation was linked from, for the source map.
+    private final List<VMProgram> programs;
+    private final List<String> fileNames;
+    private final int[] opFiles;
+    private final int[] opCommands;
+
+    private final int[] ram = new int[RAM_SIZE];
+    private int pc;
+    private long steps;
+    private boolean halted;
+    // The number of times the operation at each address was executed, or null if it isn't counted.
+    private long[] profile;
+
+    /**
+     * Links the given programs, one per VM file with the given name (e.g. Main.vm), in the given order.
+     */
+    public VMEmulator(List<VMProgram> programs, List<String> fileNames) {
+        int capacity = 0;
+        for (VMProgram program : programs) {
+            capacity += program.size();
+        }
+        byte[] ops = new byte[capacity];
+        int[] a = new int[capacity];
+        int[] b = new int[capacity];
+        int[] opFiles = new int[capacity];
+        int[] opCommands = new int[capacity];
+        List<Integer> entries = new ArrayList<>();
+
+        int size = 0;
+        int nextStatic = STATIC;
+        for (int file = 0; file < programs.size(); file++) {
+            VMProgram program = programs.get(file);
+            Map<Integer, Integer> staticAddresses = new HashMap<>();
+            // Labels are scoped by function, as in CodeWriter. Code before any function belongs to the file.
+            String scope = "file " + file;
+            Map<String, Integer> labels = new HashMap<>();
+            Map<Integer, String> jumps = new HashMap<>();
+
+            for (int i = 0; i < program.size(); i++) {
+                int operand = program.operand(i);
+                switch (program.opcode(i)) {
+                    case PUSH:
+                    case POP:
+                        boolean push = program.opcode(i) == Opcode.PUSH;
+                        Segment segment = program.segment(i);
+                        if (segment == Segment.CONSTANT) {
+                            ops[size] = PUSH_CONSTANT;
+                            a[size] = operand;
+                        } else if (segment.pointer() != null) {
+                            ops[size] = push ? PUSH_INDIRECT : POP_INDIRECT;
+                            a[size] = operand;
+                            b[size] = pointerAddress(segment);
+                        } else {
+                            int address;
+                            if (segment == Segment.TEMP) {
+                                address = TEMP + operand;
+                            } else if (segment == Segment.POINTER) {
+                                address = THIS + operand;
+                            } else {
+                                Integer staticAddress = staticAddresses.get(operand);
+                                if (staticAddress == null) {
+                                    staticAddress = nextStatic++;
+                                    staticAddresses.put(operand, staticAddress);
+                                }
+                                address = staticAddress;
+                            }
+                            ops[size] = push ? PUSH_DIRECT : POP_DIRECT;
+                            a[size] = address;
+                        }
+                        break;
+                    case LABEL:
+                        // A label is the address of the next operation.
+                        labels.put(scope + "$" + program.name(i), size);
+                        continue;
+                    case GOTO:
+                    case IF_GOTO:
+                        ops[size] = program.opcode(i) == Opcode.GOTO ? GOTO : IF_GOTO;
+                        jumps.put(size, scope + "$" + program.name(i));
+                        break;
+                    case FUNCTION:
+                        scope = program.name(i);
+                        int id = functionId(program.name(i));
+                        while (entries.size() <= id) {
+                            entries.add(-1);
+                        }
+                        if (entries.get(id) != -1) {
+                            throw new RuntimeException("Function " + scope + " is defined twice");
+                        }
+                        entries.set(id, size);
+                        ops[size] = FUNCTION;
+                        a[size] = operand;
+                        break;
+                    case CALL:
+                        ops[size] = CALL;
+                        a[size] = functionId(program.name(i));
+                        b[size] = operand;
+                        break;
+                    case RETURN:
+                        ops[size] = RETURN;
+                        break;
+                    default:
+                        ops[size] = (byte) program.opcode(i).ordinal();
+                }
+                opFiles[size] = file;
+                opCommands[size] = i;
+                size++;
+            }
+
+            for (Map.Entry<Integer, String> jump : jumps.entrySet()) {
+                Integer target = labels.get(jump.getValue());
+                if (target == null) {
+                    throw new RuntimeException("Undefined label " + jump.getValue());
+                }
+                int address = jump.getKey();
+                a[address] = target;
+                if (ops[address] == GOTO && target == address) {
+                    ops[address] = HALT_LOOP;
+                }
+            }
+        }
+
+        this.ops = Arrays.copyOf(ops, size);
+        this.a = Arrays.copyOf(a, size);
+        this.b = Arrays.copyOf(b, size);
+        this.programs = List.copyOf(programs);
+        this.fileNames = List.copyOf(fileNames);
+        this.opFiles = Arrays.copyOf(opFiles, size);
+        this.opCommands = Arrays.copyOf(opCommands, size);
+        this.entries = new int[functionNames.size()];
+        Arrays.fill(this.entries, -1);
+        for (int id = 0; id < entries.size(); id++) {
+            this.entries[id] = entries.get(id);
+        }
+        this.intrinsics = new Intrinsic[functionNames.size()];
+    }
+
+    /**
+     * Loads the given .vm file, or the .vm files of the given directory.
+     */
+    public static VMEmulator load(String input) throws IOException {
+        Path inputPath = Paths.get(input);
+        List<Path> vmFiles;
+        if (Files.isDirectory(inputPath)) {
+            try (Stream<Path> files = Files.list(inputPath)) {
+                vmFiles = files.filter(file -> file.toString().endsWith(".vm") && Files.isRegularFile(file))
+                        .sorted().collect(Collectors.toList());
+            }
+        } else {
+            vmFiles = List.of(inputPath);
+        }
+
+        List<VMProgram> programs = new ArrayList<>();
+        List<String> fileNames = new ArrayList<>();
+        for (Path vmFile : vmFiles) {
+            programs.add(Parser.parse(vmFile));
+            fileNames.add(vmFile.getFileName().toString());
+        }
+        return new VMEmulator(programs, fileNames);
+    }
+
+    private int functionId(String name) {
+        Integer id = functionIds.get(name);
+        if (id == null) {
+            id = functionNames.size();
+            functionIds.put(name, id);
+            functionNames.add(name);
+        }
+        return id;
+    }
+
+    private static int pointerAddress(Segment segment) {
+        switch (segment) {
+            case LOCAL:
+                return LCL;
+            case ARGUMENT:
+                return ARG;
+            case THIS:
+                return THIS;
+            case THAT:
+                return THAT;
+            default:
+                throw new RuntimeException("Illegal segment");
+        }
+    }
+
+    /**
+     * Is the given function defined, or called?
+     */
+    public boolean hasFunction(String name) {
+        return functionIds.containsKey(name);
+    }
+
+    /**
+     * Is the given function defined in VM code?
+     */
+    public boolean isDefined(String name) {
+        Integer id = functionIds.get(name);
+        return id != null && entries[id] != -1;
+    }
+
+    /**
+     * Calls the given intrinsic instead of the given function from now on. Functions that the program doesn't call
+     * are ignored.
+     */
+    public void intrinsify(String name, Intrinsic intrinsic) {
+        Integer id = functionIds.get(name);
+        if (id != null) {
+            intrinsics[id] = intrinsic;
+        }
+    }
+
+    /**
+     * Sets SP to 256, and calls the given function, e.g. Sys.init, as the bootstrap code of CodeWriter does.
+     * Returning from it ends the program.
+     */
+    public void bootstrap(String function) {
+        Integer id = functionIds.get(function);
+        if (id == null || entries[id] == -1) {
+            throw new RuntimeException("Undefined function " + function);
+        }
+        int sp = STACK;
+        ram[sp] = ops.length; // the return address
+        ram[sp + 1] = ram[LCL];
+        ram[sp + 2] = ram[ARG];
+        ram[sp + 3] = ram[THIS];
+        ram[sp + 4] = ram[THAT];
+        sp += 5;
+        ram[ARG] = sp - 5;
+        ram[LCL] = sp;
+        ram[SP] = sp;
+        pc = entries[id];
+    }
+
+    /**
+     * Executes VM commands until the given number of commands was executed, or until the program halts or ends.
+     */
+    public StopReason run(long stepBudget) {
+        final byte[] ops = this.ops;
+        final int[] a = this.a;
+        final int[] b = this.b;
+        final int[] ram = this.ram;
+        final long[] profile = this.profile;
+        int pc = this.pc;
+        int sp = ram[SP];
+        long steps = this.steps;
+        final long endStep = stepBudget > Long.MAX_VALUE - steps ? Long.MAX_VALUE : steps + stepBudget;
+        StopReason reason = StopReason.BUDGET;
+
+        execution:
+        while (steps < endStep) {
+            if (pc >= ops.length) {
+                reason = StopReason.END;
+                break;
+            }
+            steps++;
+            if (profile != null) {
+                profile[pc]++;
+            }
+
+            // Values are 16-bit. Comparisons test the sign of the 16-bit difference, as the Hack code does.
+            switch (ops[pc]) {
+                case ADD:
+                    sp--;
+                    ram[sp - 1] = (short) (ram[sp - 1] + ram[sp]);
+                    pc++;
+                    break;
+                case SUB:
+                    sp--;
+                    ram[sp - 1] = (short) (ram[sp - 1] - ram[sp]);
+                    pc++;
+                    break;
+                case NEG:
+                    ram[sp - 1] = (short) -ram[sp - 1];
+                    pc++;
+                    break;
+                case EQ:
+                    sp--;
+                    ram[sp - 1] = ram[sp - 1] == ram[sp] ? -1 : 0;
+                    pc++;
+                    break;
+                case GT:
+                    sp--;
+                    ram[sp - 1] = (short) (ram[sp - 1] - ram[sp]) > 0 ? -1 : 0;
+                    pc++;
+                    break;
+                case LT:
+                    sp--;
+                    ram[sp - 1] = (short) (ram[sp - 1] - ram[sp]) < 0 ? -1 : 0;
+                    pc++;
+                    break;
+                case AND:
+                    sp--;
+                    ram[sp - 1] &= ram[sp];
+                    pc++;
+                    break;
+                case OR:
+                    sp--;
+                    ram[sp - 1] |= ram[sp];
+                    pc++;
+                    break;
+                case NOT:
+                    ram[sp - 1] = ~ram[sp - 1];
+                    pc++;
+                    break;
+                case PUSH_CONSTANT:
+                    ram[sp++] = a[pc];
+                    pc++;
+                    break;
+                case PUSH_INDIRECT:
+                    ram[sp++] = ram[(ram[b[pc]] + a[pc]) & 0x7FFF];
+                    pc++;
+                    break;
+                case PUSH_DIRECT:
+                    ram[sp++] = ram[a[pc]];
+                    pc++;
+                    break;
+                case POP_INDIRECT:
+                    ram[(ram[b[pc]] + a[pc]) & 0x7FFF] = ram[--sp];
+                    pc++;
+                    break;
+                case POP_DIRECT:
+                    ram[a[pc]] = ram[--sp];
+                    pc++;
+                    break;
+                case GOTO:
+                    pc = a[pc];
+                    break;
+                case IF_GOTO:
+                    pc = ram[--sp] != 0 ? a[pc] : pc + 1;
+                    break;
+                case HALT_LOOP:
+                    steps--;
+                    if (profile != null) {
+                        profile[pc]--;
+                    }
+                    reason = StopReason.HALT;
+                    break execution;
+                case FUNCTION:
+                    for (int i = a[pc]; i > 0; i--) {
+                        ram[sp++] = 0;
+                    }
+                    pc++;
+                    break;
+                case CALL: {
+                    int function = a[pc];
+                    int args = sp - b[pc];
+                    Intrinsic intrinsic = intrinsics[function];
+                    if (intrinsic != null) {
+                        ram[SP] = sp;
+                        this.pc = pc;
+                        int value = (short) intrinsic.call(this, ram, args);
+                        sp = args;
+                        ram[sp++] = value;
+                        pc++;
+                        if (halted) {
+                            reason = StopReason.HALT;
+                            break execution;
+                        }
+                        break;
+                    }
+                    if (entries[function] == -1) {
+                        this.pc = pc;
+                        ram[SP] = sp;
+                        this.steps = steps - 1;
+                        throw new RuntimeException("Undefined function " + functionNames.get(function));
+                    }
+                    ram[sp] = pc + 1;
+                    ram[sp + 1] = ram[LCL];
+                    ram[sp + 2] = ram[ARG];
+                    ram[sp + 3] = ram[THIS];
+                    ram[sp + 4] = ram[THAT];
+                    sp += 5;
+                    ram[ARG] = args;
+                    ram[LCL] = sp;
+                    pc = entries[function];
+                    break;
+                }
+                case RETURN: {
+                    int frame = ram[LCL];
+                    int returnAddress = ram[frame - 5];
+                    int arg = ram[ARG];
+                    ram[arg] = ram[sp - 1];
+                    sp = arg + 1;
+                    ram[THAT] = ram[frame - 1];
+                    ram[THIS] = ram[frame - 2];
+                    ram[ARG] = ram[frame - 3];
+                    ram[LCL] = ram[frame - 4];
+                    pc = returnAddress;
+                    break;
+                }
+                default:
+                    throw new RuntimeException("Illegal operation " + ops[pc]);
+            }
+        }
+
+        ram[SP] = sp;
+        this.pc = pc;
+        this.steps = steps;
+        halted = false;
+        return reason;
+    }
+
+    /**
+     * Counts the executions of each operation into the given array, indexed by address, from now on, or stops
+     * counting if it's null. sourceMap() maps the addresses to VM commands.
+     */
+    public void setProfile(long[] profile) {
+        if (profile != null && profile.length < ops.length) {
+            throw new IllegalArgumentException("The profile has fewer counters than the program has operations");
+        }
+        this.profile = profile;
+    }
+
+    /**
+     * Returns the number of operations, i.e. of VM commands other than labels.
+     */
+    public int size() {
+        return ops.length;
+    }
+
+    /**
+     * Maps the address of each operation to the VM command it was linked from. A return address that is saved on the
+     * stack is the address of the operation after the call.
+     */
+    public SourceMap sourceMap() {
+        SourceMap map = new SourceMap();
+        String function = null;
+        for (int address = 0; address < ops.length; address++) {
+            VMProgram program = programs.get(opFiles[address]);
+            String fileName = fileNames.get(opFiles[address]);
+            int command = opCommands[address];
+            if (address == 0 || opFiles[address] != opFiles[address - 1]) {
+                // Code before any function belongs to the file, as in CodeWriter.
+                function = fileName.endsWith(".vm") ? fileName.substring(0, fileName.length() - ".vm".length())
+                        : fileName;
+            }
+            if (program.opcode(command) == Opcode.FUNCTION) {
+                function = program.name(command);
+            }
+            map.add(address, fileName, program.line(command), function, program.text(command));
+        }
+        return map;
+    }
+
+    /**
+     * Stops run() after the current intrinsic returns.
+     */
+    public void halt() {
+        halted = true;
+    }
+
+    /**
+     * Returns the RAM itself, so intrinsics, tests and tools can read and poke it.
+     */
+    public int[] ram() {
+        return ram;
+    }
+
+    /**
+     * Returns the number of VM commands executed, not counting labels, which are not executed.
+     */
+    public long steps() {
+        return steps;
+    }
+
+    public int pc() {
+        return pc;
+    }
+
+    // Runs the emulator for the given number of commands, sampling the call stack every sampleInterval commands.
+    private static StopReason runSampled(VMEmulator emulator, Profiler profiler, long stepBudget,
+                                         long sampleInterval) {
+        int[] ram = emulator.ram();
+        long remaining = stepBudget;
+        while (true) {
+            long before = emulator.steps();
+            StopReason reason = emulator.run(Math.min(sampleInterval, remaining));
+            long steps = emulator.steps() - before;
+            profiler.sample(emulator.pc(), address -> ram[address], steps);
+            remaining -= steps;
+            if (reason != StopReason.BUDGET || remaining == 0) {
+                return reason;
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        try {
+            long stepBudget = Long.MAX_VALUE;
+            boolean os = true;
+            boolean profile = false;
+            long sampleInterval = 1000;
+            int top = 20;
+            Path stacksFile = null;
+            String input = null;
+            for (String arg : args) {
+                if (arg.startsWith("--steps=")) {
+                    stepBudget = Long.parseLong(arg.substring("--steps=".length()));
+                } else if (arg.equals("--no-os")) {
+                    os = false;
+                } else if (arg.equals("--profile")) {
+                    profile = true;
+                } else if (arg.startsWith("--sample=")) {
+                    sampleInterval = Long.parseLong(arg.substring("--sample=".length()));
+                } else if (arg.startsWith("--top=")) {
+                    top = Integer.parseInt(arg.substring("--top=".length()));
+                } else if (arg.startsWith("--stacks=")) {
+                    profile = true;
+                    stacksFile = Paths.get(arg.substring("--stacks=".length()));
+                } else {
+                    input = arg;
+                }
+            }
+            if (input == null || sampleInterval < 1) {
+                throw new IllegalArgumentException("Usage: VMEmulator [--steps=n] [--no-os] [--profile [--sample=n] "
+                        + "[--top=n] [--stacks=file]] (input.vm | directory)");
+            }
+
+            VMEmulator emulator = VMEmulator.load(input);
+            if (os) {
+                new JackOS(System.out, System.in).install(emulator);
+            }
+            // A program is started by Sys.init, or by Main.main when the OS is intrinsic. A test starts at the top.
+            if (emulator.isDefined("Sys.init")) {
+                emulator.bootstrap("Sys.init");
+            } else if (emulator.isDefined("Main.main")) {
+                emulator.bootstrap("Main.main");
+            }
+
+            Profiler profiler = null;
+            if (profile) {
+                profiler = new Profiler(emulator.sourceMap(), emulator.size(), "commands");
+                emulator.setProfile(profiler.counts());
+            }
+
+            long start = System.nanoTime();
+            StopReason reason = profiler == null ? emulator.run(stepBudget)
+                    : runSampled(emulator, profiler, stepBudget, sampleInterval);
+            double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+
+            System.out.printf("%nStopped (%s) after %d commands in %.3f s (%.0f commands/s)%n",
+                    reason, emulator.steps(), seconds, emulator.steps() / seconds);
+            for (int i = 0; i < 16; i++) {
+                System.out.printf("RAM[%d]=%d%n", i, emulator.ram()[i]);
+            }
+            if (profiler != null) {
+                System.out.println();
+                profiler.report(System.out, top);
+                if (stacksFile != null) {
+                    profiler.writeStacks(stacksFile);
+                }
+            }
+        } catch (Exception ex) {
+            System.out.println("Error: " + ex.getMessage());
+            System.exit(1);
+        }
+    }
+}
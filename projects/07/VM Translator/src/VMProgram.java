@@ -0,0 +1,105 @@
+/**
+ * The commands of a parsed VM file, in parallel arrays: an opcode, a segment, an int operand and a name per command.
+ * The names of labels and functions are interned, so equal names have equal ids.
+ * A VMProgram is immutable, so it can be shared by the code writer, optimizers and emulators.
+ */
+public final class VMProgram {
+
+    private final byte[] opcodes;
+    // The ordinal of the segment of push and pop, and -1 for the other commands.
+    private final byte[] segments;
+    // The index of push and pop, the number of local variables of function and the number of arguments of call.
+    private final int[] operands;
+    // The id of the name of label, goto, if-goto, function and call, and -1 for the other commands.
+    private final int[] nameIds;
+    // The line of each command in the source file, starting at 1.
+    private final int[] lines;
+    private final String[] names;
+
+    VMProgram(byte[] opcodes, byte[] segments, int[] operands, int[] nameIds, int[] lines, String[] names) {
+        this.opcodes = opcodes;
+        this.segments = segments;
+        this.operands = operands;
+        this.nameIds = nameIds;
+        this.lines = lines;
+        this.names = names;
+    }
+
+    /**
+     * Returns the number of commands.
+     */
+    public int size() {
+        return opcodes.length;
+    }
+
+    public Opcode opcode(int index) {
+        return Opcode.valueOf(opcodes[index]);
+    }
+
+    /**
+     * Returns the segment of the push or pop command at the given index, or null for the other commands.
+     */
+    public Segment segment(int index) {
+        return segments[index] < 0 ? null : Segment.valueOf(segments[index]);
+    }
+
+    public int operand(int index) {
+        return operands[index];
+    }
+
+    /**
+     * Returns the id of the label or function name of the command at the given index, or -1 if it has none.
+     */
+    public int nameId(int index) {
+        return nameIds[index];
+    }
+
+    /**
+     * Returns the label or function name of the command at the given index, or null if it has none.
+     */
+    public String name(int index) {
+        return nameIds[index] < 0 ? null : names[nameIds[index]];
+    }
+
+    /**
+     * Returns the name with the given id.
+     */
+    public String nameOf(int nameId) {
+        return names[nameId];
+    }
+
+    /**
+     * Returns the number of distinct names, so ids are in 0..nameCount()-1.
+     */
+    public int nameCount() {
+        return names.length;
+    }
+
+    /**
+     * Returns the line of the command at the given index in the source file.
+     */
+    public int line(int index) {
+        return lines[index];
+    }
+
+    /**
+     * Returns the command at the given index as it is written in VM code, e.g. "push local 0".
+     */
+    public String text(int index) {
+        Opcode opcode = opcode(index);
+        switch (opcode) {
+            case PUSH:
+            case POP:
+                return opcode.keyword() + " " + segment(index).keyword() + " " + operand(index);
+            case LABEL:
+            case GOTO:
+            case IF_GOTO:
+                return opcode.keyword() + " " + name(index);
+            case FUNCTION:
+            case CALL:
+                return opcode.keyword() + " " + name(index) + " " + operand(index);
+            default:
+                return opcode.keyword();
+        }
+    }
+}
@@ -1,35 +1,440 @@
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * drives the process (VMTranslator)
  */
 public class VMTranslator {
+
+    private static final String USAGE = "Usage: VMTranslator [--mode=speed|size] [--stack-cache] [--optimize] "
+            + "[--jobs=n] [--no-cache | --cache-dir=directory] [--source-map] (input.vm | directory)";
+    // The limits of the translation cache, beyond which its least recently used entries are evicted.
+    private static final long CACHE_MAX_BYTES = 256L * 1024 * 1024;
+    private static final Duration CACHE_MAX_AGE = Duration.ofDays(30);
+
     public static void main(String[] args) {
+        int jobs = Runtime.getRuntime().availableProcessors();
+        CodeMode mode = CodeMode.SPEED;
+        boolean stackCaching = false;
+        boolean optimize = false;
+        boolean sourceMap = false;
+        boolean caching = true;
+        Path cacheDirectory = TranslationCache.defaultDirectory();
+        String input = null;
         try {
-            // Constructs a Parser to handle the input file.
-            Parser parser = new Parser(args[0]);
-
-            // Constructs a CodeWriter to handle the output file
-            String outputFileName = args[0].replace(".vm", ".asm");
-            try (CodeWriter codeWriter = new CodeWriter(outputFileName)) {
-
-                // Marches through the input file, parsing each line and generating code from it
-                while (parser.hasMoreCommands()) {
-                    parser.advance();
-
-                    switch (parser.commandType()) {
-                        case C_PUSH:
-                        case C_POP:
-                            codeWriter.writePushPop(parser.commandType(), parser.arg1(), parser.arg2());
-                            break;
-                        case C_ARITHMETIC:
-                            codeWriter.writeArithmetic(parser.arg1());
-                    }
+            for (String arg : args) {
+                if (arg.startsWith("--mode=")) {
+                    mode = CodeMode.valueOf(arg.substring("--mode=".length()).toUpperCase());
+                } else if (arg.equals("--stack-cache")) {
+                    stackCaching = true;
+                } else if (arg.equals("--optimize")) {
+                    optimize = true;
+                } else if (arg.equals("--source-map")) {
+                    sourceMap = true;
+                } else if (arg.startsWith("--jobs=")) {
+                    jobs = Integer.parseInt(arg.substring("--jobs=".length()));
+                } else if (arg.equals("--no-cache")) {
+                    caching = false;
+                } else if (arg.startsWith("--cache-dir=")) {
+                    cacheDirectory = Paths.get(arg.substring("--cache-dir=".length()));
+                } else {
+                    input = arg;
+                }
+            }
+            if (input == null || jobs < 1) {
+                throw new IllegalArgumentException(USAGE);
+            }
+        } catch (IllegalArgumentException ex) {
+            // Also a malformed number or mode.
+            System.out.println("Error: " + USAGE);
+            System.exit(1);
+        }
+
+        try {
+            // A directory Xxx is translated into Xxx/Xxx.asm, and a file Xxx.vm into Xxx.asm.
+            Path inputPath = Paths.get(input);
+            List<Path> vmFiles;
+            Path outputFile;
+            boolean bootstrap;
+            if (Files.isDirectory(inputPath)) {
+                try (Stream<Path> files = Files.list(inputPath)) {
+                    vmFiles = files.filter(file -> file.toString().endsWith(".vm") && Files.isRegularFile(file))
+                            .sorted().collect(Collectors.toList());
+                }
+                if (vmFiles.isEmpty()) {
+                    throw new IOException("No .vm files in " + input);
                 }
+                outputFile = inputPath.resolve(inputPath.toAbsolutePath().normalize().getFileName() + ".asm");
+                // A program has a Sys.init function to call; a directory of other files is a test of its own.
+                bootstrap = Files.exists(inputPath.resolve("Sys.vm"));
+            } else {
+                vmFiles = List.of(inputPath);
+                outputFile = Paths.get(input.replace(".vm", ".asm"));
+                bootstrap = false;
+            }
+
+            TranslationOptions options = new TranslationOptions(mode, stackCaching, optimize, sourceMap);
+            TranslationCache cache = caching ? new TranslationCache(cacheDirectory, CACHE_MAX_BYTES, CACHE_MAX_AGE)
+                    : null;
+            List<Translation> translations = translateAll(vmFiles, options, cache, jobs);
+            if (translations == null) {
+                System.exit(1);
+            }
+
+            CodeBuffer prefix = new CodeBuffer();
+            CodeWriter codeWriter = new CodeWriter(prefix, mode, false);
+            if (bootstrap) {
+                codeWriter.writeInit();
+            }
+            if (mode == CodeMode.SIZE) {
+                codeWriter.writeSharedRoutines();
+            }
+
+            // Concatenate the translations in the order of the files, after the bootstrap code and the shared routines.
+            byte[][] pieces = new byte[translations.size() + 1][];
+            pieces[0] = prefix.toByteArray();
+            for (int i = 0; i < translations.size(); i++) {
+                pieces[i + 1] = translations.get(i).code();
+            }
+            try (FileChannel channel = FileChannel.open(outputFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                CodeBuffer.writeFully(channel, pieces);
+            }
+
+            if (sourceMap) {
+                writeProvenanceMap(outputFile.resolveSibling(outputFile.getFileName() + ".map"), prefix.lines(),
+                        vmFiles, translations);
+            }
+            if (cache != null) {
+                cache.evict();
             }
-        } catch (IOException ex) {
+        } catch (IOException | InterruptedException ex) {
             System.out.println("Error: " + ex.getMessage());
             System.exit(1);
         }
     }
+
+    /**
+     * Writes the binary source map of the program (see ProvenanceMap), with a row for each line of its code: the VM
+     * file and command the line was translated from, the command's line and function, and the Jack file and
+     * line of the command. These are streamed from the map that the Jack compiler wrote of the VM file (Xxx.vm.map), if
+     * it is up to date, since the commands of the lines are in order. The lines of the given prefix aren't translated
+     * from a file: the bootstrap code is in the Bootstrap function, and each shared routine in a function named after
+     * its label.
+     */
+    private static void writeProvenanceMap(Path mapFile, List<String> prefixLines, List<Path> vmFiles,
+                                           List<Translation> translations) throws IOException {
+        final int vmFile = 0;
+        final int vmCommand = 1;
+        final int vmLine = 2;
+        final int vmFunction = 3;
+        final int jackFile = 4;
+        final int jackLine = 5;
+        try (ProvenanceMap.Writer writer = new ProvenanceMap.Writer(mapFile,
+                new String[]{"vm.file", "vm.command", "vm.line", "vm.function", "jack.file", "jack.line"},
+                new boolean[]{true, false, false, true, true, false})) {
+            writer.set(vmFunction, "Bootstrap");
+            for (String line : prefixLines) {
+                if (line.startsWith("(") && !line.contains("$$ret.")) {
+                    writer.set(vmFunction, line.substring(1, line.length() - 1));
+                }
+                writer.endRow();
+            }
+            for (int i = 0; i < translations.size(); i++) {
+                Translation translation = translations.get(i);
+                writer.set(vmFile, vmFiles.get(i).getFileName().toString());
+                Path jackMapFile = vmFiles.get(i).resolveSibling(vmFiles.get(i).getFileName() + ".map");
+                boolean upToDate = Files.exists(jackMapFile) && Files.getLastModifiedTime(jackMapFile)
+                        .compareTo(Files.getLastModifiedTime(vmFiles.get(i))) >= 0;
+                try (ProvenanceMap.Reader jackMap = upToDate ? new ProvenanceMap.Reader(jackMapFile) : null) {
+                    int jackFileColumn = jackMap == null ? -1 : jackMap.column("jack.file");
+                    int jackLineColumn = jackMap == null ? -1 : jackMap.column("jack.line");
+                    boolean mapped = jackFileColumn != -1 && jackLineColumn != -1;
+                    int[] lineRuns = translation.lineRuns();
+                    for (int run = 0; run < lineRuns.length; run += 2) {
+                        // The lines of a command are equal rows.
+                        int command = lineRuns[run];
+                        while (mapped && jackMap.index() < command) {
+                            mapped = jackMap.next();
+                        }
+                        writer.set(vmCommand, command);
+                        writer.set(vmLine, translation.commandLines()[command]);
+                        writer.set(vmFunction, translation.commandFunctions()[command]);
+                        writer.set(jackFile, mapped ? jackMap.string(jackFileColumn) : null);
+                        writer.set(jackLine, mapped ? jackMap.value(jackLineColumn) : ProvenanceMap.NONE);
+                        writer.endRows(lineRuns[run + 1]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Translates the given files concurrently on a pool of the given size, each into its own buffer. A file whose
+     * translation is in the given cache, if it isn't null, is taken from it instead of translated.
+     * The errors of each file are reported, and so are the savings of the peephole optimizer, if it is used.
+     *
+     * @return the translation of each file, in the order of the files, or null if any of them failed
+     */
+    public static List<Translation> translateAll(List<Path> vmFiles, TranslationOptions options,
+                                                 TranslationCache cache, int jobs) throws InterruptedException {
+        AtomicInteger hits = new AtomicInteger();
+        List<Callable<Translation>> tasks = new ArrayList<>();
+        for (Path vmFile : vmFiles) {
+            tasks.add(() -> {
+                byte[] content = Files.readAllBytes(vmFile);
+                String fileName = vmFile.getFileName().toString();
+                if (cache == null) {
+                    return translate(content, fileName, options);
+                }
+                String key = cache.key(fileName, content, options);
+                Translation translation = cache.get(key);
+                if (translation != null) {
+                    hits.incrementAndGet();
+                    return translation;
+                }
+                translation = translate(content, fileName, options);
+                cache.put(key, translation);
+                return translation;
+            });
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(jobs);
+        List<Future<Translation>> results;
+        try {
+            results = pool.invokeAll(tasks);
+        } finally {
+            pool.shutdown();
+        }
+
+        List<Translation> translations = new ArrayList<>();
+        boolean failed = false;
+        for (int i = 0; i < results.size(); i++) {
+            try {
+                translations.add(results.get(i).get());
+            } catch (ExecutionException ex) {
+                // The pool may wrap the original exception, so report the innermost cause.
+                Throwable cause = ex;
+                while (cause.getCause() != null) {
+                    cause = cause.getCause();
+                }
+                System.out.println("Error: " + vmFiles.get(i) + ": " + cause.getMessage());
+                failed = true;
+            }
+        }
+        if (failed || !checkLabels(vmFiles, translations)) {
+            return null;
+        }
+
+        if (cache != null) {
+            System.out.printf("Translation cache: %d of %d files reused%n", hits.get(), vmFiles.size());
+        }
+        if (options.optimize()) {
+            int before = 0;
+            int after = 0;
+            for (Translation translation : translations) {
+                before += translation.instructionsBefore();
+                after += translation.instructionsAfter();
+            }
+            System.out.printf("Peephole optimizer: %d -> %d instructions (%d saved, %.1f%%)%n",
+                    before, after, before - after, before == 0 ? 0.0 : 100.0 * (before - after) / before);
+        }
+        return translations;
+    }
+
+    // Reports the files that define a label that an earlier file defines too, e.g. a function defined twice, since the
+    // files share the label space of the assembler. Only the first such label of a file is reported.
+    private static boolean checkLabels(List<Path> vmFiles, List<Translation> translations) {
+        Map<String, Path> definitions = new HashMap<>();
+        boolean unique = true;
+        for (int i = 0; i < translations.size(); i++) {
+            for (String label : translations.get(i).labels()) {
+                Path other = definitions.putIfAbsent(label, vmFiles.get(i));
+                if (other != null) {
+                    System.out.println("Error: " + vmFiles.get(i) + ": " + label + " is also defined in " + other);
+                    unique = false;
+                    break;
+                }
+            }
+        }
+        return unique;
+    }
+
+    /**
+     * Translates the given content of a VM file with the given name into code of the given options.
+     */
+    public static Translation translate(byte[] content, String fileName, TranslationOptions options)
+            throws IOException {
+        // Parses the content into commands.
+        VMProgram program = Parser.parse(content);
+
+        // Constructs a CodeWriter that writes into a buffer. The static variables are named after the file.
+        CodeBuffer buffer = new CodeBuffer();
+        CodeWriter codeWriter = new CodeWriter(buffer, options.mode(), options.stackCaching());
+        String fileStem = fileName.substring(0, fileName.length() - ".vm".length());
+        codeWriter.setFileName(fileStem);
+        // For a source map, the start of the code of each command in the buffer.
+        int[] commandStarts = null;
+        if (options.sourceMap()) {
+            commandStarts = new int[program.size()];
+            for (int i = 0; i < program.size(); i++) {
+                commandStarts[i] = (int) buffer.position();
+                codeWriter.write(program, i);
+            }
+        } else {
+            codeWriter.write(program);
+        }
+        codeWriter.writeEnd();
+
+        byte[] code = buffer.toByteArray();
+        int[] lineRuns = null;
+        int instructionsBefore = -1;
+        if (options.optimize()) {
+            // The code is only split into lines for the optimizer, which moves the command of each line with it.
+            PeepholeOptimizer optimizer = new PeepholeOptimizer();
+            List<String> lines = buffer.lines();
+            List<Integer> origins = commandStarts == null ? null : lineCommands(lines, commandStarts);
+            lines = optimizer.optimize(lines, origins);
+            instructionsBefore = optimizer.instructionsBefore();
+            if (origins != null) {
+                lineRuns = lineRuns(origins);
+            }
+            code = CodeBuffer.template(lines.toArray(new String[0]));
+        }
+        int[] commandLines = null;
+        String[] commandFunctions = null;
+        if (commandStarts != null) {
+            commandLines = new int[program.size()];
+            commandFunctions = new String[program.size()];
+            String function = fileStem;
+            for (int i = 0; i < program.size(); i++) {
+                if (program.opcode(i) == Opcode.FUNCTION) {
+                    function = program.name(i);
+                }
+                commandLines[i] = program.line(i);
+                commandFunctions[i] = function;
+            }
+        }
+
+        // Records the labels the code defines and the static variables it uses, which a cached translation keeps.
+        List<String> labels = new ArrayList<>();
+        Set<String> statics = new LinkedHashSet<>();
+        // The lines of unoptimized code are counted as it's scanned, since its commands are in order.
+        int[] commandLineCounts = commandStarts != null && lineRuns == null ? new int[program.size()] : null;
+        int instructionsAfter = scanCode(code, fileStem, labels, statics, commandStarts, commandLineCounts);
+        if (commandLineCounts != null) {
+            lineRuns = lineRuns(commandLineCounts);
+        }
+        return new Translation(code, labels, new ArrayList<>(statics),
+                instructionsBefore == -1 ? instructionsAfter : instructionsBefore, instructionsAfter, lineRuns,
+                commandLines, commandFunctions);
+    }
+
+    // Adds the labels that the given code defines and the static variables of the given file that it uses to the
+    // given collections, and returns the number of its instructions. Only these lines are decoded into strings. If
+    // commandLineCounts isn't null, the lines of each command are counted into it, given the start of each command's
+    // code: a line belongs to the command it starts in.
+    private static int scanCode(byte[] code, String fileStem, List<String> labels, Set<String> statics,
+                                int[] commandStarts, int[] commandLineCounts) {
+        byte[] staticPrefix = ("@" + fileStem + ".").getBytes(StandardCharsets.UTF_8);
+        int separator = CodeBuffer.LINE_SEPARATOR.length;
+        int instructions = 0;
+        int start = 0;
+        int command = 0;
+        while (start < code.length) {
+            // Every line ends with the line separator, whose last byte is '\n'.
+            int end = start;
+            while (code[end] != '\n') {
+                end++;
+            }
+            if (commandLineCounts != null) {
+                while (command + 1 < commandStarts.length && commandStarts[command + 1] <= start) {
+                    command++;
+                }
+                commandLineCounts[command]++;
+            }
+            int lineEnd = end + 1 - separator;
+            if (lineEnd <= start) {
+                // An empty line, e.g. of optimized code that is empty.
+                start = end + 1;
+                continue;
+            }
+            if (code[start] == '(') {
+                labels.add(new String(code, start + 1, lineEnd - start - 2, StandardCharsets.UTF_8));
+            } else {
+                instructions++;
+                if (Arrays.equals(code, start, Math.min(start + staticPrefix.length, lineEnd), staticPrefix, 0,
+                        staticPrefix.length)) {
+                    statics.add(new String(code, start + 1, lineEnd - start - 1, StandardCharsets.UTF_8));
+                }
+            }
+            start = end + 1;
+        }
+        return instructions;
+    }
+
+    // Returns the command that wrote each of the given lines, given the start of each command's code. A line belongs
+    // to the command it starts in, so the code written at the end of the file belongs to its last command.
+    private static List<Integer> lineCommands(List<String> lines, int[] commandStarts) {
+        List<Integer> commands = new ArrayList<>(lines.size());
+        int separator = CodeBuffer.LINE_SEPARATOR.length;
+        int start = 0;
+        int command = 0;
+        for (String line : lines) {
+            while (command + 1 < commandStarts.length && commandStarts[command + 1] <= start) {
+                command++;
+            }
+            commands.add(command);
+            start += line.length() + separator;
+        }
+        return commands;
+    }
+
+    // Returns the runs of the commands with the given numbers of lines, which are in order.
+    private static int[] lineRuns(int[] commandLineCounts) {
+        int[] runs = new int[2 * commandLineCounts.length];
+        int length = 0;
+        for (int command = 0; command < commandLineCounts.length; command++) {
+            if (commandLineCounts[command] > 0) {
+                runs[length++] = command;
+                runs[length++] = commandLineCounts[command];
+            }
+        }
+        return Arrays.copyOf(runs, length);
+    }
+
+    // Returns the runs of the given commands of the lines.
+    private static int[] lineRuns(List<Integer> lineCommands) {
+        int[] runs = new int[2 * lineCommands.size()];
+        int length = 0;
+        for (int command : lineCommands) {
+            if (length > 0 && runs[length - 2] == command) {
+                runs[length - 1]++;
+            } else {
+                runs[length++] = command;
+                runs[length++] = 1;
+            }
+        }
+        return Arrays.copyOf(runs, length);
+    }
 }
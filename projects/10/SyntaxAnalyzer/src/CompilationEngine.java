@@ -42,6 +42,7 @@ public class CompilationEngine {
         }
         process("}");
         writeRuleEnd("class");
+        tokenizer.close();
         bw.close();
     }
 
@@ -1,139 +1,330 @@
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.util.*;
+import java.util.Arrays;
 
 public class JackTokenizer {
 
-    private int currentTokenIndex = 0;
-    private List<String> tokens = new ArrayList<>();
+    // The number of tokens after the current one that peek() can look at.
+    public static final int MAX_LOOKAHEAD = 3;
+
+    // The tokens are read from the input only as the parser asks for them, into a ring of the current token and the
+    // ones looked ahead at, so the memory used doesn't depend on the size of the input. The tokens are classified as
+    // they are read, in parallel arrays indexed by the number of each token modulo RING_SIZE: the TokenType of each,
+    // its value (the ordinal of a keyword, the character of a symbol or the value of an integer constant), and its
+    // text, as getCurrentToken() returns it.
+    private static final int RING_SIZE = 4;
+    private final TokenType[] types = new TokenType[RING_SIZE];
+    private final int[] values = new int[RING_SIZE];
+    private final String[] texts = new String[RING_SIZE];
+    // The number of the current token, from 0, and the number of tokens read.
+    private int currentTokenIndex = -1;
+    private int tokensRead;
     private String currentToken;
-    List<String> keyword = Arrays.asList("class", "constructor", "function", "method", "field", "static", "var",
-            "int", "char", "boolean", "void", "true", "false", "null", "this", "let", "do", "if", "else", "while",
-            "return");
-    List<String> symbols = Arrays.asList("{", "}", "(", ")", "[", "]", ".", ",", ";", "+", "-", "*", "/", "&", "|",
-            "<", ">", "=", "~");
-    List<String> whitespace = Arrays.asList(" ", "\r", "\n", "\t");
+
+    // A window on the input: the characters from the start of the token being read (mark), to the next character to
+    // read (position) and up to the end of what was read from the input (limit). It only grows for a token longer
+    // than it, e.g. a long string constant.
+    private final Reader reader;
+    private char[] buffer = new char[8192];
+    private int mark;
+    private int position;
+    private int limit;
+    private boolean endOfInput;
+
+
+    // The classes of the ASCII characters, which select the state of the lexer that a token starts in.
+    private static final byte OTHER = 0;
+    private static final byte SPACE = 1;
+    private static final byte DIGIT = 2;
+    private static final byte LETTER = 3;
+    private static final byte SYMBOL = 4;
+    private static final byte SLASH = 5;
+    private static final byte QUOTE = 6;
+    private static final byte[] CHARACTER_CLASSES = new byte[128];
+
+    static {
+        for (char c : " \t\r\n".toCharArray()) {
+            CHARACTER_CLASSES[c] = SPACE;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            CHARACTER_CLASSES[c] = DIGIT;
+        }
+        for (char c = 'a'; c <= 'z'; c++) {
+            CHARACTER_CLASSES[c] = LETTER;
+            CHARACTER_CLASSES[Character.toUpperCase(c)] = LETTER;
+        }
+        CHARACTER_CLASSES['_'] = LETTER;
+        for (char c : "{}()[].,;+-*&|<>=~".toCharArray()) {
+            CHARACTER_CLASSES[c] = SYMBOL;
+        }
+        CHARACTER_CLASSES['/'] = SLASH;
+        CHARACTER_CLASSES['"'] = QUOTE;
+    }
+
+    private static final Keyword[] KEYWORDS = Keyword.values();
+    // The text of each keyword, by ordinal, and of each symbol, by character.
+    private static final String[] KEYWORD_NAMES = new String[KEYWORDS.length];
+    private static final String[] SYMBOL_NAMES = new String[128];
+    // The keywords by a perfect hash of their first and last characters and their length (see keywordHash()), so a
+    // word is told apart from an identifier by comparing it with at most one keyword.
+    private static final Keyword[] KEYWORDS_BY_HASH = new Keyword[64];
+
+    static {
+        for (Keyword keyword : KEYWORDS) {
+            String name = keyword.name().toLowerCase();
+            KEYWORD_NAMES[keyword.ordinal()] = name;
+            int hash = keywordHash(name.charAt(0), name.charAt(name.length() - 1), name.length());
+            if (KEYWORDS_BY_HASH[hash] != null) {
+                throw new AssertionError("The keyword hash isn't perfect");
+            }
+            KEYWORDS_BY_HASH[hash] = keyword;
+        }
+        for (char c : "{}()[].,;+-*/&|<>=~".toCharArray()) {
+            SYMBOL_NAMES[c] = String.valueOf(c);
+        }
+    }
 
     /**
      * Open the the input .jack file and gets ready to tokenize it.
      */
     public JackTokenizer(String input) throws IOException {
+        this(new InputStreamReader(Files.newInputStream(Paths.get(input)), Charset.defaultCharset()));
+    }
 
-        // Read file content as String.
-        byte[] encoded = Files.readAllBytes(Paths.get(input));
-        String content = new String(encoded, Charset.defaultCharset());
+    // Gets ready to tokenize the given input, which is closed when its end is reached, or by close().
+    public JackTokenizer(Reader reader) {
+        this.reader = reader;
+    }
 
-        // Remove // comment until the end of the line
-        int beginIndex = content.indexOf("//");
-        while (beginIndex != -1) {
-            int endIndex = beginIndex + content.substring(beginIndex).indexOf(System.lineSeparator()); // end of file
-            content = content.substring(0, beginIndex) + content.substring(endIndex + System.lineSeparator().length());
-            beginIndex = content.indexOf("//");
+    // Reads the next token into the ring, skipping whitespace and comments (//, /* and /** API comments). Returns
+    // false at the end of the input.
+    private boolean lex() throws IOException {
+        while (true) {
+            mark = position;
+            int c = charAt(0);
+            if (c < 0) {
+                return false;
+            }
+            switch (characterClass((char) c)) {
+                case SPACE:
+                    position++;
+                    break;
+                case SLASH: {
+                    int next = charAt(1);
+                    if (next == '/') {
+                        // A comment until the end of the line.
+                        position += 2;
+                        for (int d = charAt(0); d >= 0 && d != '\n'; d = charAt(0)) {
+                            mark = ++position;
+                        }
+                    } else if (next == '*') {
+                        // A comment until the closing */.
+                        position += 2;
+                        while (true) {
+                            int d = charAt(0);
+                            if (d < 0) {
+                                throw new RuntimeException("Unterminated comment");
+                            }
+                            if (d == '*' && charAt(1) == '/') {
+                                break;
+                            }
+                            mark = ++position;
+                        }
+                        position += 2;
+                    } else {
+                        position++;
+                        addToken(TokenType.SYMBOL, c, SYMBOL_NAMES[c]);
+                        return true;
+                    }
+                    break;
+                }
+                case SYMBOL:
+                    position++;
+                    addToken(TokenType.SYMBOL, c, SYMBOL_NAMES[c]);
+                    return true;
+                case DIGIT: {
+                    int value = 0;
+                    for (int d = c; d >= 0 && characterClass((char) d) == DIGIT; d = charAt(0)) {
+                        value = value * 10 + (d - '0');
+                        if (value > 32767) {
+                            throw new RuntimeException("Integer constant out of range");
+                        }
+                        position++;
+                    }
+                    int d = charAt(0);
+                    if (d >= 0 && characterClass((char) d) == LETTER) {
+                        throw new RuntimeException("The token '" + new String(buffer, mark, position + 1 - mark)
+                                + "' doesn't have a matching type.");
+                    }
+                    addToken(TokenType.INT_CONST, value, String.valueOf(value));
+                    return true;
+                }
+                case LETTER: {
+                    int d;
+                    do {
+                        position++;
+                        d = charAt(0);
+                    } while (d >= 0 && (characterClass((char) d) == LETTER || characterClass((char) d) == DIGIT));
+                    Keyword keyword = keywordAt(mark, position);
+                    if (keyword != null) {
+                        addToken(TokenType.KEYWORD, keyword.ordinal(), KEYWORD_NAMES[keyword.ordinal()]);
+                    } else {
+                        addToken(TokenType.IDENTIFIER, 0, new String(buffer, mark, position - mark));
+                    }
+                    return true;
+                }
+                case QUOTE: {
+                    // A string constant, which can't span lines. Its text is without the enclosing double quotes.
+                    position++;
+                    int d = charAt(0);
+                    while (d >= 0 && d != '"' && d != '\n') {
+                        position++;
+                        d = charAt(0);
+                    }
+                    if (d != '"') {
+                        throw new RuntimeException("Unterminated string constant");
+                    }
+                    addToken(TokenType.STRING_CONST, 0, new String(buffer, mark + 1, position - mark - 1));
+                    position++;
+                    return true;
+                }
+                default:
+                    throw new RuntimeException("Illegal character '" + (char) c + "'");
+            }
         }
+    }
 
-        // Remove /** API comment until closing */
-        beginIndex = content.indexOf("/**");
-        while (beginIndex != -1) {
-            int endIndex = beginIndex + content.substring(beginIndex).indexOf("*/");
-            content = content.substring(0, beginIndex) + content.substring(endIndex + "*/".length());
-            beginIndex = content.indexOf("/**");
+    // Returns the character at the given offset from the position, or -1 if it's after the end of the input.
+    private int charAt(int offset) throws IOException {
+        while (position + offset >= limit) {
+            if (!fill()) {
+                return -1;
+            }
         }
+        return buffer[position + offset];
+    }
 
-        // Remove /* comment until closing */
-        beginIndex = content.indexOf("/*");
-        while (beginIndex != -1) {
-            int endIndex = beginIndex + content.substring(beginIndex).indexOf("*/");
-            content = content.substring(0, beginIndex) + content.substring(endIndex + "*/".length());
-            beginIndex = content.indexOf("/*");
+    // Reads more of the input into the window, first dropping the characters before the mark. Returns false at the
+    // end of the input.
+    private boolean fill() throws IOException {
+        if (endOfInput) {
+            return false;
+        }
+        if (mark > 0) {
+            System.arraycopy(buffer, mark, buffer, 0, limit - mark);
+            position -= mark;
+            limit -= mark;
+            mark = 0;
+        }
+        if (limit == buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
         }
+        int count = reader.read(buffer, limit, buffer.length - limit);
+        if (count < 0) {
+            endOfInput = true;
+            reader.close();
+            return false;
+        }
+        limit += count;
+        return true;
+    }
 
-        String delim = Arrays.toString(whitespace.toArray()) + Arrays.toString(symbols.toArray());
+    // Returns the keyword that the given range of the window is, or null if it's an identifier.
+    private Keyword keywordAt(int start, int end) {
+        Keyword keyword = KEYWORDS_BY_HASH[keywordHash(buffer[start], buffer[end - 1], end - start)];
+        if (keyword == null) {
+            return null;
+        }
+        String name = KEYWORD_NAMES[keyword.ordinal()];
+        if (name.length() != end - start) {
+            return null;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (buffer[start + i] != name.charAt(i)) {
+                return null;
+            }
+        }
+        return keyword;
+    }
 
-        // Create a tokenizer object that received as parameters the jack file as string without the comments,
-        // the delimiter and a flag. If the flag is true, then the delimiter characters are also returned as tokens.
-        StringTokenizer tokenizer = new StringTokenizer(content, delim, true);
-        while (tokenizer.hasMoreTokens()) {
+    private static int keywordHash(char first, char last, int length) {
+        return (first + 19 * last + length) & 63;
+    }
 
-            String curr = tokenizer.nextToken();
-            // Skip whitespace tokens.
-            if (whitespace.contains(curr)) {
-                continue;
-            }
+    // Returns the class of the given character. A letter or a digit outside ASCII is part of an identifier.
+    private static byte characterClass(char c) {
+        if (c < 128) {
+            return CHARACTER_CLASSES[c];
+        }
+        return Character.isLetterOrDigit(c) ? LETTER : OTHER;
+    }
 
-            // Handle the string constant token
-            if (curr.startsWith("\"")) {
-                String strConst = curr;
-                while (!strConst.endsWith("\"")) {
-                    strConst += tokenizer.nextToken();
-                }
-                curr = strConst;
-            }
+    private void addToken(TokenType type, int value, String text) {
+        int slot = tokensRead % RING_SIZE;
+        types[slot] = type;
+        values[slot] = value;
+        texts[slot] = text;
+        tokensRead++;
+    }
 
-            tokens.add(curr);
+    // Reads tokens until the given number of them after the current one were read. Returns false if the input ends
+    // before.
+    private boolean readAhead(int count) throws IOException {
+        while (tokensRead <= currentTokenIndex + count) {
+            if (!lex()) {
+                return false;
+            }
         }
+        return true;
     }
 
     /**
      * Are there more tokens in the input?
      */
-    public boolean hasMoreTokens() {
-        return currentTokenIndex < tokens.size();
+    public boolean hasMoreTokens() throws IOException {
+        return readAhead(1);
     }
 
     /**
      * Reads the next token from the input and make it the current token.
      * Should be called only if hasMoreTokens() is true. Initially there is no current command.
      */
-    public void advance() {
-        currentToken = tokens.get(currentTokenIndex++);
+    public void advance() throws IOException {
+        if (!readAhead(1)) {
+            throw new RuntimeException("Unexpected end of input");
+        }
+        currentTokenIndex++;
+        currentToken = texts[currentTokenIndex % RING_SIZE];
+    }
+
+    // Returns the token the given number of tokens after the current one, from 1 to MAX_LOOKAHEAD, as
+    // getCurrentToken() would return it, or null if the input ends before. The current token doesn't change.
+    public String peek(int k) throws IOException {
+        if (k < 1 || k > MAX_LOOKAHEAD) {
+            throw new IllegalArgumentException("Can only look 1 to " + MAX_LOOKAHEAD + " tokens ahead");
+        }
+        return readAhead(k) ? texts[(currentTokenIndex + k) % RING_SIZE] : null;
     }
 
     /**
      * Returns the type of the current token, as a constant.
      */
     public TokenType tokenType() {
-
-        if (keyword.contains(currentToken)) {
-            return TokenType.KEYWORD;
-        } else if (symbols.contains(currentToken)) {
-            return TokenType.SYMBOL;
-        } else if (currentToken.startsWith("\"") && currentToken.endsWith("\"")) {
-            return TokenType.STRING_CONST;
-        } else {
-
-            // Check if the current token is integer.
-            Integer parsedInt = Utils.tryParseInt(currentToken);
-            if (parsedInt != null && parsedInt >= 0 && parsedInt <= 32767) {
-                return TokenType.INT_CONST;
-            }
-
-            // Check if the current token is identifier.
-            char firstChar = currentToken.charAt(0);
-            if (Character.isLetter(firstChar) || firstChar == '_') {
-                for (char c : currentToken.toCharArray()) {
-                    if (!(Character.isLetterOrDigit(c) || (c != '_'))) {
-                        throw new RuntimeException("The token '" + currentToken + "' doesn't have a matching type.");
-                    }
-                }
-
-                return TokenType.IDENTIFIER;
-            }
-        }
-
-        throw new RuntimeException("The token '" + currentToken + "' doesn't have a matching type.");
-
+        return types[currentTokenIndex % RING_SIZE];
     }
 
     // Return the keyword which is the current token, as a constant. Should be called only if the tokenType is KEYWORD.
     public Keyword keyword() {
-        return Keyword.valueOf(currentToken.toUpperCase());
+        return KEYWORDS[values[currentTokenIndex % RING_SIZE]];
     }
 
     // Return the keyword which is the current token. Should be called only if the tokenType is SYMBOL.
     public char symbol() {
-        return currentToken.charAt(0);
+        return (char) values[currentTokenIndex % RING_SIZE];
     }
 
     // Return the identifier which is the current token. Should be called only if the tokenType is IDENTIFIER.
@@ -143,29 +334,21 @@ public class JackTokenizer {
 
     // Return the integer value of the current token. Should be called only if the tokenType is INT_CONST.
     public int intVal() {
-        return Integer.parseInt(currentToken);
+        return values[currentTokenIndex % RING_SIZE];
     }
 
     // Return the string value of the current token, without the two enclosing double quotes.
     // Should be called only if the tokenType is STRING_CONST.
     public String stringVal() {
-        return currentToken.substring(1, currentToken.length() - 1);
+        return currentToken;
     }
 
     public String getCurrentToken() {
-        switch (tokenType()) {
-            case KEYWORD:
-                return keyword().toString().toLowerCase();
-            case IDENTIFIER:
-                return identifier();
-            case STRING_CONST:
-                return stringVal();
-            case SYMBOL:
-                return String.valueOf(symbol());
-            case INT_CONST:
-                return String.valueOf(intVal());
-            default:
-                throw new RuntimeException("Illegal token type.");
-        }
-    }
-}
\ No newline at end of file
+        return currentToken;
+    }
+
+    // Closes the input, if its end wasn't reached.
+    public void close() throws IOException {
+        reader.close();
+    }
+}
@@ -1,11 +0,0 @@
-public final class Utils {
-    private Utils() { }
-
-    public static Integer tryParseInt(String value) {
-        try {
-            return Integer.parseInt(value);
-        } catch (NumberFormatException ex) {
-            return null;
-        }
-    }
-}
@@ -0,0 +1,252 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// The manifest of the incremental build of a directory of Jack files, kept in the directory as .jack-manifest.
+// For each file, it holds the key of its last compilation, the SHA-256 of the compiler's classes, the options and the
+// file's name and content, so a file whose key didn't change and whose output is there isn't compiled again. It also
+// holds the interface of the file's class: the number of arguments of each of its subroutines, and the calls it makes
+// to other classes. A caller isn't recompiled when a subroutine it calls changes, since its code only depends on its
+// own source, but its calls are checked against the interfaces of all the classes, so a call whose number of
+// arguments no longer matches is reported.
+public class BuildManifest {
+
+    public static final String FILE_NAME = ".jack-manifest";
+    // "JKM1", the format of the manifest.
+    private static final int MAGIC = 0x4A4B4D31;
+
+    // The hash of the compiler's classes, computed by the first key, since they don't change while it runs.
+    private static byte[] compilerHash;
+
+    private final Path file;
+    // The entries by the name of their file.
+    private final Map<String, Entry> entries = new TreeMap<>();
+
+    private static final class Entry {
+
+        final String key;
+        final String className;
+        final Map<String, Integer> subroutines;
+        final List<CompilationEngine.Call> calls;
+
+        Entry(String key, String className, Map<String, Integer> subroutines, List<CompilationEngine.Call> calls) {
+            this.key = key;
+            this.className = className;
+            this.subroutines = subroutines;
+            this.calls = calls;
+        }
+    }
+
+    private BuildManifest(Path file) {
+        this.file = file;
+    }
+
+    // Reads the manifest of the given directory. A missing or unreadable manifest is empty, so every file is compiled.
+    public static BuildManifest load(Path directory) throws IOException {
+        BuildManifest manifest = new BuildManifest(directory.resolve(FILE_NAME));
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(manifest.file)))) {
+            if (in.readInt() != MAGIC) {
+                return manifest;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String fileName = in.readUTF();
+                String key = in.readUTF();
+                String className = in.readUTF();
+                Map<String, Integer> subroutines = new LinkedHashMap<>();
+                int subroutineCount = in.readInt();
+                for (int j = 0; j < subroutineCount; j++) {
+                    subroutines.put(in.readUTF(), in.readInt());
+                }
+                List<CompilationEngine.Call> calls = new ArrayList<>();
+                int callCount = in.readInt();
+                for (int j = 0; j < callCount; j++) {
+                    calls.add(new CompilationEngine.Call(in.readUTF(), in.readInt(), in.readInt()));
+                }
+                manifest.entries.put(fileName, new Entry(key, className, subroutines, calls));
+            }
+        } catch (IOException ex) {
+            manifest.entries.clear();
+        }
+        return manifest;
+    }
+
+    // Returns an empty manifest that isn't saved, for a build without the cache. It still checks the calls. Its files
+    // are never current, so they don't need a key.
+    public static BuildManifest empty() {
+        return new BuildManifest(null);
+    }
+
+    // Returns the key of the compilation of the given file with the given options.
+    public String key(Path jackFile, boolean sourceMap) throws IOException {
+        MessageDigest digest = sha256();
+        digest.update(compilerHash());
+        digest.update((byte) (sourceMap ? 1 : 0));
+        digest.update(jackFile.getFileName().toString().getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(Files.readAllBytes(jackFile));
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    // Is the given file compiled with the given key, and its .vm file (and .vm.map file, with sourceMap) there?
+    public boolean isCurrent(Path jackFile, String key, boolean sourceMap) {
+        Entry entry = entries.get(jackFile.getFileName().toString());
+        if (file == null || entry == null || !entry.key.equals(key)) {
+            return false;
+        }
+        String vmFile = jackFile.toString().replace(".jack", ".vm");
+        return Files.isRegularFile(Paths.get(vmFile))
+                && (!sourceMap || Files.isRegularFile(Paths.get(vmFile + ".map")));
+    }
+
+    public void put(Path jackFile, String key, String className, Map<String, Integer> subroutines,
+                    List<CompilationEngine.Call> calls) {
+        entries.put(jackFile.getFileName().toString(), new Entry(key, className, subroutines, calls));
+    }
+
+    // Removes the entry of the given file, e.g. one that failed to compile, so it's compiled again.
+    public void remove(Path jackFile) {
+        entries.remove(jackFile.getFileName().toString());
+    }
+
+    // Removes the entries of the files that aren't in the given set of file names, e.g. deleted ones, and returns
+    // their names.
+    public Set<String> retain(Set<String> fileNames) {
+        Set<String> removed = new TreeSet<>(entries.keySet());
+        removed.removeAll(fileNames);
+        entries.keySet().removeAll(removed);
+        return removed;
+    }
+
+    // Returns the calls to the subroutines of the classes in the manifest that don't match their number of arguments,
+    // or call a subroutine that the class doesn't have, as messages, in the order of the files.
+    public List<String> checkCalls() {
+        Map<String, Entry> classes = new HashMap<>();
+        for (Entry entry : entries.values()) {
+            classes.put(entry.className, entry);
+        }
+        List<String> messages = new ArrayList<>();
+        for (Map.Entry<String, Entry> caller : entries.entrySet()) {
+            for (CompilationEngine.Call call : caller.getValue().calls) {
+                Entry callee = classes.get(call.function.substring(0, call.function.indexOf('.')));
+                if (callee == null) {
+                    // A class of the OS, or of another directory.
+                    continue;
+                }
+                Integer nArgs = callee.subroutines.get(call.function);
+                if (nArgs == null) {
+                    messages.add(String.format("%s line %d: %s isn't defined", caller.getKey(), call.line,
+                            call.function));
+                } else if (nArgs != call.nArgs) {
+                    messages.add(String.format("%s line %d: %s is called with %d arguments, but takes %d "
+                                    + "(counting this, for a method)", caller.getKey(), call.line, call.function,
+                            call.nArgs, nArgs));
+                }
+            }
+        }
+        return messages;
+    }
+
+    // Writes the manifest to a temporary file and moves it into place, so it's never left half written.
+    public void save() throws IOException {
+        if (file == null) {
+            return;
+        }
+        Path temporary = Files.createTempFile(file.getParent(), FILE_NAME, ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(temporary)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(entries.size());
+                for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeUTF(entry.getValue().key);
+                    out.writeUTF(entry.getValue().className);
+                    out.writeInt(entry.getValue().subroutines.size());
+                    for (Map.Entry<String, Integer> subroutine : entry.getValue().subroutines.entrySet()) {
+                        out.writeUTF(subroutine.getKey());
+                        out.writeInt(subroutine.getValue());
+                    }
+                    out.writeInt(entry.getValue().calls.size());
+                    for (CompilationEngine.Call call : entry.getValue().calls) {
+                        out.writeUTF(call.function);
+                        out.writeInt(call.nArgs);
+                        out.writeInt(call.line);
+                    }
+                }
+            }
+            Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private static synchronized byte[] compilerHash() throws IOException {
+        if (compilerHash == null) {
+            compilerHash = hashOfCompiler();
+        }
+        return compilerHash;
+    }
+
+    // Hashes the jar or the class directory that the compiler was loaded from, so a changed compiler compiles every
+    // file again.
+    private static byte[] hashOfCompiler() throws IOException {
+        MessageDigest digest = sha256();
+        CodeSource codeSource = BuildManifest.class.getProtectionDomain().getCodeSource();
+        if (codeSource == null) {
+            throw new IOException("Can't locate the compiler's classes");
+        }
+        Path location;
+        try {
+            location = Paths.get(codeSource.getLocation().toURI());
+        } catch (URISyntaxException ex) {
+            throw new IOException(ex);
+        }
+
+        if (Files.isDirectory(location)) {
+            List<Path> classFiles;
+            try (Stream<Path> files = Files.walk(location)) {
+                classFiles = files.filter(file -> file.toString().endsWith(".class")).sorted()
+                        .collect(Collectors.toList());
+            }
+            for (Path classFile : classFiles) {
+                digest.update(location.relativize(classFile).toString().getBytes(StandardCharsets.UTF_8));
+                digest.update(Files.readAllBytes(classFile));
+            }
+        } else {
+            digest.update(Files.readAllBytes(location));
+        }
+        return digest.digest();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
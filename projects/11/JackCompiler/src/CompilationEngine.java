@@ -1,9 +1,13 @@
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
-public class CompilationEngine {
+public class CompilationEngine implements AutoCloseable {
 
     private JackTokenizer tokenizer;
     private SymbolTable symbolTable;
@@ -23,11 +27,49 @@ public class CompilationEngine {
     private String subroutineName;
     private String subroutineType;
 
+    // The interface of the class, for the build manifest: the number of arguments of each of its subroutines in the
+    // VM (with this for a method), and the calls it makes to the subroutines of other classes.
+    private final Map<String, Integer> subroutines = new LinkedHashMap<>();
+    private final List<Call> calls = new ArrayList<>();
+
+    // A call to a subroutine of another class, with its number of arguments in the VM and its line.
+    public static final class Call {
+
+        public final String function;
+        public final int nArgs;
+        public final int line;
+
+        public Call(String function, int nArgs, int line) {
+            this.function = function;
+            this.nArgs = nArgs;
+            this.line = line;
+        }
+    }
+
     // Create a new compilation engine with the given input and output. The next routine called must be compileClass.
     public CompilationEngine(String input, String output) throws IOException {
         tokenizer = new JackTokenizer(input);
         symbolTable = new SymbolTable();
-        vmWriter = new VMWriter(output);
+        try {
+            vmWriter = new VMWriter(output);
+        } catch (IOException | RuntimeException ex) {
+            tokenizer.close();
+            throw ex;
+        }
+        labelsCounter = 0;
+        currentToken = "";
+    }
+
+    // Create a new compilation engine that also writes a source map of the output to the given file.
+    public CompilationEngine(String input, String output, String sourceMapFile) throws IOException {
+        tokenizer = new JackTokenizer(input);
+        symbolTable = new SymbolTable();
+        try {
+            vmWriter = new VMWriter(output, sourceMapFile, Paths.get(input).getFileName().toString());
+        } catch (IOException | RuntimeException ex) {
+            tokenizer.close();
+            throw ex;
+        }
         labelsCounter = 0;
         currentToken = "";
     }
@@ -46,7 +88,36 @@ public class CompilationEngine {
             compileSubroutineDec();
         }
         process("}");
-        vmWriter.close();
+        close();
+    }
+
+    // Closes the input and the output, e.g. after a syntax error. Closing them again does nothing.
+    @Override
+    public void close() throws IOException {
+        try {
+            tokenizer.close();
+        } finally {
+            vmWriter.close();
+        }
+    }
+
+    // Return the number of tokens of the input, once compileClass returned.
+    public int tokenCount() {
+        return tokenizer.tokenCount();
+    }
+
+    public String className() {
+        return className;
+    }
+
+    // Return the number of arguments of each subroutine of the class in the VM, by its VM name, e.g. Main.main.
+    public Map<String, Integer> subroutines() {
+        return subroutines;
+    }
+
+    // Return the calls that the class makes to the subroutines of other classes, in order.
+    public List<Call> calls() {
+        return calls;
     }
 
     public boolean isClassVarDecRule() {
@@ -123,6 +194,7 @@ public class CompilationEngine {
         String functionName = className + "." + subroutineName;
         int nLocals = symbolTable.varCount(SymbolTable.Kind.VAR);
         vmWriter.writeFunction(functionName, nLocals);
+        subroutines.put(functionName, symbolTable.varCount(SymbolTable.Kind.ARG));
 
         if (subroutineType.equals("constructor")) {
             // Creates a memory block for representing the new object.
@@ -294,6 +366,7 @@ public class CompilationEngine {
     private void compileSubroutineCall() throws IOException {
         String functionName;
         int nArgs = 0;
+        int line = tokenizer.lineNumber();
         String firstPart = process(JackTokenizer.TokenType.IDENTIFIER); // subroutineName | (className| varName)
 
         if (currentToken.equals("(")) {
@@ -326,6 +399,9 @@ public class CompilationEngine {
         }
 
         vmWriter.writeCall(functionName, nArgs);
+        if (!functionName.startsWith(className + ".")) {
+            calls.add(new Call(functionName, nArgs, line));
+        }
     }
 
     // This method implements the rule returnStatement
@@ -416,7 +492,14 @@ public class CompilationEngine {
                 break;
 
             case IDENTIFIER: {
-                String identifier = process(); // varName | varName '[' expression ']' | subroutineName
+                // A subroutine call is told apart from a variable by the token after the identifier.
+                String next = tokenizer.peek(1);
+                if ("(".equals(next) || ".".equals(next)) {
+                    compileSubroutineCall();
+                    break;
+                }
+
+                String identifier = process(); // varName | varName '[' expression ']'
 
                 if (currentToken.equals("[")) {
                     VMWriter.Segment segment = VMWriter.Segment.fromKind(symbolTable.kindOf(identifier));
@@ -429,16 +512,6 @@ public class CompilationEngine {
                     vmWriter.writePop(VMWriter.Segment.POINTER, 1);
                     vmWriter.writePush(VMWriter.Segment.THAT, 0);
 
-                } else if (currentToken.equals("(") || currentToken.equals(".")) {
-
-                    tokenizer.decrementTokenIndex();
-                    tokenizer.decrementTokenIndex();
-                    tokenizer.advance();
-                    currentToken = tokenizer.getCurrentToken();
-                    currentTokenType = tokenizer.tokenType();
-
-                    compileSubroutineCall();
-
                 } else {
                     VMWriter.Segment segment = VMWriter.Segment.fromKind(symbolTable.kindOf(identifier));
                     vmWriter.writePush(segment, symbolTable.indexOf(identifier));
@@ -502,6 +575,8 @@ public class CompilationEngine {
         }
 
         String prevToken = currentToken;
+        // The commands written until the next token is processed are mapped to the line of this one.
+        vmWriter.setLine(tokenizer.lineNumber());
 
         if (tokenizer.hasMoreTokens()) {
             tokenizer.advance();
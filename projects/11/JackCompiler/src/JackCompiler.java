@@ -1,34 +1,296 @@
 import java.io.File;
 import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class JackCompiler {
+
+    private static final String USAGE = "Usage: JackCompiler [--source-map] [--jobs=n] [--no-cache] [--watch] "
+            + "(input.jack | directory)";
+    // How long to wait for more events of a save in watch mode, before building.
+    private static final long SETTLE_MILLIS = 10;
+
     public static void main(String[] args) {
 
+        boolean sourceMap = false;
+        int jobs = Runtime.getRuntime().availableProcessors();
+        boolean caching = true;
+        boolean watching = false;
+        String input = null;
         try {
-            if (args == null || args.length != 1) {
-                throw new IllegalArgumentException("Usage: JackCompiler input");
+            for (String arg : args) {
+                if (arg.equals("--source-map")) {
+                    sourceMap = true;
+                } else if (arg.startsWith("--jobs=")) {
+                    jobs = Integer.parseInt(arg.substring("--jobs=".length()));
+                } else if (arg.equals("--no-cache")) {
+                    caching = false;
+                } else if (arg.equals("--watch")) {
+                    watching = true;
+                } else if (input == null) {
+                    input = arg;
+                } else {
+                    throw new IllegalArgumentException(USAGE);
+                }
+            }
+            if (input == null || jobs < 1) {
+                throw new IllegalArgumentException(USAGE);
             }
+        } catch (IllegalArgumentException ex) {
+            // Also a malformed number.
+            System.out.println("Error: " + USAGE);
+            System.exit(1);
+        }
+
+        File path = new File(input);
+        if (!path.exists()) {
+            System.out.println("Error: " + input + " doesn't exist");
+            System.exit(1);
+        }
+
+        try {
+            boolean compiled = build(path, sourceMap, jobs, caching);
+            if (watching) {
+                watch(path, sourceMap, jobs, caching);
+            } else if (!compiled) {
+                System.exit(1);
+            }
+        } catch (Exception ex) {
+            System.out.println(ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    // Returns the given file, or the .jack files of the given directory, sorted.
+    private static List<String> listJackFiles(File path) {
+        if (path.isFile()) {
+            return List.of(path.getAbsolutePath());
+        }
+        String[] jackFiles = path.list(new JackFileFilter());
+        if (jackFiles == null) {
+            return List.of();
+        }
+        Arrays.sort(jackFiles);
+        List<String> paths = new ArrayList<>();
+        for (String jackFile : jackFiles) {
+            paths.add(path.getAbsolutePath() + File.separator + jackFile);
+        }
+        return paths;
+    }
 
-            File path = new File(args[0]);
+    // Compiles the given file, or the .jack files of the given directory, unless the build manifest of the directory
+    // shows they didn't change since they were last compiled (always, without caching), and updates the manifest.
+    // Then reports the calls between the classes of the directory that don't match the subroutines they call.
+    // Returns whether all the files that needed it were compiled.
+    public static boolean build(File path, boolean sourceMap, int jobs, boolean caching)
+            throws IOException, InterruptedException {
 
-            String[] jackFiles = path.isFile() ? new String[]{path.getAbsolutePath()} : path.list(new JackFileFilter());
+        List<String> jackFiles = listJackFiles(path);
+        Path directory = path.isDirectory() ? path.toPath() : path.getAbsoluteFile().getParentFile().toPath();
+        BuildManifest manifest = caching ? BuildManifest.load(directory) : BuildManifest.empty();
 
-            if (jackFiles == null) {
-                return;
+        List<String> staleFiles = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        for (String jackFile : jackFiles) {
+            String key = caching ? manifest.key(Paths.get(jackFile), sourceMap) : null;
+            if (!manifest.isCurrent(Paths.get(jackFile), key, sourceMap)) {
+                staleFiles.add(jackFile);
+                keys.add(key);
             }
+        }
+        if (caching) {
+            System.out.printf("Build cache: %d of %d files up to date%n", jackFiles.size() - staleFiles.size(),
+                    jackFiles.size());
+        }
 
-            if (path.isDirectory()) {
-                for (int i = 0; i < jackFiles.length; i++) {
-                    jackFiles[i] = path.getAbsolutePath() + File.separator + jackFiles[i];
+        boolean compiled = true;
+        if (!staleFiles.isEmpty()) {
+            List<Compilation> compilations = compileAll(staleFiles, sourceMap, jobs);
+            for (int i = 0; i < staleFiles.size(); i++) {
+                Compilation compilation = compilations.get(i);
+                if (compilation == null) {
+                    // Its output is incomplete, so it's compiled again next time.
+                    manifest.remove(Paths.get(staleFiles.get(i)));
+                    compiled = false;
+                } else {
+                    manifest.put(Paths.get(staleFiles.get(i)), keys.get(i), compilation.className,
+                            compilation.subroutines, compilation.calls);
                 }
             }
-
+        }
+        if (path.isDirectory()) {
+            Set<String> fileNames = new HashSet<>();
             for (String jackFile : jackFiles) {
-                String vmFile = jackFile.replace(".jack", ".vm");
-                (new CompilationEngine(jackFile, vmFile)).compileClass();
+                fileNames.add(Paths.get(jackFile).getFileName().toString());
             }
-        } catch (Exception ex) {
-            System.out.println(ex.getMessage());
+            // The output of a deleted file would otherwise be linked into the program with the rest.
+            for (String removed : manifest.retain(fileNames)) {
+                deleteOutput(directory.resolve(removed).toString());
+            }
+        }
+
+        for (String message : manifest.checkCalls()) {
+            System.out.println("Warning: " + message);
+        }
+        manifest.save();
+        return compiled;
+    }
+
+    // Builds again whenever the given file, or a .jack file of the given directory, is created, changed or deleted,
+    // until the process is stopped. The events of a save, e.g. a truncation and a write, are taken together.
+    private static void watch(File path, boolean sourceMap, int jobs, boolean caching)
+            throws IOException, InterruptedException {
+
+        File directory = path.isDirectory() ? path : path.getAbsoluteFile().getParentFile();
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            directory.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            System.out.println("Watching " + directory + " for changes");
+            while (true) {
+                WatchKey key = watcher.take();
+                boolean changed = false;
+                while (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        String fileName = String.valueOf(event.context());
+                        boolean watched = path.isDirectory() ? fileName.endsWith(".jack")
+                                : fileName.equals(path.getName());
+                        if (watched && event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                            // Also without the cache, whose manifest doesn't know the file.
+                            deleteOutput(new File(directory, fileName).getPath());
+                        }
+                        changed |= event.kind() == StandardWatchEventKinds.OVERFLOW || watched;
+                    }
+                    if (!key.reset()) {
+                        // The directory was deleted.
+                        return;
+                    }
+                    key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                if (changed) {
+                    try {
+                        build(path, sourceMap, jobs, caching);
+                    } catch (IOException ex) {
+                        // E.g. a file deleted while it was read; the next change builds again.
+                        System.out.println("Error: " + ex.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    // Compiles the given files concurrently on a pool of the given size, each into a .vm file next to it. A failure
+    // doesn't stop the other files: the time and tokens of each file, or its error, are reported in the order of the
+    // files, then the throughput. Returns the compilation of each file, or null for a file that failed.
+    public static List<Compilation> compileAll(List<String> jackFiles, boolean sourceMap, int jobs)
+            throws InterruptedException {
+
+        long start = System.nanoTime();
+        List<Callable<Compilation>> tasks = new ArrayList<>();
+        for (String jackFile : jackFiles) {
+            tasks.add(() -> compile(jackFile, sourceMap));
+        }
+
+        // Each file has its own engine and symbol table, so the files share nothing.
+        ForkJoinPool pool = new ForkJoinPool(jobs);
+        List<Future<Compilation>> results;
+        try {
+            results = pool.invokeAll(tasks);
+        } finally {
+            pool.shutdown();
+        }
+
+        List<Compilation> compilations = new ArrayList<>();
+        long tokens = 0;
+        int failed = 0;
+        for (int i = 0; i < results.size(); i++) {
+            try {
+                Compilation compilation = results.get(i).get();
+                compilations.add(compilation);
+                System.out.printf("%s: %d tokens in %.1f ms%n", jackFiles.get(i), compilation.tokens,
+                        compilation.nanos / 1e6);
+                tokens += compilation.tokens;
+            } catch (ExecutionException ex) {
+                // The pool may wrap the original exception, so report the innermost cause.
+                Throwable cause = ex;
+                while (cause.getCause() != null) {
+                    cause = cause.getCause();
+                }
+                System.out.println("Error: " + jackFiles.get(i) + ": " + cause.getMessage());
+                compilations.add(null);
+                failed++;
+            }
+        }
+
+        double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+        System.out.printf("Compiled %d of %d files, %d tokens in %.3f s (%.0f tokens/s, %.1f files/s)%n",
+                jackFiles.size() - failed, jackFiles.size(), tokens, seconds, tokens / seconds,
+                (jackFiles.size() - failed) / seconds);
+
+        return compilations;
+    }
+
+    // Compiles the given file into a .vm file with the same name and, with sourceMap, its source map: Main.vm.map
+    // maps each command of Main.vm to its line in Main.jack. A file that fails leaves neither, rather than a part.
+    public static Compilation compile(String jackFile, boolean sourceMap) throws IOException {
+        long start = System.nanoTime();
+        String vmFile = jackFile.replace(".jack", ".vm");
+        try (CompilationEngine engine = sourceMap ? new CompilationEngine(jackFile, vmFile, vmFile + ".map")
+                : new CompilationEngine(jackFile, vmFile)) {
+            engine.compileClass();
+            return new Compilation(engine.tokenCount(), System.nanoTime() - start, engine.className(),
+                    engine.subroutines(), engine.calls());
+        } catch (Throwable ex) {
+            // The engine is closed by now.
+            try {
+                deleteOutput(jackFile);
+            } catch (IOException deleteEx) {
+                ex.addSuppressed(deleteEx);
+            }
+            throw ex;
+        }
+    }
+
+    // Deletes the .vm file of the given file, and its source map.
+    static void deleteOutput(String jackFile) throws IOException {
+        String vmFile = jackFile.replace(".jack", ".vm");
+        Files.deleteIfExists(Paths.get(vmFile));
+        Files.deleteIfExists(Paths.get(vmFile + ".map"));
+    }
+
+    // A compiled file: its number of tokens, the time it took to compile it, and the interface of its class.
+    public static final class Compilation {
+
+        final int tokens;
+        final long nanos;
+        final String className;
+        final Map<String, Integer> subroutines;
+        final List<CompilationEngine.Call> calls;
+
+        Compilation(int tokens, long nanos, String className, Map<String, Integer> subroutines,
+                    List<CompilationEngine.Call> calls) {
+            this.tokens = tokens;
+            this.nanos = nanos;
+            this.className = className;
+            this.subroutines = subroutines;
+            this.calls = calls;
         }
     }
 
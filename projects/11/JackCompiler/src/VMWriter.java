@@ -2,11 +2,18 @@
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Paths;
 
 public class VMWriter {
 
     private BufferedWriter bw;
 
+    // The source map of the output, if any: the Jack file and line of each command.
+    private ProvenanceMap.Writer sourceMap;
+    private boolean closed;
+    private static final int JACK_FILE = 0;
+    private static final int JACK_LINE = 1;
+
     public enum Segment {
         CONST("constant"),
         ARG("argument"),
@@ -83,6 +90,22 @@ public class VMWriter {
         bw = new BufferedWriter(new FileWriter(output));
     }
 
+    // Create a new output .vm file, and a source map that maps each command to the given Jack file and to the line
+    // set by setLine.
+    public VMWriter(String output, String sourceMapFile, String jackFile) throws IOException {
+        this(output);
+        sourceMap = new ProvenanceMap.Writer(Paths.get(sourceMapFile), new String[]{"jack.file", "jack.line"},
+                new boolean[]{true, false});
+        sourceMap.set(JACK_FILE, jackFile);
+    }
+
+    // Sets the Jack line of the commands written next.
+    public void setLine(int line) {
+        if (sourceMap != null) {
+            sourceMap.set(JACK_LINE, line);
+        }
+    }
+
     // Writes a VM push command.
     public void writePush(Segment segment, int index) throws IOException {
         writeCommand("push " + segment.label + " " + index);
@@ -130,10 +153,23 @@ public class VMWriter {
 
     private void writeCommand(String cmd) throws IOException {
         bw.write(cmd + System.lineSeparator());
+        if (sourceMap != null) {
+            sourceMap.endRow();
+        }
     }
 
-    // Closes the output file
+    // Closes the output file, and its source map. Closing them again does nothing.
     public void close() throws IOException {
-        bw.close();
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            bw.close();
+        } finally {
+            if (sourceMap != null) {
+                sourceMap.close();
+            }
+        }
     }
 }
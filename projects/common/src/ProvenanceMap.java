@@ -0,0 +1,444 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary source map, written next to the output of a tool as a sidecar file, e.g. Main.vm.map.
+ * The map has a row for each unit of the output in order (a VM command, a line of assembly code or a ROM address),
+ * with a value in each of its named columns, e.g. the Jack file and line a VM command was compiled from. A column is
+ * either an integer or a string; a string column holds the index of a string in the order the strings were defined.
+ * NONE is the value of a column that doesn't apply to a row, e.g. the Jack line of the bootstrap code.
+ * <p>
+ * The file starts with "N2TM", the version, the number of columns and the name and kind of each column (1 for a
+ * string column), where a number is a varint and a string is the number of its UTF-8 bytes and the bytes. It is
+ * followed by records, each starting with a varint tag: 0 ends the map, 1 defines the next string, and 2 + 2k + s
+ * is a run of k + 1 rows. The first row of a run is encoded as the zigzag varint of each column's difference from the
+ * last row before it; if s is 1, the run is strided, and the difference between its consecutive rows follows,
+ * encoded the same way, or else its rows are equal. Since consecutive rows mostly repeat or step, e.g. the lines of
+ * the instructions of a VM command, a run takes a few bytes, and a map is written and read in a single pass, so a
+ * tool can extend the map of its input as it streams through it. A map is encoded and decoded in memory, and written
+ * or read with a single call, since a tool writes one for each of its inputs, and most are small.
+ */
+public final class ProvenanceMap {
+
+    public static final int NONE = -1;
+
+    // "N2TM"
+    private static final int MAGIC = 0x4E32544D;
+    private static final byte VERSION = 1;
+
+    private static final int END = 0;
+    private static final int STRING = 1;
+
+    private ProvenanceMap() {
+    }
+
+    /**
+     * Writes a map, a row at a time: set() the columns that changed since the last row, and end it with endRow().
+     */
+    public static final class Writer implements Closeable {
+
+        private final Path file;
+        // The encoded map, which is written when the map is closed.
+        private byte[] buffer = new byte[8192];
+        private int bufferLength;
+        private final boolean[] strings;
+        private final Map<String, Integer> stringIndexes = new HashMap<>();
+        // The string last set in each column, which is usually set again, e.g. the file of each row.
+        private final String[] lastStrings;
+        private final int[] lastIndexes;
+        private final int[] row;
+        // The pending run: its first and last rows, the difference between its consecutive rows, and its length.
+        private final int[] first;
+        private final int[] last;
+        private final int[] stride;
+        private boolean strided;
+        private int count;
+        // The last row of the run before, which the first row of the pending run is encoded against.
+        private final int[] base;
+        private int rows;
+
+        /**
+         * Starts a map with the given columns, the ones whose flag in strings is set being string columns, which is
+         * written to the given file when it is closed. All the columns start as NONE.
+         */
+        public Writer(Path file, String[] columns, boolean[] strings) {
+            if (columns.length != strings.length) {
+                throw new IllegalArgumentException("Each column needs a kind");
+            }
+            this.file = file;
+            this.strings = strings.clone();
+            this.row = new int[columns.length];
+            this.lastStrings = new String[columns.length];
+            this.lastIndexes = new int[columns.length];
+            this.first = new int[columns.length];
+            this.last = new int[columns.length];
+            this.stride = new int[columns.length];
+            this.base = new int[columns.length];
+            Arrays.fill(row, NONE);
+            Arrays.fill(base, NONE);
+
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                buffer[bufferLength++] = (byte) (MAGIC >>> shift);
+            }
+            buffer[bufferLength++] = VERSION;
+            writeVarint(columns.length);
+            for (int i = 0; i < columns.length; i++) {
+                writeString(columns[i]);
+                writeVarint(strings[i] ? 1 : 0);
+            }
+        }
+
+        /**
+         * Sets an integer column of the current row.
+         */
+        public void set(int column, int value) {
+            row[column] = value;
+        }
+
+        /**
+         * Sets a string column of the current row, or clears it if the string is null.
+         */
+        public void set(int column, String string) {
+            if (!strings[column]) {
+                throw new IllegalArgumentException("Column " + column + " isn't a string column");
+            }
+            if (string == null) {
+                row[column] = NONE;
+                return;
+            }
+            if (string == lastStrings[column]) {
+                row[column] = lastIndexes[column];
+                return;
+            }
+            Integer index = stringIndexes.get(string);
+            if (index == null) {
+                // A definition may precede the pending run, which only refers to strings defined before.
+                index = stringIndexes.size();
+                stringIndexes.put(string, index);
+                writeVarint(STRING);
+                writeString(string);
+            }
+            lastStrings[column] = string;
+            lastIndexes[column] = index;
+            row[column] = index;
+        }
+
+        /**
+         * Ends the current row. The next row starts with the same values.
+         */
+        public void endRow() {
+            rows++;
+            if (count >= 2) {
+                if (continuesRun()) {
+                    if (strided) {
+                        System.arraycopy(row, 0, last, 0, row.length);
+                    }
+                    count++;
+                    return;
+                }
+                if (count == 2 && strided) {
+                    // Two unequal rows are rarely worth a stride, so the first is written alone, and the second
+                    // starts the next run.
+                    count = 1;
+                    strided = false;
+                    flush();
+                    System.arraycopy(last, 0, first, 0, last.length);
+                    count = 1;
+                } else {
+                    flush();
+                }
+            }
+            if (count == 0) {
+                System.arraycopy(row, 0, first, 0, row.length);
+            } else {
+                strided = false;
+                for (int i = 0; i < row.length; i++) {
+                    stride[i] = row[i] - last[i];
+                    strided |= stride[i] != 0;
+                }
+            }
+            System.arraycopy(row, 0, last, 0, row.length);
+            count++;
+        }
+
+        /**
+         * Ends the current row and the given number of rows less one equal to it.
+         */
+        public void endRows(int n) {
+            if (n <= 0) {
+                return;
+            }
+            endRow();
+            if (count == 1) {
+                // The row starts a run, which the equal rows make a run of equal rows.
+                Arrays.fill(stride, 0);
+                strided = false;
+            } else if (strided) {
+                for (int i = 1; i < n; i++) {
+                    endRow();
+                }
+                return;
+            }
+            count += n - 1;
+            rows += n - 1;
+        }
+
+        /**
+         * Returns the number of rows ended so far.
+         */
+        public int rows() {
+            return rows;
+        }
+
+        private boolean continuesRun() {
+            for (int i = 0; i < row.length; i++) {
+                if (row[i] - last[i] != stride[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Writes the pending run of rows, and makes its last row the base of the next run.
+        private void flush() {
+            boolean withStride = count > 1 && strided;
+            writeVarint(2 + ((count - 1) << 1 | (withStride ? 1 : 0)));
+            for (int i = 0; i < first.length; i++) {
+                writeVarint(zigzag(first[i] - base[i]));
+            }
+            if (withStride) {
+                for (int value : stride) {
+                    writeVarint(zigzag(value));
+                }
+            }
+            for (int i = 0; i < base.length; i++) {
+                base[i] = withStride ? first[i] + (count - 1) * stride[i] : first[i];
+            }
+            count = 0;
+        }
+
+        private void writeVarint(int value) {
+            if ((value & ~0x7F) == 0 && bufferLength < buffer.length) {
+                buffer[bufferLength++] = (byte) value;
+                return;
+            }
+            ensureCapacity(5);
+            while ((value & ~0x7F) != 0) {
+                buffer[bufferLength++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[bufferLength++] = (byte) value;
+        }
+
+        // Writes the length of the UTF-8 bytes of the string, and the bytes.
+        private void writeString(String string) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            writeVarint(bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, bufferLength, bytes.length);
+            bufferLength += bytes.length;
+        }
+
+        private void ensureCapacity(int bytes) {
+            if (bufferLength + bytes > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, bufferLength + bytes));
+            }
+        }
+
+        private static int zigzag(int value) {
+            return (value << 1) ^ (value >> 31);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (count > 0) {
+                flush();
+            }
+            writeVarint(END);
+            try (OutputStream out = Files.newOutputStream(file)) {
+                out.write(buffer, 0, bufferLength);
+            }
+        }
+    }
+
+    /**
+     * Reads a map a row at a time: next() moves to the next row, whose columns value() and string() return.
+     */
+    public static final class Reader implements Closeable {
+
+        private final Path file;
+        // The encoded map, read whole when the map is opened, and the position of the next byte to decode.
+        private final byte[] data;
+        private int position;
+        private final String[] columns;
+        private final boolean[] strings;
+        private final int[] row;
+        private final int[] stride;
+        private final List<String> stringTable = new ArrayList<>();
+        // The rows of the current run that are yet to be read, and whether they step by the stride or repeat.
+        private int remaining;
+        private boolean strided;
+        private boolean repeated;
+        private int index = -1;
+        private boolean ended;
+
+        public Reader(Path file) throws IOException {
+            this.file = file;
+            this.data = Files.readAllBytes(file);
+            int magic = 0;
+            for (int i = 0; i < 4; i++) {
+                magic = magic << 8 | readByte();
+            }
+            if (magic != MAGIC || readByte() != VERSION) {
+                throw new IOException(file + ": Not a source map of this version");
+            }
+            int count = readVarint();
+            columns = new String[count];
+            strings = new boolean[count];
+            for (int i = 0; i < count; i++) {
+                columns[i] = readString();
+                strings[i] = readVarint() != 0;
+            }
+            row = new int[count];
+            stride = new int[count];
+            Arrays.fill(row, NONE);
+        }
+
+        public String[] columns() {
+            return columns.clone();
+        }
+
+        public boolean[] strings() {
+            return strings.clone();
+        }
+
+        /**
+         * Returns the index of the column with the given name, or -1 if there is none.
+         */
+        public int column(String name) {
+            return Arrays.asList(columns).indexOf(name);
+        }
+
+        /**
+         * Moves to the next row. Returns false at the end of the map.
+         */
+        public boolean next() throws IOException {
+            if (remaining > 0) {
+                if (strided) {
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] += stride[i];
+                    }
+                }
+                repeated = !strided;
+                remaining--;
+                index++;
+                return true;
+            }
+            if (ended) {
+                return false;
+            }
+            int tag = readVarint();
+            while (tag == STRING) {
+                stringTable.add(readString());
+                tag = readVarint();
+            }
+            if (tag == END) {
+                ended = true;
+                return false;
+            }
+            for (int i = 0; i < row.length; i++) {
+                row[i] += unzigzag(readVarint());
+            }
+            strided = ((tag - 2) & 1) != 0;
+            for (int i = 0; strided && i < row.length; i++) {
+                stride[i] = unzigzag(readVarint());
+            }
+            repeated = false;
+            remaining = (tag - 2) >>> 1;
+            index++;
+            return true;
+        }
+
+        /**
+         * Returns the index of the current row, from 0.
+         */
+        public int index() {
+            return index;
+        }
+
+        /**
+         * Returns whether the current row is known to equal the row before it, which a tool that copies the columns of
+         * the rows needn't copy again.
+         */
+        public boolean repeated() {
+            return repeated;
+        }
+
+        /**
+         * Returns the value of a column of the current row; for a string column, the index of its string.
+         */
+        public int value(int column) {
+            return row[column];
+        }
+
+        /**
+         * Returns the string of a string column of the current row, or null if it is NONE.
+         */
+        public String string(int column) throws IOException {
+            int value = row[column];
+            if (value == NONE) {
+                return null;
+            }
+            if (value < 0 || value >= stringTable.size()) {
+                throw new IOException(file + ": Undefined string " + value + " in row " + index);
+            }
+            return stringTable.get(value);
+        }
+
+        private String readString() throws IOException {
+            int length = readVarint();
+            if (length > data.length - position) {
+                throw new IOException(file + ": Truncated source map");
+            }
+            position += length;
+            return new String(data, position - length, length, StandardCharsets.UTF_8);
+        }
+
+        private int readVarint() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException(file + ": Illegal varint");
+        }
+
+        private int readByte() throws IOException {
+            if (position == data.length) {
+                throw new IOException(file + ": Truncated source map");
+            }
+            return data[position++] & 0xFF;
+        }
+
+        private static int unzigzag(int value) {
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        @Override
+        public void close() {
+            // The map was read whole when it was opened.
+        }
+    }
+}
@@ -0,0 +1,161 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps the addresses of code back to the VM commands it was translated from, e.g. the ROM addresses of a Hack
+ * program to the file, line and function of each command, as the profilers look them up.
+ * An entry covers the addresses from its own up to the next entry's. The map of a Hack program is read from its
+ * binary source map (see ProvenanceMap).
+ */
+public final class SourceMap {
+
+    private int[] addresses = new int[64];
+    private String[] files = new String[64];
+    private int[] lines = new int[64];
+    private String[] functions = new String[64];
+    private String[] commands = new String[64];
+    private int size;
+
+    /**
+     * Adds an entry for the code from the given address, which must not be lower than that of the last entry.
+     * An entry at the address of the last entry replaces it, since the last one has no code, e.g. a label.
+     */
+    public void add(int address, String file, int line, String function, String command) {
+        if (size > 0 && address < addresses[size - 1]) {
+            throw new RuntimeException("Source map address " + address + " is out of order");
+        }
+        if (size > 0 && address == addresses[size - 1]) {
+            size--;
+        }
+        if (size == addresses.length) {
+            int capacity = size * 2;
+            addresses = Arrays.copyOf(addresses, capacity);
+            files = Arrays.copyOf(files, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            functions = Arrays.copyOf(functions, capacity);
+            commands = Arrays.copyOf(commands, capacity);
+        }
+        addresses[size] = address;
+        files[size] = file;
+        lines[size] = line;
+        functions[size] = function;
+        commands[size] = command;
+        size++;
+    }
+
+    /**
+     * Returns the index of the entry that covers the given address, or -1 if the address is before the first entry.
+     */
+    public int find(int address) {
+        int index = Arrays.binarySearch(addresses, 0, size, address);
+        if (index < 0) {
+            // The insertion point is after the entry that covers the address.
+            index = -index - 2;
+        }
+        return index;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int address(int index) {
+        return addresses[index];
+    }
+
+    /**
+     * Returns the VM file of the entry at the given index, or "" for code that isn't translated from a file, e.g. the
+     * bootstrap code.
+     */
+    public String file(int index) {
+        return files[index];
+    }
+
+    public int line(int index) {
+        return lines[index];
+    }
+
+    public String function(int index) {
+        return functions[index];
+    }
+
+    public String command(int index) {
+        return commands[index];
+    }
+
+    /**
+     * Reads the map of a Hack program from its binary source map (Xxx.hack.map, see ProvenanceMap), which has a row for
+     * each ROM address, with the VM columns that the VM translator writes. An entry starts wherever the VM file,
+     * command or function changes. The file of code that isn't translated from a VM file, e.g. the bootstrap code, is
+     * "". The text of a command is its line in the VM file, which is next to the map, without the comment; it's "" if
+     * the file is missing.
+     */
+    public static SourceMap read(Path mapFile) throws IOException {
+        SourceMap map = new SourceMap();
+        try (ProvenanceMap.Reader reader = new ProvenanceMap.Reader(mapFile)) {
+            int file = reader.column("vm.file");
+            int command = reader.column("vm.command");
+            int line = reader.column("vm.line");
+            int function = reader.column("vm.function");
+            if (file == -1 || command == -1 || line == -1 || function == -1) {
+                throw new IOException(mapFile + ": Not a source map of VM code");
+            }
+            // The values of the columns in the last entry; the strings are compared by their indexes.
+            int lastFile = 0;
+            int lastCommand = 0;
+            int lastFunction = 0;
+            Map<String, List<String>> vmLines = new HashMap<>();
+            while (reader.next()) {
+                if (map.size > 0 && reader.value(file) == lastFile && reader.value(command) == lastCommand
+                        && reader.value(function) == lastFunction) {
+                    continue;
+                }
+                lastFile = reader.value(file);
+                lastCommand = reader.value(command);
+                lastFunction = reader.value(function);
+                String fileName = reader.string(file);
+                String functionName = reader.string(function);
+                int lineNumber = Math.max(reader.value(line), 0);
+                String commandText = "";
+                if (fileName != null) {
+                    List<String> lines = vmLines.get(fileName);
+                    if (lines == null) {
+                        lines = readLines(mapFile.resolveSibling(fileName));
+                        vmLines.put(fileName, lines);
+                    }
+                    if (lineNumber >= 1 && lineNumber <= lines.size()) {
+                        commandText = commandText(lines.get(lineNumber - 1));
+                    }
+                }
+                map.add(reader.index(), fileName == null ? "" : fileName, lineNumber,
+                        functionName == null ? "?" : functionName, commandText);
+            }
+        }
+        return map;
+    }
+
+    // Returns the lines of the given file, or none if it's missing.
+    private static List<String> readLines(Path file) throws IOException {
+        try {
+            return Files.readAllLines(file, StandardCharsets.ISO_8859_1);
+        } catch (NoSuchFileException ex) {
+            return List.of();
+        }
+    }
+
+    // Returns the command on the given line of VM code, without its comment and with its words separated by a space.
+    private static String commandText(String line) {
+        int comment = line.indexOf("//");
+        if (comment != -1) {
+            line = line.substring(0, comment);
+        }
+        return String.join(" ", line.trim().split("\\s+"));
+    }
+}